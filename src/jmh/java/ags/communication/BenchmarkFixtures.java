@@ -0,0 +1,142 @@
+package ags.communication;
+
+import ags.ui.HiresScreen;
+import ags.ui.IVirtualScreen;
+import ags.ui.TextScreen40;
+import ags.ui.gameSelector.GameInfoWidget;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.InputStream;
+import javax.imageio.ImageIO;
+
+/**
+ * Representative data for the codec benchmarks, built the same way the game selector builds it:
+ * hires frames with a menu and a game screenshot, 40-column text menus and real game binaries.
+ * Each screen fixture comes as a pair of consecutive frames (the selection bar moved down one
+ * line) so the frame-to-frame update path is measured as well as the full-frame one.
+ * @author brobert
+ */
+public class BenchmarkFixtures {
+
+    public static final String[] GAMES = {"AIR.CARS#066000", "ALCAZAR#0607fd", "AGENT.USA#060801"};
+    public static final String[] SCREENSHOTS = {"aircars1.png", "agentusa1.png"};
+    public static final String TINYLOADER = "ags/asm/tinyloader_ssc_slot2.o";
+    private static final String[] MENU = {
+        "AGENT USA", "AIR CARS", "ALCAZAR", "ALIEN AMBUSH", "ALIEN GAME", "ALIEN MUNCHIES",
+        "ALIEN TYPHOON", "ALIVADER", "APPLE INVADERS", "AZTEC", "BEER RUN", "BOLO", "BUZZARD BAIT",
+        "CANNONBALL BLITZ", "CAPTAIN GOODNIGHT", "CASTLE WOLFENSTEIN", "CHOPLIFTER", "CONAN"
+    };
+
+    static {
+        System.setProperty("java.awt.headless", "true");
+    }
+
+    /**
+     * A pair of screen frames
+     */
+    public static class Frames {
+
+        public final int address;
+        public final byte[] previous;
+        public final byte[] current;
+
+        Frames(int address, byte[] previous, byte[] current) {
+            this.address = address;
+            this.previous = previous;
+            this.current = current;
+        }
+    }
+
+    /**
+     * Hires game selector frames: menu on the left, screenshot on the right
+     * @return Frames before and after moving the selection
+     */
+    public static Frames hiresMenu() throws IOException {
+        HiresScreen screen = new HiresScreen();
+        BufferedImage shot = ImageIO.read(getResource(GameInfoWidget.SCREENSHOTS_PATH + "/" + SCREENSHOTS[0]));
+        drawMenu(screen, 2);
+        screen.drawImage(20, 1, 39, 12, shot);
+        byte[] before = screen.getBuffer().clone();
+        drawMenu(screen, 3);
+        screen.drawImage(20, 1, 39, 12, shot);
+        byte[] after = screen.getBuffer().clone();
+        return new Frames(screen.getDisplayOffset(), before, after);
+    }
+
+    /**
+     * Full hires screenshots, as shown when viewing a game's screens
+     * @return Frames flipping from one screenshot to the next
+     */
+    public static Frames hiresScreenshots() throws IOException {
+        HiresScreen screen = new HiresScreen();
+        byte[][] frames = new byte[2][];
+        for (int i = 0; i < 2; i++) {
+            screen.clear();
+            screen.drawBorder(0, 0, 39, 23, false);
+            screen.drawImage(1, 1, 38, 22, ImageIO.read(getResource(GameInfoWidget.SCREENSHOTS_PATH + "/" + SCREENSHOTS[i])));
+            frames[i] = screen.getBuffer().clone();
+        }
+        return new Frames(screen.getDisplayOffset(), frames[0], frames[1]);
+    }
+
+    /**
+     * 40-column text game selector frames
+     * @return Frames before and after moving the selection
+     */
+    public static Frames textMenu() {
+        TextScreen40 screen = new TextScreen40();
+        drawMenu(screen, 2);
+        byte[] before = screen.getBuffer().clone();
+        drawMenu(screen, 3);
+        byte[] after = screen.getBuffer().clone();
+        return new Frames(screen.getDisplayOffset(), before, after);
+    }
+
+    private static void drawMenu(IVirtualScreen screen, int selected) {
+        screen.clear();
+        screen.drawBorder(0, 0, 39, 23, false);
+        screen.drawText(2, 0, " APPLE GAME SERVER ", true);
+        for (int i = 0; i < MENU.length; i++) {
+            screen.drawText(2, i + 2, MENU[i], i == selected);
+        }
+        screen.drawText(2, 22, "TYPE TO SEARCH, RETURN TO PLAY", false);
+    }
+
+    /**
+     * @param name Name of a game file in data/games
+     * @return File contents
+     */
+    public static byte[] game(String name) throws IOException {
+        return DataUtil.getFileAsBytes("data/games/" + name);
+    }
+
+    /**
+     * @param name Name of a game file in data/games (NAME#06aaaa, where aaaa is the load address)
+     * @return Load address
+     */
+    public static int gameAddress(String name) {
+        return Integer.parseInt(name.substring(name.indexOf('#') + 3), 16);
+    }
+
+    /**
+     * @return The assembled TinyLoader, or the start of a game binary if the assembly step hasn't run
+     */
+    public static byte[] tinyLoader() throws IOException {
+        try {
+            return DataUtil.getFileAsBytes(TINYLOADER);
+        } catch (IOException ex) {
+            byte[] game = game(GAMES[0]);
+            byte[] stand = new byte[Math.min(200, game.length)];
+            System.arraycopy(game, 0, stand, 0, stand.length);
+            return stand;
+        }
+    }
+
+    private static InputStream getResource(String path) throws IOException {
+        InputStream in = Thread.currentThread().getContextClassLoader().getResourceAsStream(path);
+        if (in == null) {
+            throw new IOException("Unable to find " + path);
+        }
+        return in;
+    }
+}
@@ -0,0 +1,194 @@
+package ags.communication;
+
+import ags.communication.BenchmarkFixtures.Frames;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Benchmarks for the wire codecs and protocol helpers.
+ * Run with: mvn -Pjmh package -DskipTests && java -jar target/apple-game-server-benchmarks.jar
+ * (any JMH command line options can be added, e.g. a regular expression to pick benchmarks)
+ * Time per operation comes from JMH, allocation per operation from the GC profiler (gc.alloc.rate.norm)
+ * and the bytes each encoder puts on the wire are printed in a table at the end.
+ * @author brobert
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CodecBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Screens {
+
+        @Param({"hiresMenu", "hiresScreenshots", "textMenu"})
+        public String screen;
+        public Frames frames;
+        public byte[] diff;
+        public PackbitsEncoder encoder = new PackbitsEncoder();
+        public OptimalPackbitsEncoder optimal = new OptimalPackbitsEncoder();
+
+        @Setup
+        public void setup() throws IOException {
+            frames = frames(screen);
+            diff = DataUtil.xor(frames.previous, frames.current);
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class Games {
+
+        @Param({"AIR.CARS#066000", "ALCAZAR#0607fd", "AGENT.USA#060801"})
+        public String game;
+        public byte[] data;
+        public int address;
+        public byte[] tinyLoader;
+        public ByteBuffer replies;
+        public byte[] ack = TransferHost.DRIVER_ACK.getBytes();
+        public StreamMatcher ackMatcher = new StreamMatcher(true, TransferHost.DRIVER_ACK);
+
+        @Setup
+        public void setup() throws IOException {
+            data = BenchmarkFixtures.game(game);
+            address = BenchmarkFixtures.gameAddress(game);
+            tinyLoader = BenchmarkFixtures.tinyLoader();
+            // A receive buffer with the acknowledgement at the end of a screenful of noise
+            replies = ByteBuffer.allocate(1024);
+            replies.put(data, 0, Math.min(data.length, 1024 - ack.length));
+            replies.put(ack);
+        }
+    }
+
+    @Benchmark
+    public int packScreenFull(Screens s) {
+        s.encoder.setXorMode(true);
+        return s.encoder.packScreenUpdate(s.frames.address, null, s.frames.current);
+    }
+
+    @Benchmark
+    public int packScreenUpdate(Screens s) {
+        s.encoder.setXorMode(true);
+        return s.encoder.packScreenUpdate(s.frames.address, s.frames.previous, s.frames.current);
+    }
+
+    @Benchmark
+    public int packScreenOptimal(Screens s) {
+        s.optimal.setXorMode(true);
+        return s.optimal.packScreenUpdate(s.frames.address, s.frames.previous, s.frames.current);
+    }
+
+    @Benchmark
+    public int packbits(Screens s) {
+        s.encoder.setXorMode(true);
+        return s.encoder.packbits(s.frames.address, s.diff, s.frames.current, 0, s.frames.current.length);
+    }
+
+    @Benchmark
+    public byte[] xor(Screens s) {
+        return DataUtil.xor(s.frames.previous, s.frames.current);
+    }
+
+    @Benchmark
+    public byte[] packbitsStore(Games g) {
+        return DataUtil.packbitsStore(g.address, g.data, 0, g.data.length);
+    }
+
+    @Benchmark
+    public byte[] computeChecksum(Games g) {
+        return TransferHost.computeChecksum(g.data, 0, g.data.length);
+    }
+
+    @Benchmark
+    public int computeCrc16(Games g) {
+        return TransferHost.computeCrc16(g.data, 0, g.data.length);
+    }
+
+    @Benchmark
+    public boolean bufferContains(Games g) {
+        return DataUtil.bufferContains(g.replies, g.ack);
+    }
+
+    @Benchmark
+    public int streamMatcher(Games g) {
+        g.ackMatcher.reset();
+        return g.ackMatcher.feed(g.replies.array(), 0, g.replies.position());
+    }
+
+    @Benchmark
+    public String encode44(Games g) {
+        return TransferHost.generate44EncodedBasicWithOffset(g.tinyLoader, 0x0300, 'A', true);
+    }
+
+    private static Frames frames(String name) throws IOException {
+        switch (name) {
+            case "hiresMenu":
+                return BenchmarkFixtures.hiresMenu();
+            case "hiresScreenshots":
+                return BenchmarkFixtures.hiresScreenshots();
+            default:
+                return BenchmarkFixtures.textMenu();
+        }
+    }
+
+    /**
+     * Print the bytes on the wire for each encoder and fixture, since JMH only measures time and memory
+     */
+    public static void printCompressionRatios() throws IOException {
+        System.out.println();
+        System.out.printf("%-28s %-18s %8s %8s %7s%n", "Encoder", "Fixture", "In", "Wire", "Ratio");
+        for (String name : new String[]{"hiresMenu", "hiresScreenshots", "textMenu"}) {
+            Frames f = frames(name);
+            PackbitsEncoder encoder = new PackbitsEncoder();
+            printRatio("packScreenUpdate (full)", name, f.current.length,
+                    encoder.packScreenUpdate(f.address, null, f.current));
+            encoder.setXorMode(true);
+            printRatio("packScreenUpdate (update)", name, f.current.length,
+                    encoder.packScreenUpdate(f.address, f.previous, f.current));
+            printRatio("packScreenUpdate (optimal)", name, f.current.length,
+                    new OptimalPackbitsEncoder().packScreenUpdate(f.address, f.previous, f.current));
+        }
+        for (String name : BenchmarkFixtures.GAMES) {
+            byte[] data = BenchmarkFixtures.game(name);
+            printRatio("packbitsStore", name, data.length,
+                    DataUtil.packbitsStore(BenchmarkFixtures.gameAddress(name), data, 0, data.length).length);
+        }
+        byte[] loader = BenchmarkFixtures.tinyLoader();
+        printRatio("4+4 BASIC", "tinyloader", loader.length,
+                TransferHost.generate44EncodedBasicWithOffset(loader, 0x0300, 'A', true).length());
+    }
+
+    private static void printRatio(String encoder, String fixture, int in, int wire) {
+        System.out.printf("%-28s %-18s %8d %8d %7.3f%n", encoder, fixture, in, wire, (double) wire / in);
+    }
+
+    public static void main(String... args) throws RunnerException, CommandLineOptionException, IOException {
+        ChainedOptionsBuilder options = new OptionsBuilder()
+                .parent(new CommandLineOptions(args))
+                .addProfiler(GCProfiler.class);
+        if (args.length == 0) {
+            options.include(CodecBenchmark.class.getSimpleName());
+        }
+        new Runner(options.build()).run();
+        printCompressionRatios();
+    }
+}
@@ -17,6 +17,7 @@ public class AssemblyCompiler {
     private static final List<String> ASSEMBLY_FILES = Arrays.asList(
         "init/init.a",
         "init/tinyloader.a",
+        "init/speed.a",
         "rwts/rwts.a", 
         "rwts/minirwts.a",
         "rwts/c6rwts.a",
@@ -0,0 +1,133 @@
+package ags.communication;
+
+import ags.controller.Configurator;
+import java.util.prefs.BackingStoreException;
+import java.util.prefs.Preferences;
+
+/**
+ * Picks the size of data chunks sent by TransferHost.sendRawData using additive increase / multiplicative
+ * decrease, the same way TCP picks its congestion window.  Every good chunk grows the chunk size by a fixed
+ * step while the smoothed error rate is low, and every bad chunk halves it.  A marginal cable settles on the
+ * largest size it can reliably carry instead of bouncing between the maximum and half of it.
+ *
+ * What was learned is remembered per link (serial port or tcp endpoint) so the next session starts there.
+ * @author brobert
+ */
+public class ChunkSizeController {
+
+    private static final String CHUNK_SIZE = "chunkSize";
+    private static final String ERROR_RATE = "errorRate";
+    /**
+     * Weight given to the latest chunk in the smoothed error rate
+     */
+    private static final double ERROR_WEIGHT = 0.1;
+    /**
+     * Stop growing chunks while more than this fraction of them fail
+     */
+    private static final double ERROR_THRESHOLD = 0.05;
+    /**
+     * Change in the error rate worth writing to disk before the link closes
+     */
+    private static final double SAVE_ERROR_CHANGE = 0.01;
+    private final String linkName;
+    private final int minSize;
+    private final int maxSize;
+    private final int step;
+    private int chunkSize;
+    private double errorRate = 0.0;
+    // What the preferences hold
+    private int savedChunkSize;
+    private double savedErrorRate;
+
+    /**
+     * Constructor, restores the previous state of the link if there is one
+     * @param linkName Name of the link, used to find its saved state
+     * @param minSize Smallest chunk size allowed
+     * @param maxSize Largest chunk size allowed
+     * @param step Number of bytes to add after each good chunk
+     */
+    public ChunkSizeController(String linkName, int minSize, int maxSize, int step) {
+        this.linkName = linkName;
+        this.maxSize = Math.max(1, maxSize);
+        this.minSize = Math.max(1, Math.min(minSize, this.maxSize));
+        this.step = Math.max(1, step);
+        chunkSize = this.maxSize;
+        if (linkName != null) {
+            Preferences prefs = Configurator.getLinkPreferences(linkName);
+            chunkSize = bound(prefs.getInt(CHUNK_SIZE, this.maxSize));
+            errorRate = prefs.getDouble(ERROR_RATE, 0.0);
+        }
+        savedChunkSize = chunkSize;
+        savedErrorRate = errorRate;
+    }
+
+    /**
+     * @return Size to use for the next chunk
+     */
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    /**
+     * @return Smoothed fraction of chunks that failed
+     */
+    public double getErrorRate() {
+        return errorRate;
+    }
+
+    /**
+     * A chunk made it across intact
+     * @param size Size of the chunk
+     */
+    public void success(int size) {
+        errorRate = errorRate * (1.0 - ERROR_WEIGHT);
+        // Only a full sized chunk says anything about whether a bigger one would make it
+        if (size >= chunkSize && errorRate < ERROR_THRESHOLD) {
+            chunkSize = bound(chunkSize + step);
+        }
+    }
+
+    /**
+     * A chunk failed its checksum or was never answered
+     * @param size Size of the chunk
+     */
+    public void failure(int size) {
+        errorRate = errorRate * (1.0 - ERROR_WEIGHT) + ERROR_WEIGHT;
+        // Chunks already in flight were sent at the old size, so halve relative to the chunk itself;
+        // otherwise a burst of failures from one bad moment would shrink the size several times over
+        chunkSize = Math.min(chunkSize, bound(size / 2));
+    }
+
+    /**
+     * Remember the current state for the next session if it has changed enough to be worth a disk write
+     * (called after every transfer, so most calls do nothing)
+     */
+    public void save() {
+        if (chunkSize != savedChunkSize || Math.abs(errorRate - savedErrorRate) >= SAVE_ERROR_CHANGE) {
+            flush();
+        }
+    }
+
+    /**
+     * Write the current state for the next session now
+     */
+    public void flush() {
+        if (linkName == null || (chunkSize == savedChunkSize && errorRate == savedErrorRate)) {
+            return;
+        }
+        savedChunkSize = chunkSize;
+        savedErrorRate = errorRate;
+        Preferences prefs = Configurator.getLinkPreferences(linkName);
+        prefs.putInt(CHUNK_SIZE, chunkSize);
+        prefs.putDouble(ERROR_RATE, errorRate);
+        try {
+            prefs.flush();
+        } catch (BackingStoreException ex) {
+            System.out.println("Unable to save transfer settings for " + linkName + ": " + ex.getMessage());
+        }
+    }
+
+    private int bound(int size) {
+        return Math.max(minSize, Math.min(maxSize, size));
+    }
+}
@@ -0,0 +1,273 @@
+package ags.communication;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Assembles a complete driver command (opcode, operands and payload) so that it can be sent with a single write.
+ * Every byte in the frame is tagged with the number of 6502 cycles the driver needs to consume it, so
+ * GenericHost.writeFrame only has to pause where the driver is slower than the serial line instead of
+ * sleeping a fixed amount of time after every command byte.
+ *
+ * Frames are meant to be reused: call reset() and build the next command into the same buffer.
+ * Payloads are not copied into the frame, only referenced, so they must not change until the frame is sent.
+ * @author brobert
+ */
+public class CommandFrame {
+
+    /**
+     * Cycles for the driver loop to read a command byte and dispatch it (worst case is 'G')
+     */
+    public static final int COMMAND_CYCLES = 70;
+    /**
+     * Cycles to dispatch a command handled by the extension module at $BD00 ('H' and up)
+     */
+    public static final int EXTENSION_CYCLES = 95;
+    /**
+     * Cycles to read and store a command operand byte (readByte subroutine)
+     */
+    public static final int OPERAND_CYCLES = 45;
+    /**
+     * Cycles per byte in the receiveBlock loop (33, with a little to spare for polling the port)
+     */
+    public static final int DATA_CYCLES = 36;
+    /**
+     * Cycles per byte in the framed block loop ('L'), which also adds up the frame's sums
+     */
+    public static final int FRAME_CYCLES = 50;
+    /**
+     * Cycles to answer an ack request ('@') -- two calls to sendByte
+     */
+    public static final int ACK_CYCLES = 70;
+
+    // Command and operand bytes
+    private byte[] buffer = new byte[64];
+    private int bufferLength = 0;
+    private int length = 0;
+    // Pieces of the frame in order: either a range of the command buffer (data == null) or a payload
+    private ByteBuffer[] partData = new ByteBuffer[8];
+    private int[] partOffset = new int[8];
+    private int[] partLength = new int[8];
+    private int parts = 0;
+    // Runs of bytes that share the same cost
+    private int[] segmentStart = new int[16];
+    private int[] segmentCycles = new int[16];
+    private int[] segmentReplies = new int[16];
+    private int segments = 0;
+
+    /**
+     * Empty the frame so a new command can be built
+     * @return this frame
+     */
+    public CommandFrame reset() {
+        length = 0;
+        bufferLength = 0;
+        Arrays.fill(partData, 0, parts, null);
+        parts = 0;
+        segments = 0;
+        return this;
+    }
+
+    /**
+     * Add a command byte handled by the driver
+     * @param command Command character ('@', 'A', 'B' ...)
+     * @return this frame
+     */
+    public CommandFrame command(char command) {
+        return command(command, command >= 'H' ? EXTENSION_CYCLES : COMMAND_CYCLES, 0);
+    }
+
+    /**
+     * Add a command byte with a specific cost
+     * @param command Command character
+     * @param cycles Cycles the driver spends on the command before it reads again
+     * @param replyBytes Number of bytes the driver sends back before it reads again
+     * @return this frame
+     */
+    public CommandFrame command(char command, int cycles, int replyBytes) {
+        add((byte) command, cycles, replyBytes);
+        return this;
+    }
+
+    /**
+     * Add a single operand byte
+     * @param value Byte value
+     * @return this frame
+     */
+    public CommandFrame operand(int value) {
+        return operand(value, OPERAND_CYCLES, 0);
+    }
+
+    /**
+     * Add an operand byte with a specific cost
+     * @param value Byte value
+     * @param cycles Cycles the driver spends on it before it reads again
+     * @param replyBytes Number of bytes the driver sends back before it reads again
+     * @return this frame
+     */
+    public CommandFrame operand(int value, int cycles, int replyBytes) {
+        add((byte) (value & 0x0ff), cycles, replyBytes);
+        return this;
+    }
+
+    /**
+     * Add a little-endian word operand
+     * @param value Word value
+     * @return this frame
+     */
+    public CommandFrame word(int value) {
+        return operand(value).operand(value >> 8);
+    }
+
+    /**
+     * Add a block of data consumed by the receiveBlock loop
+     * @param data Source data
+     * @param offset Starting offset in data
+     * @param size Number of bytes to add
+     * @return this frame
+     */
+    public CommandFrame payload(byte[] data, int offset, int size) {
+        return payload(data, offset, size, DATA_CYCLES);
+    }
+
+    /**
+     * Add a block of data with a specific per-byte cost
+     * @param data Source data
+     * @param offset Starting offset in data
+     * @param size Number of bytes to add
+     * @param cycles Cycles the driver needs for each byte
+     * @return this frame
+     */
+    public CommandFrame payload(byte[] data, int offset, int size, int cycles) {
+        if (size <= 0) {
+            return this;
+        }
+        return payload(ByteBuffer.wrap(data, offset, size), cycles);
+    }
+
+    /**
+     * Add the remaining bytes of a buffer (which can be a slice of a mapped file) with a specific per-byte cost
+     * @param data Source data, from its position to its limit
+     * @param cycles Cycles the driver needs for each byte
+     * @return this frame
+     */
+    public CommandFrame payload(ByteBuffer data, int cycles) {
+        if (!data.hasRemaining()) {
+            return this;
+        }
+        startSegment(cycles, 0);
+        addPart(data.slice(), 0, data.remaining());
+        length += data.remaining();
+        return this;
+    }
+
+    private void add(byte b, int cycles, int replyBytes) {
+        startSegment(cycles, replyBytes);
+        ensureCapacity(bufferLength + 1);
+        if (parts > 0 && partData[parts - 1] == null) {
+            partLength[parts - 1]++;
+        } else {
+            addPart(null, bufferLength, 1);
+        }
+        buffer[bufferLength++] = b;
+        length++;
+    }
+
+    private void addPart(ByteBuffer data, int offset, int size) {
+        if (parts == partData.length) {
+            partData = Arrays.copyOf(partData, parts * 2);
+            partOffset = Arrays.copyOf(partOffset, parts * 2);
+            partLength = Arrays.copyOf(partLength, parts * 2);
+        }
+        partData[parts] = data;
+        partOffset[parts] = offset;
+        partLength[parts] = size;
+        parts++;
+    }
+
+    private void startSegment(int cycles, int replyBytes) {
+        if (segments > 0 && segmentCycles[segments - 1] == cycles && segmentReplies[segments - 1] == replyBytes) {
+            return;
+        }
+        if (segments == segmentStart.length) {
+            segmentStart = Arrays.copyOf(segmentStart, segments * 2);
+            segmentCycles = Arrays.copyOf(segmentCycles, segments * 2);
+            segmentReplies = Arrays.copyOf(segmentReplies, segments * 2);
+        }
+        segmentStart[segments] = length;
+        segmentCycles[segments] = cycles;
+        segmentReplies[segments] = replyBytes;
+        segments++;
+    }
+
+    private void ensureCapacity(int size) {
+        if (size > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(size, buffer.length * 2));
+        }
+    }
+
+    /**
+     * Get part of the frame, ready for a gathering write
+     * @param start Offset of the first byte
+     * @param end Offset just past the last byte
+     * @return Buffers covering that part of the frame, in order
+     */
+    public ByteBuffer[] slice(int start, int end) {
+        ByteBuffer[] slices = new ByteBuffer[parts];
+        int count = 0;
+        int partStart = 0;
+        for (int p = 0; p < parts && partStart < end; p++) {
+            int partEnd = partStart + partLength[p];
+            int from = Math.max(start, partStart);
+            int to = Math.min(end, partEnd);
+            if (from < to) {
+                int offset = partOffset[p] + from - partStart;
+                slices[count++] = partData[p] == null
+                        ? ByteBuffer.wrap(buffer, offset, to - from)
+                        : partData[p].duplicate().limit(offset + to - from).position(offset);
+            }
+            partStart = partEnd;
+        }
+        return Arrays.copyOf(slices, count);
+    }
+
+    /**
+     * @return Number of bytes in the frame
+     */
+    public int getLength() {
+        return length;
+    }
+
+    /**
+     * @return Number of runs of bytes that share the same cost
+     */
+    public int getSegmentCount() {
+        return segments;
+    }
+
+    /**
+     * @param segment Segment number
+     * @return Offset of the first byte in the segment
+     */
+    public int getSegmentStart(int segment) {
+        return segmentStart[segment];
+    }
+
+    /**
+     * @param segment Segment number
+     * @return Offset just past the last byte in the segment
+     */
+    public int getSegmentEnd(int segment) {
+        return segment + 1 < segments ? segmentStart[segment + 1] : length;
+    }
+
+    /**
+     * Time the driver needs for each byte of a segment, including sending any reply
+     * @param segment Segment number
+     * @param nanosPerChar Time to send one character at the current speed
+     * @return Nanoseconds per byte
+     */
+    public long getSegmentNanos(int segment, long nanosPerChar) {
+        return DataUtil.cyclesToNanos(segmentCycles[segment]) + segmentReplies[segment] * nanosPerChar;
+    }
+}
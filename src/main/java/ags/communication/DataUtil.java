@@ -5,12 +5,11 @@
  */
 package ags.communication;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.ByteBuffer;
-import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.List;
 import java.util.concurrent.locks.LockSupport;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -140,26 +139,16 @@ public class DataUtil {
         if (stream == null) {
             throw new IOException("Unable to find file "+file);
         }
-        int size = 0;
-        try {
-            size = stream.available();
-        } catch (Throwable ex) {
+        // available() is only an estimate (and is often wrong for resources inside a jar), so read to the end
+        try (InputStream in = stream) {
+            byte[] data = in.readAllBytes();
+            System.out.println("Read file " + file);
+            return data;
+        } catch (IOException ex) {
             System.out.println("Error reading file " + file);
             Logger.getLogger(DataUtil.class.getName()).log(Level.SEVERE, null, ex);
             throw new IOException("Error reading " + file);
         }
-        ByteBuffer bb = ByteBuffer.allocate(size);
-        byte[] buf = new byte[256];
-        int read = 0;
-        try {
-            while ((read = stream.read(buf)) > 0) {
-                bb.put(buf, 0, read);
-            }
-        } catch (IOException ex) {
-            Logger.getLogger(DataUtil.class.getName()).log(Level.WARNING, null, ex);
-        }
-        System.out.println("Read file " + file);
-        return bb.array();
     }
 
     /**
@@ -195,156 +184,58 @@ public class DataUtil {
             ex.printStackTrace();
         }
     }
-    // Starts off as True because assembly code starts off with EOR
-    public static boolean XOR_MODE = true;
-
-    // TC7
-    private static boolean isInScreenhole(int i) {
-        // There are 64 locations unused in text modes
-        // There are 512 locations unused in hires modes
-        // Screenholes appear in each bank from x78 thru x7f and xf8 thru xff
-        return ((i & 0x07f) >= 0x078);
-    }
-
-    private static int countReps(byte[] data, int baseAddress, int offset) {
-        if (offset >= data.length - 4) {
-            return -1;
-        }
-        // Just in case we start this within a screenhole, which might not be as efficient!
-        int start = offset;
-// TC8 : Scan ahead to take pattern from end of screenhole
-// Results in a marginal compression increase, but introduces errors (?)
-//        while (isInScreenhole(baseAddress + start) && start < data.length-4) {
-//            start += 2;
-//        }
-        byte b1 = data[start];
-        byte b2 = data[start + 1];
-        int numberReps = -1;
-        int seek = offset+2;
-        while (numberReps < 127 && seek < data.length-2) {
-            if ((b1 == data[seek] || isInScreenhole(baseAddress + seek))
-            &&  (b2 == data[seek+1] || isInScreenhole(baseAddress + seek+1))) {
-                seek += 2;
-                numberReps++;
-            } else {
-                break;
-            }
-        }
-        return numberReps;
-    }
-
     /**
-     * Packbits compression scheme:
-     * first two bytes = base address (little endian format)
-     * Repetitions of:
-     *   Length, Data 1, Data 2 ... Data (length)
-     *   Where 00-7B = Length of uncompressed data (copy Data 1, Data 2... as is)
-     *   and 80-FF = Length of compressed data (length - 0x7E) repetitions of Data 1 and Data 2
-     *   7E = Switch to XOR (for large areas with no changes)
-     *   7F = Switch to write mode (for large areas of same color/pattern)
-     * Until end:
-     * 00 = end;
-     * @param baseAddress destination base address
-     * @param xorFrame Data xor'd against previous frame, should be same size as newFrame (or null, if not available)
-     * @param newFrame New frame to store
-     * @return packed data
+     * Pack data that is stored as-is (no XOR against what the apple already has) in the packbits format
+     * described in PackbitsEncoder.  Unlike packbits, screen holes are not treated as free space, so this is safe to use
+     * for program code and data.
+     * @param baseAddress destination address of the first byte
+     * @param data source data
+     * @param offset starting offset in data
+     * @param length number of bytes to pack
+     * @return packed data, starting with the address and a switch to write mode
      */
-    public static byte[] packbits(int baseAddress, byte[] xorFrame, byte[] newFrame) {
-        boolean XOR_ALLOWED = true;
-        byte[] data = XOR_MODE ? xorFrame : newFrame;
-
-        List<Byte> out = new ArrayList<Byte>();
-        out.add((byte) (0x0ff & baseAddress));
-        out.add((byte) ((0x0ff00 & baseAddress) >> 8));
-        if (xorFrame == null) {
-            // No previous frame to work against, disable XOR support for this frame
-            XOR_ALLOWED = false;
-            // Flip mode to write mode
-            out.add((byte) 0x07F);
-            XOR_MODE = false;
-            data = newFrame;
-        }
-        int offset = 0;
-        while (offset < newFrame.length) {
-            boolean rawData = true;
-            // Pick mode...
-            int xcount = (XOR_ALLOWED ? countReps(xorFrame, baseAddress, offset) : -1);
-            int ccount = countReps(newFrame, baseAddress, offset);
-            if (xcount > -1 || ccount > -1) {
-                rawData = false;        // We are writing out something compressed...
-                int numberReps = 0;
-                if (ccount > xcount || (ccount == xcount && !XOR_MODE)) {
-                    if (XOR_MODE) {
-                        // Flip to data store mode only if feasible
-                        out.add((byte) 0x07F);
-                        XOR_MODE = false;
-                    }
-                    numberReps = ccount;
-                    data = newFrame;
-                } else if (XOR_ALLOWED && (xcount > ccount || (xcount == ccount && XOR_MODE))) {
-                    if (!XOR_MODE) {
-                        // Flip to XOR mode only if feasible and allowed
-                        out.add((byte) 0x07E);
-                        XOR_MODE = true;
-                    }
-                    numberReps = xcount;
-                    data = xorFrame;
+    public static byte[] packbitsStore(int baseAddress, byte[] data, int offset, int length) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(length / 2 + 8);
+        out.write(0x0ff & baseAddress);
+        out.write((0x0ff00 & baseAddress) >> 8);
+        out.write(0x07F);
+        int end = offset + length;
+        int rawStart = offset;
+        int pos = offset;
+        while (pos < end) {
+            int reps = 0;
+            if (pos + 1 < end) {
+                reps = 1;
+                while (reps < 129 && pos + reps * 2 + 1 < end
+                        && data[pos + reps * 2] == data[pos] && data[pos + reps * 2 + 1] == data[pos + 1]) {
+                    reps++;
                 }
-                byte size = (byte) (0x0ff & (128 + numberReps));
-                out.add(size);
-                out.add(data[offset]);
-                out.add(data[offset + 1]);
-                offset += numberReps * 2 + 4;
             }
-
-            // No pattern, just output raw data until
-            // 1) We hit a repeating pattern
-            // 2) We hit end of data
-            // 3) We hit 125 characters
-            if (rawData) {
-                int seek = offset;
-                boolean foundPattern = false;
-                int count = 0;
-                while (seek < data.length && !foundPattern && count < 125) {
-                    // Evaluate if packbits data follows, but switching XOR MODE has a slight penalty
-                    int copyCount = (XOR_MODE ? -1 : 0) + countReps(newFrame, baseAddress, seek);
-                    int xorCount = XOR_ALLOWED ? (XOR_MODE ? 0 : -1) + countReps(xorFrame, baseAddress, seek) : -1;
-                    if (copyCount > -1 || xorCount > -1) {
-                        foundPattern = true;
-                        // Read ahead +1 and see if better compression would occur there (again, with XOR_MODE switch penalty)
-                        int copyCount2 = (XOR_MODE ? -1 : 0) + countReps(newFrame, baseAddress, seek + 1) - 1;
-                        int xorCount2 = XOR_ALLOWED ? (XOR_MODE ? 0 : -1) + countReps(xorFrame, baseAddress, seek + 1) - 1 : -1;
-                        if (copyCount2 > copyCount || xorCount2 > xorCount) {
-                            // If there was a better deal by going up one, use that instead
-                            seek++;
-                            count++;
-                        }
-                    } else {
-                        seek++;
-                        count++;
-                    }
-                }
-                out.add((byte) (0x0ff & count));
-                for (int i = 0; i < count; i++) {
-                    out.add(data[offset + i]);
-                }
-                offset = seek;
+            // A pattern costs 3 bytes, and breaking up a literal run costs another byte later on
+            if (reps >= 3 || (reps == 2 && pos == rawStart)) {
+                writeLiteral(out, data, rawStart, pos - rawStart);
+                out.write(0x080 + reps - 2);
+                out.write(data[pos]);
+                out.write(data[pos + 1]);
+                pos += reps * 2;
+                rawStart = pos;
+            } else {
+                pos++;
             }
         }
+        writeLiteral(out, data, rawStart, end - rawStart);
+        out.write(0);
+        return out.toByteArray();
+    }
 
-        out.add((byte) 0);
-
-//        System.out.println("Packbits: "+input.length+" bytes compressed to "+out.size()+" bytes ("+(100-(100*out.size()/input.length))+"% compression)");
-
-        // Convert back to native array
-        byte[] result = new byte[out.size()];
-
-        for (int i = 0;
-                i < out.size();
-                i++) {
-            result[i] = out.get(i);
+    private static void writeLiteral(ByteArrayOutputStream out, byte[] data, int offset, int length) {
+        while (length > 0) {
+            int count = Math.min(PackbitsEncoder.MAX_LITERAL, length);
+            out.write(count);
+            out.write(data, offset, count);
+            offset += count;
+            length -= count;
         }
-        return result;
     }
 
     public static byte[] xor(byte[] b1, byte[] b2) {
@@ -360,53 +251,4 @@ public class DataUtil {
 
         return out;
     }
-
-    public static int countBeginningZeros(byte[] in) {
-        int index = 0;
-        while (index < in.length && in[index] == 0) {
-            index++;
-        }
-
-        return index;
-    }
-
-    public static int countEndingZeros(byte[] in) {
-        int count = 0;
-        int index = in.length - 1;
-        while (index >= 0 && in[index] == 0) {
-            index--;
-            count++;
-
-        }
-        return count;
-    }
-
-    public static byte[] subarray(byte[] input, int start, int length) {
-        byte[] out = new byte[length];
-        for (int i = 0; i < length; i++) {
-            out[i] = input[start + i];
-        }
-
-        return out;
-    }
-
-    public static byte[] packScreenUpdate(int address, byte[] oldFrame, byte[] newFrame) {
-        if (oldFrame != null) {
-            byte[] diff = xor(oldFrame, newFrame);
-            int z1 = countBeginningZeros(diff);
-            int z2 = countEndingZeros(diff);
-            if (z1 == oldFrame.length) {
-                // Protect against empty frames, nothing to do
-                // So return null and let caller deal with it.
-                return null;
-            }
-            address += z1;
-            // Get frames, truncating off parts at beginning and end that do not change
-            byte[] xf1 = subarray(diff, z1, oldFrame.length - z1 - z2);
-            byte[] nf1 = subarray(newFrame, z1, newFrame.length - z1 - z2);
-            return packbits(address, xf1, nf1);
-        } else {
-            return packbits(address, null, newFrame);
-        }
-    }
 }
@@ -0,0 +1,162 @@
+package ags.communication;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Cost model for the packbits decompressor in the extension module (compression/deflate_main.a).
+ * The apple has no receive buffer, so the host has to know how long the decompressor spends on each
+ * part of the stream: both to pause before sending the next byte and to decide whether compressing
+ * some data is actually faster than sending it raw.
+ * @author brobert
+ */
+public class DecompressorTiming {
+
+    /**
+     * Cycles to copy one byte of a literal run (read, store, checksum)
+     */
+    public static final int LITERAL_CYCLES = 79;
+    /**
+     * Cycles to store one repetition (two bytes) of a pattern
+     */
+    public static final int PATTERN_CYCLES = 113;
+    /**
+     * Cycles to skip over a run of zeros in XOR mode
+     */
+    public static final int SKIP_CYCLES = 50;
+    /**
+     * Cycles to switch between XOR and store modes
+     */
+    public static final int MODE_CYCLES = 40;
+
+    private DecompressorTiming() {
+    }
+
+    /**
+     * Estimate how long the apple needs to receive and decompress a packed stream
+     * @param packed Stream produced by PackbitsEncoder or DataUtil.packbitsStore
+     * @param nanosPerChar Time to send one character at the current speed
+     * @return Estimated time in nanoseconds
+     */
+    public static long streamNanos(byte[] packed, long nanosPerChar) {
+        return streamNanos(packed, packed.length, nanosPerChar, true);
+    }
+
+    /**
+     * Estimate how long the apple needs to receive and decompress a packed stream
+     * @param packed Stream produced by PackbitsEncoder or DataUtil.packbitsStore
+     * @param length Size of the stream in packed
+     * @param nanosPerChar Time to send one character at the current speed
+     * @param xorMode Mode the decompressor is in when the stream starts
+     * @return Estimated time in nanoseconds
+     */
+    public static long streamNanos(byte[] packed, int length, long nanosPerChar, boolean xorMode) {
+        return walk(ByteBuffer.wrap(packed), length, nanosPerChar, xorMode, null);
+    }
+
+    /**
+     * Estimate how long the apple needs to receive and decompress a packed stream
+     * @param packed Stream produced by PackbitsEncoder or DataUtil.packbitsStore, starting at index 0
+     * @param length Size of the stream in packed
+     * @param nanosPerChar Time to send one character at the current speed
+     * @param xorMode Mode the decompressor is in when the stream starts
+     * @return Estimated time in nanoseconds
+     */
+    public static long streamNanos(ByteBuffer packed, int length, long nanosPerChar, boolean xorMode) {
+        return walk(packed, length, nanosPerChar, xorMode, null);
+    }
+
+    /**
+     * Work out when each part of a packed stream can be sent.  Tokens the apple handles as fast as they
+     * arrive are grouped into one segment; a new segment starts wherever the apple needs more time than
+     * the line takes to deliver the previous token.
+     * @param packed Stream produced by PackbitsEncoder or DataUtil.packbitsStore, starting at index 0
+     * @param length Size of the stream in packed
+     * @param nanosPerChar Time to send one character at the current speed
+     * @param xorMode Mode the decompressor is in when the stream starts
+     * @param schedule Filled in with the segments, total time and the mode the stream leaves behind
+     */
+    public static void schedule(ByteBuffer packed, int length, long nanosPerChar, boolean xorMode, PacedStream.Schedule schedule) {
+        schedule.clear(packed);
+        schedule.setTotalNanos(walk(packed, length, nanosPerChar, xorMode, schedule));
+    }
+
+    private static long walk(ByteBuffer packed, int length, long nanosPerChar, boolean xorMode, PacedStream.Schedule schedule) {
+        // Two byte address header
+        long total = 2 * nanosPerChar;
+        int segmentStart = 0;
+        long segmentDue = 0;
+        int i = 2;
+        while (i < length) {
+            if (schedule != null && total != segmentDue + (i - segmentStart) * nanosPerChar) {
+                // The apple is still busy with the last token, so there has to be a gap here
+                schedule.add(segmentStart, i - segmentStart, segmentDue);
+                segmentStart = i;
+                segmentDue = total;
+            }
+            int token = packed.get(i) & 0x0ff;
+            if (token == 0) {
+                total += nanosPerChar;
+                i++;
+                break;
+            } else if (token < 0x080) {
+                if (token >= 0x07E) {
+                    xorMode = (token == 0x07E);
+                    total += modeNanos(nanosPerChar);
+                    i++;
+                } else {
+                    // The length byte, then each byte once the apple has stored the one before it.  At
+                    // speeds where that takes longer than a character, every byte is its own segment.
+                    long byteNanos = Math.max(nanosPerChar, DataUtil.cyclesToNanos(LITERAL_CYCLES));
+                    total += nanosPerChar;
+                    i++;
+                    for (int end = Math.min(i + token, length); i < end; i++) {
+                        if (schedule != null && total != segmentDue + (i - segmentStart) * nanosPerChar) {
+                            schedule.add(segmentStart, i - segmentStart, segmentDue);
+                            segmentStart = i;
+                            segmentDue = total;
+                        }
+                        total += byteNanos;
+                    }
+                }
+            } else {
+                int reps = (token & 0x07f) + 2;
+                boolean skip = xorMode && i + 2 < length && packed.get(i + 1) == 0 && packed.get(i + 2) == 0;
+                total += patternNanos(reps, skip, nanosPerChar);
+                i += 3;
+            }
+        }
+        if (schedule != null) {
+            schedule.add(segmentStart, Math.min(i, length) - segmentStart, segmentDue);
+            schedule.setXorMode(xorMode);
+        }
+        return total;
+    }
+
+    /**
+     * @param count Number of bytes in the literal run
+     * @param nanosPerChar Time to send one character at the current speed
+     * @return Time to send and store a literal run (the length byte and the data)
+     */
+    public static long literalNanos(int count, long nanosPerChar) {
+        return nanosPerChar + count * Math.max(nanosPerChar, DataUtil.cyclesToNanos(LITERAL_CYCLES));
+    }
+
+    /**
+     * @param reps Number of times the two byte pattern is stored
+     * @param skip True if this is a run of zeros in XOR mode, which is skipped over
+     * @param nanosPerChar Time to send one character at the current speed
+     * @return Time to send and store a pattern (three bytes)
+     */
+    public static long patternNanos(int reps, boolean skip, long nanosPerChar) {
+        long cycles = skip ? SKIP_CYCLES : reps * PATTERN_CYCLES;
+        return Math.max(3 * nanosPerChar, DataUtil.cyclesToNanos(cycles) + nanosPerChar);
+    }
+
+    /**
+     * @param nanosPerChar Time to send one character at the current speed
+     * @return Time to switch between XOR and store modes
+     */
+    public static long modeNanos(long nanosPerChar) {
+        return Math.max(nanosPerChar, DataUtil.cyclesToNanos(MODE_CYCLES));
+    }
+}
@@ -1,16 +1,17 @@
 package ags.communication;
 
 import ags.controller.Launcher;
+import ags.controller.Session;
 import ags.script.BadVariableValueException;
 import ags.script.Variable;
 import com.fazecast.jSerialComm.SerialPort;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
 import java.nio.ByteBuffer;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -69,17 +70,9 @@ public class GenericHost {
         }
     }
     /**
-     * Active com port
+     * Connection to the apple
      */
-    private SerialPort port = null;
-    /**
-     * input stream for com port
-     */
-    InputStream in = null;
-    /**
-     * output stream for com port
-     */
-    OutputStream out = null;
+    Transport transport = null;
     /**
      * Most recently set baud rate
      */
@@ -91,27 +84,27 @@ public class GenericHost {
     /*
      * Legacy mode means we are talking to a much older ][ which doens't like lowercase.
      */
-    static boolean legacyMode = false;
+    boolean legacyMode = false;
     
     /**
      * Bootstrap phase flag - when true, use conservative timing for monitor input
      */
-    private static boolean isBootstrapPhase = true;
+    private boolean isBootstrapPhase = true;
 
-    public static void setLegacyMode(boolean mode) {
+    public void setLegacyMode(boolean mode) {
         legacyMode = mode;
     }
 
-    public static boolean isLegacyMode() {
+    public boolean isLegacyMode() {
         return legacyMode;
     }
     
-    public static void setBootstrapPhase(boolean bootstrap) {
+    public void setBootstrapPhase(boolean bootstrap) {
         isBootstrapPhase = bootstrap;
         System.out.println("Bootstrap phase set to: " + bootstrap);
     }
     
-    public static boolean isBootstrapPhase() {
+    public boolean isBootstrapPhase() {
         return isBootstrapPhase;
     }
     /**
@@ -122,14 +115,34 @@ public class GenericHost {
     public static final String HEX_BYTES_PER_LINE = "hexBytesPerLine";
     private boolean echoCheck;
 
-    static {
-        try {
-            (new Variable(HEX_BYTES_PER_LINE)).setValue(String.valueOf(80));
-        } catch (BadVariableValueException ex) {
-            ex.printStackTrace();
-        }
-    }
-    static GenericHost instance;
+    private TransferMetrics metrics = null;
+    /**
+     * Bytes received by the reader thread (started on first use)
+     */
+    private volatile ReceiveBuffer received = null;
+    /**
+     * Size of the receive ring
+     */
+    private static final int RECEIVE_BUFFER_SIZE = 65536;
+    /**
+     * How long readInput waits for the first byte, like a serial port read timeout
+     */
+    private static final long READ_TIMEOUT_NANOS = 50000000L;
+    /**
+     * Longest a waiter sleeps before checking whether the user stopped the program
+     */
+    private static final long STATUS_CHECK_NANOS = 100000000L;
+    /**
+     * Compiled patterns for expect(), so repeated waits for the same text don't rebuild them
+     */
+    private final Map<String, StreamMatcher> appleTextMatchers = new HashMap<>();
+    private final Map<String, StreamMatcher> rawMatchers = new HashMap<>();
+    private final StreamMatcher[] promptMatchers = new StreamMatcher[128];
+    private static final int MATCHER_CACHE_SIZE = 64;
+    /**
+     * Input being examined by a matcher
+     */
+    private final byte[] matchScratch = new byte[256];
     String expectedPrompt = null;
 
     public String getExpectedPrompt() {
@@ -141,7 +154,12 @@ public class GenericHost {
     }
 
     public GenericHost() {
-        instance = this;
+        Session.current().setHost(this);
+        try {
+            (new Variable(HEX_BYTES_PER_LINE)).setValue(String.valueOf(80));
+        } catch (BadVariableValueException ex) {
+            ex.printStackTrace();
+        }
     }
 
     /**
@@ -150,20 +168,25 @@ public class GenericHost {
      * @param port Open serial port ready to use
      */
     public GenericHost(SerialPort port) {
-        this();
+        this(new SerialTransport(port));
         setEchoCheck(true);
-        this.port = port;
-        try {
-            in = port.getInputStream();
-            out = port.getOutputStream();
-            this.port.setDTR();
-        } catch (Throwable ex) {
-            ex.printStackTrace();
-        }
     }
 
+    /**
+     * Creates a new instance of GenericHost
+     *
+     * @param transport Connection to the apple
+     */
+    public GenericHost(Transport transport) {
+        this();
+        this.transport = transport;
+    }
+
+    /**
+     * @return Host of the current session
+     */
     public static GenericHost getInstance() {
-        return instance;
+        return Session.current().getHost();
     }
 
     /**
@@ -181,18 +204,31 @@ public class GenericHost {
 
     public void setBaud(int baudRate) {
         try {
-            port.setBaudRate(baudRate);
-            port.setNumDataBits(8);
-            port.setNumStopBits(1);
-            port.setParity(SerialPort.NO_PARITY);
-            port.setFlowControl(currentFlow.val);
-            port.setDTR();
+            transport.configure(baudRate, currentFlow);
             currentBaud = baudRate;
         } catch (Exception ex) {
             ex.printStackTrace();
         }
     }
 
+    /**
+     * @return Name identifying the connection to the apple, used to remember settings per link
+     */
+    public String getLinkName() {
+        return transport == null ? null : transport.getLinkName();
+    }
+
+    /**
+     * @return Traffic and error counters for this connection
+     */
+    public TransferMetrics getMetrics() {
+        if (metrics == null) {
+            String metricsName = transport == null ? null : transport.getMetricsName();
+            metrics = TransferMetrics.forLink(metricsName == null ? "unknown" : metricsName);
+        }
+        return metrics;
+    }
+
     public void setFlowControl(FlowControl f) {
         currentFlow = f;
         System.out.println("Local flow control set to " + f);
@@ -275,7 +311,7 @@ public class GenericHost {
             waitTime = Math.max(waitTime, cycleTime) * 2;
 //            waitTime += DataUtil.cyclesToNanos(100);
             writeSlowly(s);
-            out.flush();
+            flush();
             // Add some additional wait time after every line, say 1000 cycles per character
             long lineWait = DataUtil.cyclesToNanos(1000 * (bytes.length + 1));
             DataUtil.nanosleep(lineWait);
@@ -361,35 +397,14 @@ public class GenericHost {
      */
     public boolean expectBytes(byte data[], int timeout)
             throws IOException {
-        int length = Math.max(80, Math.max(inputAvailable(), data.length * 2));
-        ByteBuffer bb = ByteBuffer.allocate(length);
-//        System.out.println("setting receive buffer to "+length+" bytes");
-        while (timeout > 0) {
-            Launcher.checkRuntimeStatus();
-            while (inputAvailable() == 0 && timeout > 0) {
-                Launcher.checkRuntimeStatus();
-                timeout -= 1;
-                DataUtil.wait(1);
-            }
-
-            if (timeout > 0) {
-                byte receivedData[] = readBytes();
-//                StringBuffer test = new StringBuffer();
-//                for (int i=0 ; i < receivedData.length; i++) {
-//                    test.append((char) (receivedData[i]&0x07f));
-//                    test.append("("+(receivedData[i] & 0x0ff)+") ");
-//                }
-//                System.out.println("read "+receivedData.length+" bytes" + test.toString());
-                bb.put(receivedData);
-                if (DataUtil.bufferContains(bb, data)) {
-                    return true;
-                }
-            }
+        StreamMatcher matcher = new StreamMatcher(false, data);
+        if (awaitMatch(matcher, timeout) >= 0) {
+            return true;
         }
-        if (bb.position() == 0) {
+        if (matcher.getCount() == 0) {
             throw new IOException("expected " + Arrays.toString(data) + " but timed out");
         } else {
-            throw new IOException("Expected " + Arrays.toString(data) + " but got " + Arrays.toString(bb.array()));
+            throw new IOException("Expected " + Arrays.toString(data) + " but got " + Arrays.toString(matcher.getRecent()));
         }
     }
 
@@ -406,25 +421,22 @@ public class GenericHost {
      */
     public boolean expect(String string, int timeout, boolean noConversion)
             throws IOException {
-        StringBuffer searchString = new StringBuffer();
-        while (timeout > 0) {
-            Launcher.checkRuntimeStatus();
-            for (; inputAvailable() == 0 && timeout > 0; timeout--) {
-                DataUtil.wait(1);
-            }
-            String receivedString = readString();
-            if (!noConversion) {
-                receivedString = DataUtil.convertFromAppleText(receivedString);
-            }
-            searchString.append(receivedString);
-            if (searchString.toString().contains(string)) {
-                return true;
+        Map<String, StreamMatcher> cache = noConversion ? rawMatchers : appleTextMatchers;
+        StreamMatcher matcher = cache.get(string);
+        if (matcher == null) {
+            if (cache.size() >= MATCHER_CACHE_SIZE) {
+                cache.clear();
             }
+            matcher = new StreamMatcher(!noConversion, string);
+            cache.put(string, matcher);
         }
-        if (searchString.equals("")) {
+        if (awaitMatch(matcher, timeout) >= 0) {
+            return true;
+        }
+        if (matcher.getCount() == 0) {
             throw new IOException("expected " + string + " but timed out");
         } else {
-            throw new IOException("Expected " + string + " but got " + searchString.toString());
+            throw new IOException("Expected " + string + " but got " + recentText(matcher, !noConversion));
         }
     }
 
@@ -432,33 +444,84 @@ public class GenericHost {
      * Expect a character echo but be tolerant of monitor prompts like * and ]
      */
     public boolean expectCharWithPromptTolerance(String expectedChar, int timeout) throws IOException {
-        StringBuffer searchString = new StringBuffer();
-        while (timeout > 0) {
-            Launcher.checkRuntimeStatus();
-            for (; inputAvailable() == 0 && timeout > 0; timeout--) {
-                DataUtil.wait(1);
+        // Pattern 0 is the echo, the rest are the prompts
+        char c = expectedChar.charAt(0);
+        StreamMatcher matcher = c < promptMatchers.length && expectedChar.length() == 1 ? promptMatchers[c] : null;
+        if (matcher == null) {
+            matcher = new StreamMatcher(true, expectedChar, "*", "]", ">", "<");
+            if (c < promptMatchers.length && expectedChar.length() == 1) {
+                promptMatchers[c] = matcher;
             }
-            String receivedString = readString();
-            receivedString = DataUtil.convertFromAppleText(receivedString);
-            searchString.append(receivedString);
-            
-            String received = searchString.toString();
-            // Check if we got the expected character (echo)
-            if (received.contains(expectedChar)) {
-                return true;
+        }
+        matcher.reset();
+        ReceiveBuffer buffer = receiver();
+        boolean prompt = false;
+        boolean other = false;
+        long deadline = System.nanoTime() + timeout * 1000000L;
+        while (awaitInput(1, deadline)) {
+            int size = buffer.drain(matchScratch, 0, matchScratch.length);
+            for (int i = 0; i < size; i++) {
+                int found = matcher.feed(matchScratch[i]);
+                if (found == 0) {
+                    // Got the expected character (echo)
+                    discardInput();
+                    return true;
+                } else if (found > 0) {
+                    prompt = true;
+                } else if ((matchScratch[i] & 0x07f) > ' ') {
+                    other = true;
+                }
             }
             // Also accept if we only got monitor prompts (*, ], etc) - this means the character was processed
-            if (received.trim().matches("[*\\]\\>\\<]+")) {
-                return true; // Character was processed, just got prompt back
+            if (prompt && !other) {
+                discardInput();
+                return true;
             }
         }
-        if (searchString.length() == 0) {
+        if (matcher.getCount() == 0) {
             throw new IOException("expected echo of " + expectedChar + " but timed out");
         } else {
-            throw new IOException("Expected echo of " + expectedChar + " but got " + searchString.toString());
+            throw new IOException("Expected echo of " + expectedChar + " but got " + recentText(matcher, true));
         }
     }
 
+    /**
+     * Wait for input containing any of the patterns a matcher is looking for.
+     * Input is examined as it arrives without being copied or converted; once a pattern is found
+     * the rest of the input received so far is thrown away, as readBytes would.
+     *
+     * @param matcher Patterns to look for (reset before use)
+     * @param timeout max time (in milliseconds) to wait
+     * @throws java.io.IOException if there is a problem with the port
+     * @return Number of the pattern found, or -1 if none arrived in time
+     */
+    public int awaitMatch(StreamMatcher matcher, int timeout)
+            throws IOException {
+        matcher.reset();
+        ReceiveBuffer buffer = receiver();
+        long deadline = System.nanoTime() + timeout * 1000000L;
+        while (awaitInput(1, deadline)) {
+            int found = matcher.feed(matchScratch, 0, buffer.drain(matchScratch, 0, matchScratch.length));
+            if (found >= 0) {
+                discardInput();
+                return found;
+            }
+        }
+        return -1;
+    }
+
+    private void discardInput() throws IOException {
+        ReceiveBuffer buffer = receiver();
+        while (buffer.drain(matchScratch, 0, matchScratch.length) > 0) {
+            // Already examined or not wanted
+        }
+    }
+
+    private static String recentText(StreamMatcher matcher, boolean appleText) {
+        String recent = DataUtil.bytesToString(matcher.getRecent());
+        return appleText ? DataUtil.convertFromAppleText(recent) : recent;
+    }
+
     /**
      * Get all avail. com input data as a string
      *
@@ -470,6 +533,57 @@ public class GenericHost {
         return DataUtil.bytesToString(readBytes());
     }
 
+    /**
+     * Wait for a single byte of input
+     *
+     * @param timeout max time (in milliseconds) to wait for data
+     * @throws java.io.IOException if there is a problem with the port
+     * @return byte value (0-255) or -1 if nothing arrived in time
+     */
+    public int readByte(int timeout)
+            throws IOException {
+        if (!awaitInput(1, System.nanoTime() + timeout * 1000000L)) {
+            return -1;
+        }
+        return receiver().poll();
+    }
+
+    /**
+     * Wait until some input has arrived.  The caller wakes up as soon as the bytes are received.
+     *
+     * @param count Number of bytes wanted
+     * @param deadline System.nanoTime() value at which to give up
+     * @throws java.io.IOException if there is a problem with the port
+     * @return true if at least count bytes are available
+     */
+    public boolean awaitInput(int count, long deadline)
+            throws IOException {
+        ReceiveBuffer buffer = receiver();
+        while (true) {
+            Launcher.checkRuntimeStatus();
+            if (buffer.await(count, Math.min(deadline, System.nanoTime() + STATUS_CHECK_NANOS))) {
+                return true;
+            }
+            if (deadline - System.nanoTime() <= 0) {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Wait until the apple stops sending (no new bytes for a while)
+     *
+     * @param quietNanos How long the line has to be idle
+     * @throws java.io.IOException if there is a problem with the port
+     */
+    public void awaitQuiet(long quietNanos)
+            throws IOException {
+        ReceiveBuffer buffer = receiver();
+        for (int seen = buffer.available(); buffer.await(seen + 1, System.nanoTime() + quietNanos);) {
+            seen = buffer.available();
+        }
+    }
+
     /**
      * Get all avail. com input data as an array of bytes
      *
@@ -488,8 +602,8 @@ public class GenericHost {
      * @throws IOException If the stream cannot be flushed
      */
     public void flush() throws IOException {
-        if (out != null) {
-            out.flush();
+        if (transport != null) {
+            transport.flush();
         }
     }
 
@@ -517,7 +631,7 @@ public class GenericHost {
         for (int i = 0; i < bytes.length; i++) {
             waitToSend(100);
             writeOutput(bytes, i, 1);
-            out.flush();
+            flush();
             DataUtil.wait(waitTime);
         }
     }
@@ -555,11 +669,42 @@ public class GenericHost {
         for (int i = 0; i < bytes.length; i++) {
             waitToSend(50);
             writeOutput(bytes, i, 1);
-            out.flush();
+            flush();
             DataUtil.wait(waitTime);
         }
     }
 
+    /**
+     * Write a complete driver command in as few writes as possible. Bytes the driver can consume at
+     * least as fast as the line delivers them go out as one burst; where the driver needs longer than
+     * a character time, each byte is followed by a pause covering the difference.
+     *
+     * @param frame Command to send
+     * @throws java.io.IOException If the data could not be sent
+     */
+    public void writeFrame(CommandFrame frame) throws IOException {
+        long charNanos = DataUtil.nanosPerCharAtSpeed(currentBaud);
+        int burstStart = 0;
+        waitToSend(50);
+        for (int s = 0; s < frame.getSegmentCount(); s++) {
+            long extra = frame.getSegmentNanos(s, charNanos) - charNanos;
+            if (extra <= 0) {
+                continue;
+            }
+            int start = frame.getSegmentStart(s);
+            int end = frame.getSegmentEnd(s);
+            writeOutput(frame.slice(burstStart, start));
+            for (int i = start; i < end; i++) {
+                writeOutput(frame.slice(i, i + 1));
+                flush();
+                DataUtil.nanosleep(extra);
+            }
+            burstStart = end;
+        }
+        writeOutput(frame.slice(burstStart, frame.getLength()));
+        flush();
+    }
+
     //-------------------------------------
     //--- Raw i/o routines, isolated for better debugging and flow control support
     //-------------------------------------
@@ -570,11 +715,62 @@ public class GenericHost {
      * @return Number of available bytes of input in buffer
      */
     public int inputAvailable() throws IOException {
-//        System.out.println("inputAvailable - start");
-        int avail = 0;
-        avail = in.available();
-//        System.out.println("inputAvailable = "+avail);
-        return avail;
+        return receiver().available();
+    }
+
+    /**
+     * Close the connection to the apple.  The reader thread stops once the transport is closed.
+     * @throws java.io.IOException If the connection could not be closed
+     */
+    public void disconnect() throws IOException {
+        if (transport != null) {
+            transport.close();
+        }
+    }
+
+    /**
+     * Get the receive buffer, starting the reader thread for this connection the first time.
+     * The reader thread blocks on the transport and hands every byte to the buffer as soon as it arrives.
+     * Transports that fill a buffer by themselves don't need one.
+     *
+     * @return Receive buffer
+     */
+    ReceiveBuffer receiver() {
+        ReceiveBuffer buffer = received;
+        if (buffer == null) {
+            synchronized (this) {
+                buffer = received;
+                if (buffer == null) {
+                    buffer = transport.getReceiveBuffer();
+                    if (buffer == null) {
+                        buffer = new ReceiveBuffer(RECEIVE_BUFFER_SIZE);
+                        startReader(transport, buffer);
+                    }
+                    received = buffer;
+                }
+            }
+        }
+        return buffer;
+    }
+
+    private void startReader(Transport source, ReceiveBuffer buffer) {
+        TransferMetrics counters = getMetrics();
+        Thread reader = new Thread(() -> {
+            ByteBuffer chunk = ByteBuffer.allocate(4096);
+            try {
+                while (true) {
+                    chunk.clear();
+                    if (source.read(chunk) > 0) {
+                        buffer.put(chunk.array(), 0, chunk.position());
+                        counters.received(chunk.position());
+                    }
+                }
+            } catch (IOException ex) {
+                buffer.fail(ex);
+            }
+        }, "Receive " + getLinkName());
+        reader.setDaemon(true);
+        reader.start();
     }
 
     /**
@@ -586,7 +782,13 @@ public class GenericHost {
      */
     int readInput(byte[] buffer) throws IOException {
 //        System.out.println("Reading data");
-        int size = in.read(buffer);
+        if (buffer.length == 0) {
+            // Nothing to wait for (readBytes with an empty buffer just clears the input)
+            return 0;
+        }
+        ReceiveBuffer received = receiver();
+        received.await(1, System.nanoTime() + READ_TIMEOUT_NANOS);
+        int size = received.drain(buffer, 0, buffer.length);
         if (size != buffer.length) {
             System.out.println("Buffer was of size " + buffer.length + " but we got back " + size);
         }
@@ -618,26 +820,22 @@ public class GenericHost {
      * Ignores any buffered data from previous operations
      */
     public boolean expectLastByte(byte expectedByte, int timeout) throws IOException {
-        long startTime = System.currentTimeMillis();
+        long deadline = System.nanoTime() + timeout * 1000000L;
         byte lastByte = 0;
         boolean receivedData = false;
         
-        while ((System.currentTimeMillis() - startTime) < timeout) {
-            Launcher.checkRuntimeStatus();
-            if (inputAvailable() > 0) {
-                byte[] allData = readBytes(); // Read all available data
-                if (allData.length > 0) {
-                    lastByte = allData[allData.length - 1]; // Only care about the last byte
-                    receivedData = true;
-                    if (lastByte == expectedByte) {
-                        return true; // Success
-                    } else {
-                        throw new IOException(String.format("Expected %02X but got %02X (last of %d bytes)", 
-                            expectedByte & 0xFF, lastByte & 0xFF, allData.length));
-                    }
+        while (awaitInput(1, deadline)) {
+            byte[] allData = readBytes(); // Read all available data
+            if (allData.length > 0) {
+                lastByte = allData[allData.length - 1]; // Only care about the last byte
+                receivedData = true;
+                if (lastByte == expectedByte) {
+                    return true; // Success
+                } else {
+                    throw new IOException(String.format("Expected %02X but got %02X (last of %d bytes)", 
+                        expectedByte & 0xFF, lastByte & 0xFF, allData.length));
                 }
             }
-            Thread.yield();
         }
         
         if (receivedData) {
@@ -652,29 +850,25 @@ public class GenericHost {
     public void writeByteAndExpectResponse(byte dataByte, byte expectedResponse, int timeout) throws IOException {
         // Write the byte
         writeOutput(dataByte);
-        out.flush();
+        flush();
         
         // Wait for response with timeout - only check last byte received
-        long startTime = System.currentTimeMillis();
+        long deadline = System.nanoTime() + timeout * 1000000L;
         byte lastByte = 0;
         boolean receivedData = false;
         
-        while ((System.currentTimeMillis() - startTime) < timeout) {
-            Launcher.checkRuntimeStatus();
-            if (inputAvailable() > 0) {
-                byte[] allData = readBytes(); // Read all available data
-                if (allData.length > 0) {
-                    lastByte = allData[allData.length - 1]; // Only care about the last byte
-                    receivedData = true;
-                    if (lastByte == expectedResponse) {
-                        return; // Success
-                    } else {
-                        throw new IOException(String.format("Expected response %02X but got %02X (last of %d bytes)", 
-                            expectedResponse & 0xFF, lastByte & 0xFF, allData.length));
-                    }
+        while (awaitInput(1, deadline)) {
+            byte[] allData = readBytes(); // Read all available data
+            if (allData.length > 0) {
+                lastByte = allData[allData.length - 1]; // Only care about the last byte
+                receivedData = true;
+                if (lastByte == expectedResponse) {
+                    return; // Success
+                } else {
+                    throw new IOException(String.format("Expected response %02X but got %02X (last of %d bytes)", 
+                        expectedResponse & 0xFF, lastByte & 0xFF, allData.length));
                 }
             }
-            Thread.yield();
         }
         
         if (receivedData) {
@@ -698,7 +892,7 @@ public class GenericHost {
     void waitToSend(int timeout) throws IOException {
         if (currentFlow == FlowControl.hardware) {
 //            System.out.println("Waiting for CTS");
-            while (!port.getCTS() && timeout > 0) {
+            while (!transport.isClearToSend() && timeout > 0) {
                 DataUtil.wait(10);
                 timeout -= 10;
             }
@@ -726,6 +920,32 @@ public class GenericHost {
         if (buffer == null || offset >= buffer.length || buffer.length == 0 || length == 0) {
             return;
         }
-        out.write(buffer, offset, length);
+        transport.write(ByteBuffer.wrap(buffer, offset, length));
+        getMetrics().sent(length);
+    }
+
+    /**
+     * Write several buffers to host in one gathering write, without copying them together first
+     *
+     * @param buffers Data to send (their positions are advanced)
+     * @throws java.io.IOException If there was trouble writing to the port
+     */
+    public void writeOutput(ByteBuffer... buffers) throws IOException {
+        int length = 0;
+        for (ByteBuffer b : buffers) {
+            length += b.remaining();
+        }
+        if (LOG_OUTPUT) {
+            try (FileOutputStream f = new FileOutputStream(LOG_FILE, true)) {
+                for (ByteBuffer b : buffers) {
+                    f.getChannel().write(b.duplicate());
+                }
+            }
+        }
+        if (length == 0) {
+            return;
+        }
+        transport.write(buffers);
+        getMetrics().sent(length);
     }
 }
\ No newline at end of file
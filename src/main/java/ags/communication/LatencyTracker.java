@@ -0,0 +1,161 @@
+package ags.communication;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Time from a keypress on the apple until the screen shows the result, split into the stages of the
+ * selector's drawing pipeline so it is clear whether drawing, dithering, encoding or the serial line
+ * dominates.  The stages of one keypress are marked by the session's thread as it goes (so the marks
+ * need no locking); when the screen is done the time spent in each stage goes into log2 histograms
+ * kept per display type, which are read through TransferMetrics.
+ * @author brobert
+ */
+public class LatencyTracker {
+
+    /**
+     * Points in the pipeline, in order.  Each is marked when that stage is finished.
+     */
+    public static enum Stage {
+        /**
+         * Key came in from the apple (awaitKey)
+         */
+        KEY,
+        /**
+         * Application redrew its widgets (handleKeypress)
+         */
+        REDRAW,
+        /**
+         * Screen converted to the apple's format (IVirtualScreen.getBuffer)
+         */
+        CONVERT,
+        /**
+         * Changes packed for the decompressor (packScreenUpdate)
+         */
+        ENCODE,
+        /**
+         * Last byte sent and taken by the apple (sendCompressedData)
+         */
+        WIRE,
+        /**
+         * New page displayed (buffered screens only)
+         */
+        FLIP
+    };
+    private static final Stage[] STAGES = Stage.values();
+    private static final int BUCKETS = 32;
+    // Slot after the stages for the time from key to the last stage marked
+    private static final int TOTAL = STAGES.length;
+    private final long[] marks = new long[STAGES.length];
+    private boolean pending = false;
+    private final Map<String, AtomicLongArray> histograms = new ConcurrentHashMap<String, AtomicLongArray>();
+
+    /**
+     * A key arrived: start timing it (dropping a key that never got as far as the screen)
+     */
+    public void keyReceived() {
+        for (int i = 0; i < marks.length; i++) {
+            marks[i] = 0;
+        }
+        marks[Stage.KEY.ordinal()] = System.nanoTime();
+        pending = true;
+    }
+
+    /**
+     * A stage of the current key's update is done (ignored if no key is being timed)
+     * @param stage Stage that finished
+     */
+    public void mark(Stage stage) {
+        if (pending) {
+            marks[stage.ordinal()] = System.nanoTime();
+        }
+    }
+
+    /**
+     * The current key's update is on the screen: record it
+     * @param display Display type it was drawn with
+     */
+    public void finish(String display) {
+        if (!pending) {
+            return;
+        }
+        pending = false;
+        AtomicLongArray histogram = histograms.get(display);
+        if (histogram == null) {
+            histograms.putIfAbsent(display, new AtomicLongArray((STAGES.length + 1) * BUCKETS));
+            histogram = histograms.get(display);
+        }
+        long previous = marks[0];
+        for (int i = 1; i < STAGES.length; i++) {
+            // Stages a screen doesn't have (no flip, no encoding when sent raw) aren't counted
+            if (marks[i] != 0) {
+                histogram.incrementAndGet(i * BUCKETS + bucket(marks[i] - previous));
+                previous = marks[i];
+            }
+        }
+        histogram.incrementAndGet(TOTAL * BUCKETS + bucket(previous - marks[0]));
+    }
+
+    private static int bucket(long nanos) {
+        return Math.min(64 - Long.numberOfLeadingZeros(Math.max(0, nanos) / 1000L), BUCKETS - 1);
+    }
+
+    /**
+     * @param display Display type
+     * @param stage Stage, or null for the whole time from key to screen
+     * @return Count per bucket, bucket n covering [2^(n-1), 2^n) microseconds
+     */
+    public long[] getHistogram(String display, Stage stage) {
+        long[] counts = new long[BUCKETS];
+        AtomicLongArray histogram = histograms.get(display);
+        if (histogram != null) {
+            int base = (stage == null ? TOTAL : stage.ordinal()) * BUCKETS;
+            for (int i = 0; i < BUCKETS; i++) {
+                counts[i] = histogram.get(base + i);
+            }
+        }
+        return counts;
+    }
+
+    /**
+     * @return One line per display type: keys timed, then median and 99th percentile for the whole
+     * update and the median of each stage
+     */
+    public String[] getSummaries() {
+        String[] display = histograms.keySet().toArray(new String[0]);
+        String[] summaries = new String[display.length];
+        for (int d = 0; d < display.length; d++) {
+            long[] total = getHistogram(display[d], null);
+            StringBuilder summary = new StringBuilder(display[d]).append(": ").append(count(total)).append(" keys")
+                    .append(" p50 ").append(TransferMetrics.percentile(total, 50) / 1000).append("ms")
+                    .append(" p99 ").append(TransferMetrics.percentile(total, 99) / 1000).append("ms (");
+            String separator = "";
+            for (int i = 1; i < STAGES.length; i++) {
+                long[] stage = getHistogram(display[d], STAGES[i]);
+                if (count(stage) > 0) {
+                    summary.append(separator).append(STAGES[i].name().toLowerCase()).append(" ")
+                            .append(TransferMetrics.percentile(stage, 50) / 1000).append("ms");
+                    separator = " ";
+                }
+            }
+            summaries[d] = summary.append(")").toString();
+        }
+        return summaries;
+    }
+
+    private static long count(long[] histogram) {
+        long total = 0;
+        for (long count : histogram) {
+            total += count;
+        }
+        return total;
+    }
+
+    /**
+     * Forget every recorded key
+     */
+    public void reset() {
+        histograms.clear();
+    }
+}
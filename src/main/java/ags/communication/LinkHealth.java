@@ -0,0 +1,38 @@
+package ags.communication;
+
+/**
+ * When the driver last gave an answer that checked out, and whether anything since gives reason to doubt it
+ * is still listening.  Asking it for "hi" before every command costs a round trip (and a second when it
+ * doesn't answer), so the host only asks when the link has been quiet for a while, after an error, or after
+ * the apple was handed to other code ('E' or 'F') that may not have come back.  Otherwise the first reply
+ * to the command itself is the check, and the command's own error handling deals with a missing one.
+ * @author brobert
+ */
+public class LinkHealth {
+
+    private long lastConfirmed = 0;
+    private boolean doubtful = true;
+
+    /**
+     * The driver just answered correctly
+     */
+    public void confirmed() {
+        lastConfirmed = System.nanoTime();
+        doubtful = false;
+    }
+
+    /**
+     * Something went wrong, or the driver is no longer in control
+     */
+    public void doubt() {
+        doubtful = true;
+    }
+
+    /**
+     * @param idleNanos How long the driver can be trusted without hearing from it
+     * @return true if the driver should be asked whether it is there before the next command
+     */
+    public boolean needsProbe(long idleNanos) {
+        return doubtful || System.nanoTime() - lastConfirmed > idleNanos;
+    }
+}
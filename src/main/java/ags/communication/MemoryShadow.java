@@ -0,0 +1,173 @@
+package ags.communication;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * What the host has put in the apple's 64k of memory, and which of it can still be relied on.
+ * Every byte the driver confirms storing is recorded here and marked valid; anything that may have
+ * changed memory behind the host's back (running a program, a subroutine, switching banks, a confused
+ * driver) marks bytes invalid again.  Invalid bytes keep their last known value so they can be checked
+ * against the apple later instead of being thrown away.  The zero page, the stack and the screen holes of
+ * text page 1 are used by the driver, the monitor and the serial card's firmware all the time, and the I/O
+ * space doesn't hold what is written to it, so nothing stored there is ever considered valid.
+ * @author brobert
+ */
+public class MemoryShadow {
+
+    /**
+     * Size of the apple's address space
+     */
+    public static final int SIZE = 0x10000;
+    /**
+     * End of the memory the driver and firmware write on their own (zero page and stack)
+     */
+    private static final int VOLATILE_END = 0x0200;
+    /**
+     * Text page 1, whose last 8 bytes of every 128 are scratch space for the peripheral cards
+     */
+    private static final int SCREEN_HOLES_START = 0x0400;
+    private static final int SCREEN_HOLES_END = 0x0800;
+    /**
+     * Soft switches and slot ROM, which never read back what was written
+     */
+    private static final int IO_START = 0xC000;
+    private static final int IO_END = 0xD000;
+    private final byte[] memory = new byte[SIZE];
+    // One bit per byte of memory
+    private final long[] valid = new long[SIZE / 64];
+    // Bytes stored at some point, valid or not
+    private final long[] known = new long[SIZE / 64];
+
+    /**
+     * @param address Apple address
+     * @return true if the byte there is known to hold getValue(address)
+     */
+    public boolean isValid(int address) {
+        return address >= 0 && address < SIZE && (valid[address >> 6] & (1L << address)) != 0;
+    }
+
+    /**
+     * @param address Apple address
+     * @return Last value stored there (whether or not it is still valid)
+     */
+    public byte getValue(int address) {
+        return memory[address & (SIZE - 1)];
+    }
+
+    /**
+     * Record bytes the apple has confirmed storing
+     * @param addressStart Apple address of data[0]
+     * @param data Data that was stored, indexed from the start of the buffer
+     * @param offset First byte stored
+     * @param length Number of bytes stored
+     */
+    public void store(int addressStart, ByteBuffer data, int offset, int length) {
+        for (int i = offset; i < offset + length; i++) {
+            int address = addressStart + i;
+            if (address < SIZE && !isVolatile(address)) {
+                memory[address] = data.get(i);
+                valid[address >> 6] |= 1L << address;
+                known[address >> 6] |= 1L << address;
+            }
+        }
+    }
+
+    private static boolean isVolatile(int address) {
+        return address < VOLATILE_END
+                || (address >= SCREEN_HOLES_START && address < SCREEN_HOLES_END && (address & 0x07f) >= 0x078)
+                || (address >= IO_START && address < IO_END);
+    }
+
+    /**
+     * Forget that a range of memory is known (its last values are kept)
+     * @param address First address
+     * @param length Number of bytes
+     */
+    public void invalidate(int address, int length) {
+        int end = Math.min(SIZE, address + length);
+        for (int a = Math.max(0, address); a < end; a++) {
+            valid[a >> 6] &= ~(1L << a);
+        }
+    }
+
+    /**
+     * Forget that anything in memory is known
+     */
+    public void invalidateAll() {
+        Arrays.fill(valid, 0);
+    }
+
+    /**
+     * Find the first byte that has to be sent
+     * @param addressStart Apple address of data[0]
+     * @param data Data to be stored, indexed from the start of the buffer
+     * @param offset Where to start looking
+     * @param end End of the data to look at
+     * @return Offset of the first byte that isn't known to be in memory already, or end
+     */
+    public int findDifference(int addressStart, ByteBuffer data, int offset, int end) {
+        for (int i = offset; i < end; i++) {
+            int address = addressStart + i;
+            if (!isValid(address) || memory[address] != data.get(i)) {
+                return i;
+            }
+        }
+        return end;
+    }
+
+    /**
+     * Find the first byte that does not have to be sent
+     * @param addressStart Apple address of data[0]
+     * @param data Data to be stored, indexed from the start of the buffer
+     * @param offset Where to start looking
+     * @param end End of the data to look at
+     * @return Offset of the first byte that is known to be in memory already, or end
+     */
+    public int findMatch(int addressStart, ByteBuffer data, int offset, int end) {
+        for (int i = offset; i < end; i++) {
+            int address = addressStart + i;
+            if (isValid(address) && memory[address] == data.get(i)) {
+                return i;
+            }
+        }
+        return end;
+    }
+
+    /**
+     * Check whether the apple had this data at some point, even if it may have changed since
+     * @param addressStart Apple address of data[0]
+     * @param data Data to be stored, indexed from the start of the buffer
+     * @param offset First byte to look at
+     * @param end End of the data to look at
+     * @return true if every byte was stored before and its last known value is the same
+     */
+    public boolean wasStored(int addressStart, ByteBuffer data, int offset, int end) {
+        for (int i = offset; i < end; i++) {
+            int address = addressStart + i;
+            if (address < 0 || address >= SIZE || (known[address >> 6] & (1L << address)) == 0
+                    || memory[address] != data.get(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param addressStart Apple address of data[0]
+     * @param data Data to be stored, indexed from the start of the buffer
+     * @param offset First byte to look at
+     * @param end End of the data to look at
+     * @return Number of bytes that aren't known to be in memory already
+     */
+    public int countDifferences(int addressStart, ByteBuffer data, int offset, int end) {
+        int count = 0;
+        for (int i = offset; i < end; i++) {
+            int address = addressStart + i;
+            if (!isValid(address) || memory[address] != data.get(i)) {
+                count++;
+            }
+        }
+        return count;
+    }
+}
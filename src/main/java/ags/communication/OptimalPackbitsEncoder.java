@@ -0,0 +1,144 @@
+package ags.communication;
+
+/**
+ * Packs screen updates in the same format as PackbitsEncoder, but picks the tokens that get the frame
+ * onto the screen soonest instead of the ones that look shortest.  Every way of splitting the frame into
+ * literal runs, patterns, skipped zeros and mode switches is weighed with DecompressorTiming (the time to
+ * send each token at the current speed or the time the apple spends on it, whichever is longer), and the
+ * cheapest one is found by working backwards from the end of the frame: the best cost from each position
+ * in each mode only depends on the best costs further along.
+ * @author brobert
+ */
+public class OptimalPackbitsEncoder extends PackbitsEncoder {
+
+    private static final int STORE_MODE = 0;
+    private static final int XOR_MODE = 1;
+    private static final long UNREACHABLE = Long.MAX_VALUE / 4;
+    // Best time from each position to the end, two entries (store, xor) per position
+    private long[] cost = new long[0];
+    // Token chosen there: literal length if positive, pattern repetitions if negative
+    private int[] step = new int[0];
+    // True where it is quicker to switch modes first
+    private boolean[] switchFirst = new boolean[0];
+    private final long[] literalCost = new long[MAX_LITERAL + 1];
+    private final long[] patternCost = new long[MAX_REPS + 3];
+    private long predictedNanos = 0;
+    private long nanosPerChar = DataUtil.NANOS_PER_CHAR;
+
+    /**
+     * @param nanosPerChar Time to send one character at the speed the link is running at
+     */
+    public void setNanosPerChar(long nanosPerChar) {
+        this.nanosPerChar = nanosPerChar;
+    }
+
+    /**
+     * @return Estimated time to send and unpack the stream from the last call, at the speed it was packed for
+     */
+    public long getPredictedNanos() {
+        return predictedNanos;
+    }
+
+    @Override
+    public int packbits(int baseAddress, byte[] xorFrame, byte[] newFrame, int offset, int length) {
+        prepare(baseAddress, xorFrame, newFrame, offset, length);
+        if (out.length < length * 3 + 8) {
+            // Room for a mode switch before every token
+            out = new byte[length * 3 + 8];
+        }
+        for (int i = 1; i <= MAX_LITERAL; i++) {
+            literalCost[i] = DecompressorTiming.literalNanos(i, nanosPerChar);
+        }
+        for (int i = 2; i < patternCost.length; i++) {
+            patternCost[i] = DecompressorTiming.patternNanos(i, false, nanosPerChar);
+        }
+        long skipCost = DecompressorTiming.patternNanos(2, true, nanosPerChar);
+        long modeCost = DecompressorTiming.modeNanos(nanosPerChar);
+        int states = (length + 1) * 2;
+        if (cost.length < states) {
+            cost = new long[states];
+            step = new int[states];
+            switchFirst = new boolean[states];
+        }
+
+        cost[length * 2 + STORE_MODE] = 0;
+        cost[length * 2 + XOR_MODE] = 0;
+        for (int pos = length - 1; pos >= 0; pos--) {
+            for (int mode = STORE_MODE; mode <= XOR_MODE; mode++) {
+                int state = pos * 2 + mode;
+                byte[] data = mode == XOR_MODE ? xorFrame : newData;
+                switchFirst[state] = false;
+                if (data == null) {
+                    cost[state] = UNREACHABLE;
+                    continue;
+                }
+                long best = UNREACHABLE;
+                int choice = 0;
+                int longest = Math.min(MAX_LITERAL, length - pos);
+                for (int count = 1; count <= longest; count++) {
+                    long c = literalCost[count] + cost[(pos + count) * 2 + mode];
+                    if (c < best) {
+                        best = c;
+                        choice = count;
+                    }
+                }
+                if (pos <= length - 3) {
+                    int[] runs = mode == XOR_MODE ? xorRuns : newRuns;
+                    int most = Math.min(MAX_REPS + 2, runs[pos] + 1);
+                    boolean skip = mode == XOR_MODE && data[pos] == 0 && data[pos + 1] == 0;
+                    for (int reps = 2; reps <= most; reps++) {
+                        long c = (skip ? skipCost : patternCost[reps]) + cost[(pos + reps * 2) * 2 + mode];
+                        if (c < best) {
+                            best = c;
+                            choice = -reps;
+                        }
+                    }
+                }
+                cost[state] = best;
+                step[state] = choice;
+            }
+            // Switching twice is never worth it, so each mode only has to look at the other's plain cost
+            long store = cost[pos * 2 + STORE_MODE];
+            long xor = cost[pos * 2 + XOR_MODE];
+            if (xor + modeCost < store) {
+                cost[pos * 2 + STORE_MODE] = xor + modeCost;
+                switchFirst[pos * 2 + STORE_MODE] = true;
+            } else if (store + modeCost < xor) {
+                cost[pos * 2 + XOR_MODE] = store + modeCost;
+                switchFirst[pos * 2 + XOR_MODE] = true;
+            }
+        }
+
+        int mode = isXorMode() ? XOR_MODE : STORE_MODE;
+        int size = 0;
+        out[size++] = (byte) (0x0ff & baseAddress);
+        out[size++] = (byte) ((0x0ff00 & baseAddress) >> 8);
+        // Address, plan and end marker
+        predictedNanos = 2 * nanosPerChar + cost[mode] + nanosPerChar;
+        int pos = 0;
+        while (pos < length) {
+            int state = pos * 2 + mode;
+            if (switchFirst[state]) {
+                mode = XOR_MODE - mode;
+                out[size++] = mode == XOR_MODE ? XOR : STORE;
+                state = pos * 2 + mode;
+            }
+            byte[] data = mode == XOR_MODE ? xorFrame : newData;
+            int choice = step[state];
+            if (choice > 0) {
+                out[size++] = (byte) choice;
+                System.arraycopy(data, pos, out, size, choice);
+                size += choice;
+                pos += choice;
+            } else {
+                out[size++] = (byte) (0x080 + (-choice - 2));
+                out[size++] = data[pos];
+                out[size++] = data[pos + 1];
+                pos += -choice * 2;
+            }
+        }
+        out[size++] = 0;
+        setXorMode(mode == XOR_MODE);
+        return size;
+    }
+}
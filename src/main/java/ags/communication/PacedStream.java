@@ -0,0 +1,203 @@
+package ags.communication;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Sends data that the apple has to process as it arrives (such as a packed stream for the decompressor)
+ * according to a schedule worked out in advance.  The schedule splits the data into segments that can go
+ * out back-to-back at the line rate, each with the earliest time it may be sent relative to the start.
+ * A dedicated thread writes each segment in one call and waits out the gaps between them against those
+ * deadlines: it parks until shortly before a deadline and spins for the rest, so a gap is as long as the
+ * apple needs and not however long the scheduler happens to oversleep.  If a segment still goes out late,
+ * everything after it moves back by the same amount so the apple always gets the time it was promised.
+ * Gaps are not filled with bytes because the 6551 can only hold one byte while the 6502 is busy.
+ * The thread runs until close() (GenericHost.disconnect does this when the link goes away).
+ * @author brobert
+ */
+public class PacedStream {
+
+    /**
+     * How close to a deadline the pacer stops parking and starts spinning
+     */
+    private static final long SPIN_NANOS = 200000L;
+
+    /**
+     * Segments of a buffer and when each may be sent, relative to when the first one is
+     */
+    public static class Schedule {
+
+        private ByteBuffer data;
+        private int segments = 0;
+        private int[] offset = new int[64];
+        private int[] length = new int[64];
+        private long[] due = new long[64];
+        private long totalNanos = 0;
+        private boolean xorMode = true;
+
+        /**
+         * Start a new schedule
+         * @param data Buffer the segments refer to, by index (the pacer moves its position and limit as
+         * it sends them)
+         */
+        public void clear(ByteBuffer data) {
+            this.data = data;
+            segments = 0;
+            totalNanos = 0;
+        }
+
+        /**
+         * Add a segment
+         * @param start Offset of the segment in the buffer
+         * @param size Number of bytes
+         * @param dueNanos Earliest time it may be sent, from the start of the schedule
+         */
+        public void add(int start, int size, long dueNanos) {
+            if (segments == offset.length) {
+                offset = Arrays.copyOf(offset, segments * 2);
+                length = Arrays.copyOf(length, segments * 2);
+                due = Arrays.copyOf(due, segments * 2);
+            }
+            offset[segments] = start;
+            length[segments] = size;
+            due[segments] = dueNanos;
+            segments++;
+        }
+
+        public int getSegments() {
+            return segments;
+        }
+
+        /**
+         * @return Number of bytes in all segments
+         */
+        public int getLength() {
+            return segments == 0 ? 0 : offset[segments - 1] + length[segments - 1] - offset[0];
+        }
+
+        /**
+         * @return Time until the apple has finished with everything sent, from the start of the schedule
+         */
+        public long getTotalNanos() {
+            return totalNanos;
+        }
+
+        public void setTotalNanos(long totalNanos) {
+            this.totalNanos = totalNanos;
+        }
+
+        /**
+         * @return Decompressor mode at the end of the data (for packed streams)
+         */
+        public boolean isXorMode() {
+            return xorMode;
+        }
+
+        public void setXorMode(boolean xorMode) {
+            this.xorMode = xorMode;
+        }
+    }
+
+    private final GenericHost host;
+    private final Thread pacer;
+    private final ByteBuffer[] segment = new ByteBuffer[1];
+    private volatile Schedule job = null;
+    private volatile Thread caller = null;
+    private volatile IOException error = null;
+    private volatile boolean done = false;
+    private volatile boolean closed = false;
+
+    /**
+     * Start a pacer for a host
+     * @param host Host whose link the data is written to
+     */
+    public PacedStream(GenericHost host) {
+        this.host = host;
+        pacer = new Thread(this::run, "Pacer " + host.getLinkName());
+        pacer.setDaemon(true);
+        pacer.setPriority(Thread.MAX_PRIORITY);
+        pacer.start();
+    }
+
+    /**
+     * Send everything in a schedule, returning once the apple should have finished with it
+     * @param schedule What to send and when
+     * @throws java.io.IOException If the data could not be sent
+     */
+    public synchronized void send(Schedule schedule) throws IOException {
+        if (closed) {
+            throw new IOException("Pacer for " + host.getLinkName() + " is closed");
+        }
+        error = null;
+        done = false;
+        caller = Thread.currentThread();
+        job = schedule;
+        LockSupport.unpark(pacer);
+        while (!done) {
+            LockSupport.park(this);
+        }
+        caller = null;
+        if (error != null) {
+            throw error;
+        }
+    }
+
+    /**
+     * Stop the pacer thread once it is idle, so a closed link doesn't keep it (and its host) around.
+     * Synchronized with send() so a schedule is either finished first or refused, never left waiting.
+     */
+    public synchronized void close() {
+        closed = true;
+        LockSupport.unpark(pacer);
+    }
+
+    private void run() {
+        while (!closed || job != null) {
+            Schedule schedule = job;
+            if (schedule == null) {
+                LockSupport.park(this);
+                continue;
+            }
+            try {
+                transmit(schedule);
+            } catch (IOException ex) {
+                error = ex;
+            } catch (RuntimeException ex) {
+                error = new IOException("Pacer failed", ex);
+            }
+            job = null;
+            done = true;
+            LockSupport.unpark(caller);
+        }
+    }
+
+    private void transmit(Schedule schedule) throws IOException {
+        long start = System.nanoTime();
+        long slip = 0;
+        for (int i = 0; i < schedule.segments; i++) {
+            long due = start + schedule.due[i] + slip;
+            waitUntil(due);
+            long late = System.nanoTime() - due;
+            if (late > 0) {
+                slip += late;
+            }
+            schedule.data.limit(schedule.offset[i] + schedule.length[i]).position(schedule.offset[i]);
+            segment[0] = schedule.data;
+            host.writeOutput(segment);
+            host.flush();
+        }
+        waitUntil(start + schedule.totalNanos + slip);
+    }
+
+    private static void waitUntil(long due) {
+        long remaining;
+        while ((remaining = due - System.nanoTime()) > SPIN_NANOS) {
+            LockSupport.parkNanos(remaining - SPIN_NANOS);
+        }
+        while (due - System.nanoTime() > 0) {
+            Thread.onSpinWait();
+        }
+    }
+}
@@ -0,0 +1,142 @@
+package ags.communication;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Host-side copy of the packbits decompressor in the extension module (compression/deflate_main.a).
+ * It applies a packed stream to an image of the apple's memory exactly as the apple would, including
+ * skipping runs of zeros in XOR mode, and adds up the time DecompressorTiming gives each token as it goes.
+ * Used to check that an encoder's output puts the right bytes on the screen and to compare its predicted
+ * time with what the link actually took.
+ * @author brobert
+ */
+public class PackbitsDecoder {
+
+    private final byte[] memory;
+    private final int memoryBase;
+    // The decompressor is assembled with XOR mode enabled
+    private boolean xorMode = true;
+    private long nanos = 0;
+
+    /**
+     * Constructor
+     * @param memoryBase Apple address of memory[0]
+     * @param memory Image of the apple's memory, changed by decode()
+     */
+    public PackbitsDecoder(int memoryBase, byte[] memory) {
+        this.memoryBase = memoryBase;
+        this.memory = memory;
+    }
+
+    public boolean isXorMode() {
+        return xorMode;
+    }
+
+    public void setXorMode(boolean xorMode) {
+        this.xorMode = xorMode;
+    }
+
+    /**
+     * @return Total estimated time of everything decoded so far
+     */
+    public long getNanos() {
+        return nanos;
+    }
+
+    /**
+     * Apply a packed stream to the memory image
+     * @param packed Packed data
+     * @param length Size of the stream
+     * @param nanosPerChar Time to send one character, for the time estimate
+     * @return Estimated time to send and unpack this stream
+     * @throws IllegalArgumentException If the stream is not something the decompressor handles correctly
+     */
+    public long decode(byte[] packed, int length, long nanosPerChar) {
+        if (length < 3) {
+            throw new IllegalArgumentException("Stream is too short: " + length + " bytes");
+        }
+        int address = (packed[0] & 0x0ff) | ((packed[1] & 0x0ff) << 8);
+        long total = 2 * nanosPerChar;
+        int i = 2;
+        while (true) {
+            if (i >= length) {
+                throw new IllegalArgumentException("Stream has no end marker");
+            }
+            int token = packed[i++] & 0x0ff;
+            if (token == 0) {
+                total += nanosPerChar;
+                break;
+            } else if (token >= 0x080) {
+                int reps = (token & 0x07f) + 2;
+                int b1 = packed[i++];
+                int b2 = packed[i++];
+                if (xorMode && b1 == 0 && b2 == 0) {
+                    total += DecompressorTiming.patternNanos(reps, true, nanosPerChar);
+                    address += reps * 2;
+                } else {
+                    total += DecompressorTiming.patternNanos(reps, false, nanosPerChar);
+                    for (int r = 0; r < reps; r++) {
+                        store(address++, b1);
+                        store(address++, b2);
+                    }
+                }
+            } else if (token >= 0x07E) {
+                xorMode = token == 0x07E;
+                total += DecompressorTiming.modeNanos(nanosPerChar);
+            } else if (token == 0x07D) {
+                throw new IllegalArgumentException(String.format("Token $7D at offset %d is decoded as a bad mode switch", i - 1));
+            } else {
+                total += DecompressorTiming.literalNanos(token, nanosPerChar);
+                for (int r = 0; r < token; r++) {
+                    store(address++, packed[i++]);
+                }
+            }
+        }
+        if (i != length) {
+            throw new IllegalArgumentException("End marker at offset " + (i - 1) + " but stream is " + length + " bytes");
+        }
+        nanos += total;
+        return total;
+    }
+
+    /**
+     * Find how much memory a packed stream covers without decoding it
+     * @param packed Packed data
+     * @param length Size of the stream
+     * @return Number of bytes from the stream's starting address up to the last one it can change
+     */
+    public static int span(byte[] packed, int length) {
+        return span(ByteBuffer.wrap(packed), length);
+    }
+
+    /**
+     * Find how much memory a packed stream covers without decoding it
+     * @param packed Packed data, starting at index 0
+     * @param length Size of the stream
+     * @return Number of bytes from the stream's starting address up to the last one it can change
+     */
+    public static int span(ByteBuffer packed, int length) {
+        int size = 0;
+        for (int i = 2; i < length;) {
+            int token = packed.get(i++) & 0x0ff;
+            if (token == 0) {
+                break;
+            } else if (token >= 0x080) {
+                size += ((token & 0x07f) + 2) * 2;
+                i += 2;
+            } else if (token < 0x07D) {
+                size += token;
+                i += token;
+            }
+        }
+        return size;
+    }
+
+    private void store(int address, int value) {
+        int index = address - memoryBase;
+        if (index < 0 || index >= memory.length) {
+            throw new IllegalArgumentException(String.format("Write to $%04X is outside of the memory image", address));
+        }
+        memory[index] = (byte) (xorMode ? memory[index] ^ value : value);
+    }
+}
@@ -0,0 +1,257 @@
+package ags.communication;
+
+/**
+ * Packs screen updates for the packbits decompressor in the extension module (compression/deflate_main.a).
+ * <p>
+ * Stream format:
+ * first two bytes = base address (little endian format)
+ * Repetitions of:
+ *   Length, Data 1, Data 2 ... Data (length)
+ *   Where 01-7C = Length of uncompressed data (copy Data 1, Data 2... as is)
+ *   and 80-FF = Length of compressed data (length - 0x7E) repetitions of Data 1 and Data 2
+ *   7E = Switch to XOR (for large areas with no changes)
+ *   7F = Switch to write mode (for large areas of same color/pattern)
+ * Until end:
+ * 00 = end;
+ * 7D is not usable: the decompressor treats it as a (broken) mode switch, so literal runs stop at 7C.
+ * <p>
+ * The decompressor remembers whether it is in XOR or write mode between streams, so one encoder is kept
+ * for each apple and told which mode the decompressor is in before each frame.  Run lengths for the XOR
+ * and write streams are worked out for every position in one backwards pass, so choosing what to send
+ * is a table lookup per position.  Output goes to a reusable buffer and nothing is allocated per frame
+ * once the buffers have grown to the screen size.
+ * @author brobert
+ */
+public class PackbitsEncoder {
+
+    /**
+     * Largest literal run the decompressor understands (7D-7F are commands)
+     */
+    public static final int MAX_LITERAL = 0x07C;
+    /**
+     * Most repetitions of a pattern that fit in one token (FF = 129 pairs), less 2
+     */
+    static final int MAX_REPS = 127;
+    static final byte XOR = 0x07E;
+    static final byte STORE = 0x07F;
+    // Starts off as True because assembly code starts off with EOR
+    private boolean xorMode = true;
+    byte[] out = new byte[0];
+    private byte[] xorData = new byte[0];
+    byte[] newData = new byte[0];
+    int[] xorRuns = new int[0];
+    int[] newRuns = new int[0];
+
+    /**
+     * @return true if the decompressor will be in XOR mode after the last stream packed
+     */
+    public boolean isXorMode() {
+        return xorMode;
+    }
+
+    /**
+     * Tell the encoder which mode the decompressor is in
+     * @param xorMode true for XOR, false for write
+     */
+    public void setXorMode(boolean xorMode) {
+        this.xorMode = xorMode;
+    }
+
+    /**
+     * @return Packed data from the last call (only the length returned by that call is valid)
+     */
+    public byte[] getBuffer() {
+        return out;
+    }
+
+    /**
+     * Pack the changes between two frames
+     * @param address Destination address of the frame
+     * @param oldFrame What the apple has now, or null if unknown
+     * @param newFrame What the apple should have
+     * @return Size of the packed data in getBuffer(), or 0 if nothing changed
+     */
+    public int packScreenUpdate(int address, byte[] oldFrame, byte[] newFrame) {
+        if (oldFrame == null) {
+            return packbits(address, null, newFrame, 0, newFrame.length);
+        }
+        // Leave out the parts at the beginning and end that do not change
+        int start = 0;
+        int end = newFrame.length;
+        while (start < end && oldFrame[start] == newFrame[start]) {
+            start++;
+        }
+        if (start == end) {
+            // Protect against empty frames, nothing to do
+            return 0;
+        }
+        while (oldFrame[end - 1] == newFrame[end - 1]) {
+            end--;
+        }
+        int length = end - start;
+        if (xorData.length < length) {
+            xorData = new byte[newFrame.length];
+        }
+        for (int i = 0; i < length; i++) {
+            xorData[i] = (byte) (oldFrame[start + i] ^ newFrame[start + i]);
+        }
+        return packbits(address + start, xorData, newFrame, start, length);
+    }
+
+    /**
+     * Pack a frame, choosing between XOR and write mode as it goes
+     * @param baseAddress destination base address
+     * @param xorFrame Data xor'd against previous frame (starting at 0), or null if not available
+     * @param newFrame New frame to store
+     * @param offset Where the data starts in newFrame
+     * @param length Number of bytes to pack
+     * @return Size of the packed data in getBuffer()
+     */
+    public int packbits(int baseAddress, byte[] xorFrame, byte[] newFrame, int offset, int length) {
+        boolean xorAllowed = xorFrame != null;
+        prepare(baseAddress, xorFrame, newFrame, offset, length);
+
+        int size = 0;
+        out[size++] = (byte) (0x0ff & baseAddress);
+        out[size++] = (byte) ((0x0ff00 & baseAddress) >> 8);
+        if (!xorAllowed) {
+            // No previous frame to work against, flip to write mode for this frame
+            out[size++] = STORE;
+            xorMode = false;
+        }
+        int pos = 0;
+        while (pos < length) {
+            // Pick mode...
+            int xcount = xorAllowed ? reps(xorRuns, pos, length) : -1;
+            int ccount = reps(newRuns, pos, length);
+            if (xcount > -1 || ccount > -1) {
+                byte[] data;
+                int numberReps;
+                if (ccount > xcount || (ccount == xcount && !xorMode)) {
+                    if (xorMode) {
+                        out[size++] = STORE;
+                        xorMode = false;
+                    }
+                    numberReps = ccount;
+                    data = newData;
+                } else {
+                    if (!xorMode) {
+                        out[size++] = XOR;
+                        xorMode = true;
+                    }
+                    numberReps = xcount;
+                    data = xorFrame;
+                }
+                out[size++] = (byte) (0x080 + numberReps);
+                out[size++] = data[pos];
+                out[size++] = data[pos + 1];
+                pos += numberReps * 2 + 4;
+                continue;
+            }
+
+            // No pattern, just output raw data until
+            // 1) We hit a repeating pattern
+            // 2) We hit end of data
+            // 3) We hit the longest literal run
+            // Switching modes costs a byte, so a pattern in the other mode has to be one repetition longer
+            int xorPenalty = xorMode ? 0 : -1;
+            int copyPenalty = xorMode ? -1 : 0;
+            int seek = pos;
+            int count = 0;
+            while (seek < length && count < MAX_LITERAL) {
+                int copyCount = copyPenalty + reps(newRuns, seek, length);
+                int xorCount = xorAllowed ? xorPenalty + reps(xorRuns, seek, length) : -1;
+                if (copyCount > -1 || xorCount > -1) {
+                    // Read ahead +1 and see if better compression would occur there
+                    int copyCount2 = copyPenalty + reps(newRuns, seek + 1, length) - 1;
+                    int xorCount2 = xorAllowed ? xorPenalty + reps(xorRuns, seek + 1, length) - 1 : -1;
+                    if (copyCount2 > copyCount || xorCount2 > xorCount) {
+                        seek++;
+                        count++;
+                    }
+                    break;
+                }
+                seek++;
+                count++;
+            }
+            byte[] data = xorMode ? xorFrame : newData;
+            out[size++] = (byte) count;
+            System.arraycopy(data, pos, out, size, count);
+            size += count;
+            pos = seek;
+        }
+        out[size++] = 0;
+        return size;
+    }
+
+    /**
+     * Copy the new data, make room for the output and count the runs in both streams
+     */
+    void prepare(int baseAddress, byte[] xorFrame, byte[] newFrame, int offset, int length) {
+        if (newData.length < length) {
+            newData = new byte[length];
+        }
+        System.arraycopy(newFrame, offset, newData, 0, length);
+        if (out.length < length * 2 + 8) {
+            out = new byte[length * 2 + 8];
+        }
+        countRuns(baseAddress, xorFrame, length);
+    }
+
+    /**
+     * @return How many times the two bytes at pos repeat after themselves, less one (so 0 or more is
+     * worth packing), or -1
+     */
+    private static int reps(int[] runs, int pos, int length) {
+        if (pos >= length - 4) {
+            return -1;
+        }
+        return Math.min(MAX_REPS, runs[pos] - 1);
+    }
+
+    /**
+     * For every position, count how many following byte pairs match the pair there (screen holes match
+     * anything).  Worked backwards, a pair that matches exactly has the same pattern as the position
+     * it is compared with, so its own count carries on the run and only screen holes are stepped over.
+     */
+    void countRuns(int baseAddress, byte[] xorFrame, int length) {
+        if (newRuns.length < length) {
+            newRuns = new int[Math.max(length, newData.length)];
+            xorRuns = new int[newRuns.length];
+        }
+        for (int pos = length - 3; pos >= 0; pos--) {
+            newRuns[pos] = runFrom(baseAddress, newData, newRuns, pos + 2, length, newData[pos], newData[pos + 1]);
+            if (xorFrame != null) {
+                xorRuns[pos] = runFrom(baseAddress, xorFrame, xorRuns, pos + 2, length, xorFrame[pos], xorFrame[pos + 1]);
+            }
+        }
+    }
+
+    private static int runFrom(int baseAddress, byte[] data, int[] runs, int seek, int length, byte b1, byte b2) {
+        int count = 0;
+        while (seek < length - 2) {
+            boolean hole1 = isInScreenhole(baseAddress + seek);
+            boolean hole2 = isInScreenhole(baseAddress + seek + 1);
+            if (!hole1 && !hole2) {
+                if (data[seek] == b1 && data[seek + 1] == b2) {
+                    return count + 1 + runs[seek];
+                }
+                return count;
+            }
+            if ((hole1 || data[seek] == b1) && (hole2 || data[seek + 1] == b2)) {
+                count++;
+                seek += 2;
+            } else {
+                return count;
+            }
+        }
+        return count;
+    }
+
+    private static boolean isInScreenhole(int i) {
+        // There are 64 locations unused in text modes
+        // There are 512 locations unused in hires modes
+        // Screenholes appear in each bank from x78 thru x7f and xf8 thru xff
+        return ((i & 0x07f) >= 0x078);
+    }
+}
@@ -0,0 +1,248 @@
+package ags.communication;
+
+import ags.controller.Configurable;
+import ags.controller.Configurable.CATEGORY;
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * On-disk cache of encoded transfer payloads (compressed game images, packed screens, etc.)
+ * Entries are keyed by the SHA-256 of the source data plus the name and version of the encoder and any
+ * parameters that change its output, so a cached payload can never be stale: changed data or a changed
+ * encoder simply produce a different key.  Data read from a resource is only hashed the first time it is
+ * seen with a given size and modification time.  Entries are read back as memory-mapped buffers and the
+ * least recently used ones are removed once the cache grows past PAYLOAD_CACHE_SIZE_MB.
+ * @author brobert
+ */
+public class PayloadCache {
+
+    /**
+     * Directory holding cached payloads (leave blank to disable the cache)
+     */
+    @Configurable(category = CATEGORY.RUNTIME, isRequired = false)
+    public static String PAYLOAD_CACHE_DIR = System.getProperty("user.home") + File.separator + ".ags" + File.separator + "cache";
+    /**
+     * Maximum size of the payload cache in megabytes
+     */
+    @Configurable(category = CATEGORY.ADVANCED, isRequired = false)
+    public static int PAYLOAD_CACHE_SIZE_MB = 64;
+
+    /**
+     * Produces a payload when it isn't in the cache
+     */
+    public interface Encoder {
+
+        byte[] encode();
+    }
+
+    private static final String SUFFIX = ".bin";
+    private static PayloadCache instance = null;
+    // Hash of a resource's data by name, size, modification time and range
+    private static final Map<String, String> resourceHashes = new ConcurrentHashMap<String, String>();
+    private final String dirName;
+    private final File dir;
+    // File sizes in least to most recently used order
+    private final LinkedHashMap<String, Long> entries = new LinkedHashMap<String, Long>(16, 0.75f, true);
+    private long totalSize = 0;
+
+    public static synchronized PayloadCache getInstance() {
+        String dirName = PAYLOAD_CACHE_DIR == null ? "" : PAYLOAD_CACHE_DIR.trim();
+        if (instance == null || !instance.dirName.equals(dirName)) {
+            instance = new PayloadCache(dirName);
+        }
+        return instance;
+    }
+
+    private PayloadCache(String dirName) {
+        this.dirName = dirName;
+        File dir = dirName.isEmpty() ? null : new File(dirName);
+        if (dir != null && !dir.isDirectory() && !dir.mkdirs()) {
+            System.out.println("Unable to create payload cache directory " + dir + ", caching disabled");
+            dir = null;
+        }
+        this.dir = dir == null ? new File("") : dir;
+        if (dir == null) {
+            return;
+        }
+        File[] files = dir.listFiles((d, name) -> name.endsWith(SUFFIX));
+        if (files == null) {
+            return;
+        }
+        // Rebuild the usage order from the last access times
+        Arrays.sort(files, Comparator.comparingLong(File::lastModified));
+        for (File f : files) {
+            String key = f.getName().substring(0, f.getName().length() - SUFFIX.length());
+            entries.put(key, f.length());
+            totalSize += f.length();
+        }
+    }
+
+    private boolean isEnabled() {
+        return !dir.getPath().isEmpty();
+    }
+
+    /**
+     * Build a cache key
+     * @param encoder Name of the encoder
+     * @param version Version of the encoder -- bump it whenever its output changes
+     * @param data Source data
+     * @param offset Starting offset of the source data
+     * @param length Length of the source data
+     * @param params Any other values that affect the encoder's output (addresses, sizes...)
+     * @return Key for the payload
+     */
+    public static String key(String encoder, int version, byte[] data, int offset, int length, int... params) {
+        return key(encoder, version, hash(data, offset, length), params);
+    }
+
+    /**
+     * Build a cache key for data read from a resource (see DataUtil.getFileAsBytes).  The data is only
+     * hashed if the resource hasn't been seen before with the same size and modification time.
+     * @param encoder Name of the encoder
+     * @param version Version of the encoder -- bump it whenever its output changes
+     * @param resource Name of the resource the data was read from
+     * @param data Contents of the resource
+     * @param offset Starting offset of the source data
+     * @param length Length of the source data
+     * @param params Any other values that affect the encoder's output (addresses, sizes...)
+     * @return Key for the payload
+     */
+    public static String key(String encoder, int version, String resource, byte[] data, int offset, int length, int... params) {
+        URL url = Thread.currentThread().getContextClassLoader().getResource(resource);
+        long modified = 0;
+        if (url != null) {
+            try {
+                URLConnection connection = url.openConnection();
+                modified = connection.getLastModified();
+                // Connecting may have opened the resource, only its headers are wanted
+                connection.getInputStream().close();
+            } catch (IOException ex) {
+                modified = 0;
+            }
+        }
+        if (modified == 0) {
+            // No way to tell whether it changed
+            return key(encoder, version, data, offset, length, params);
+        }
+        String source = resource + '-' + data.length + '-' + modified + '-' + offset + '-' + length;
+        String hash = resourceHashes.get(source);
+        if (hash == null) {
+            hash = hash(data, offset, length);
+            resourceHashes.put(source, hash);
+        }
+        return key(encoder, version, hash, params);
+    }
+
+    private static String key(String encoder, int version, String hash, int... params) {
+        StringBuilder key = new StringBuilder(encoder).append('-').append(version);
+        for (int p : params) {
+            key.append('-').append(Integer.toHexString(p));
+        }
+        return key.append('-').append(hash).toString();
+    }
+
+    private static String hash(byte[] data, int offset, int length) {
+        StringBuilder hash = new StringBuilder(64);
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(data, offset, length);
+            for (byte b : digest.digest()) {
+                hash.append(Character.forDigit((b >> 4) & 0x0f, 16)).append(Character.forDigit(b & 0x0f, 16));
+            }
+        } catch (NoSuchAlgorithmException ex) {
+            // Every java runtime is required to have SHA-256
+            throw new IllegalStateException(ex);
+        }
+        return hash.toString();
+    }
+
+    /**
+     * Look up a payload
+     * @param key Key from key()
+     * @return Read-only buffer with the payload, or null if it isn't cached
+     */
+    public synchronized ByteBuffer get(String key) {
+        // Looking the entry up also marks it as the most recently used
+        if (!isEnabled() || entries.get(key) == null) {
+            return null;
+        }
+        Path path = new File(dir, key + SUFFIX).toPath();
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            path.toFile().setLastModified(System.currentTimeMillis());
+            return buffer;
+        } catch (IOException ex) {
+            // Somebody removed it behind our back
+            totalSize -= entries.remove(key);
+            return null;
+        }
+    }
+
+    /**
+     * Store a payload, removing the least recently used ones if the cache is too big
+     * @param key Key from key()
+     * @param payload Data to store
+     */
+    public synchronized void put(String key, byte[] payload) {
+        if (!isEnabled()) {
+            return;
+        }
+        File file = new File(dir, key + SUFFIX);
+        try {
+            // Write to a temporary file first so a crash can't leave a truncated entry behind
+            Path temp = Files.createTempFile(dir.toPath(), key, ".tmp");
+            Files.write(temp, payload);
+            Files.move(temp, file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException ex) {
+            Logger.getLogger(PayloadCache.class.getName()).log(Level.WARNING, "Unable to cache payload " + key, ex);
+            return;
+        }
+        Long old = entries.put(key, (long) payload.length);
+        totalSize += payload.length - (old == null ? 0 : old);
+        long maxSize = PAYLOAD_CACHE_SIZE_MB * 1024L * 1024L;
+        Iterator<Map.Entry<String, Long>> eldest = entries.entrySet().iterator();
+        while (totalSize > maxSize && eldest.hasNext()) {
+            Map.Entry<String, Long> entry = eldest.next();
+            if (entry.getKey().equals(key)) {
+                continue;
+            }
+            new File(dir, entry.getKey() + SUFFIX).delete();
+            totalSize -= entry.getValue();
+            eldest.remove();
+        }
+    }
+
+    /**
+     * Get a payload from the cache, encoding and storing it if it isn't there yet
+     * @param key Key from key()
+     * @param encoder Produces the payload
+     * @return Buffer with the payload
+     */
+    public ByteBuffer get(String key, Encoder encoder) {
+        ByteBuffer buffer = get(key);
+        if (buffer == null) {
+            byte[] payload = encoder.encode();
+            put(key, payload);
+            buffer = ByteBuffer.wrap(payload).asReadOnlyBuffer();
+        }
+        return buffer;
+    }
+}
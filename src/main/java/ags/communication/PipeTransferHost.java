@@ -0,0 +1,36 @@
+package ags.communication;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Transfer host connected through a pair of streams instead of a port, such as an in-process
+ * ags.emulator.VirtualApple
+ * @author brobert
+ */
+public class PipeTransferHost extends TransferHost {
+
+    /**
+     * Constructor
+     * @param input Bytes coming from the apple
+     * @param output Bytes going to the apple
+     * @param linkName Name used to remember settings for this link
+     */
+    public PipeTransferHost(InputStream input, OutputStream output, String linkName) {
+        super(new StreamTransport(input, output, linkName));
+    }
+
+    /**
+     * The other end already has the driver running (VirtualApple.boot), so skip the bootstrap script
+     * and just make sure it answers.
+     * @throws java.io.IOException If the driver doesn't respond
+     */
+    @Override
+    public void init() throws IOException {
+        driverSendsChecksums = null;
+        testDriver();
+        System.out.println("Received acknowledgement response from virtual apple!");
+        setBootstrapPhase(false);
+    }
+}
@@ -0,0 +1,196 @@
+package ags.communication;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Bytes received from the apple, filled by the connection's reader thread and emptied by whoever is
+ * talking to the apple.  It is a single-producer single-consumer ring: neither side takes a lock, the
+ * consumer parks until data arrives (or its deadline passes) and the producer unparks it as soon as
+ * bytes are added, so a waiting caller sees a reply as soon as it comes off the wire.
+ * @author brobert
+ */
+public class ReceiveBuffer {
+
+    private final byte[] ring;
+    private final int mask;
+    // Total bytes ever added and removed; only the producer writes tail and only the consumer writes head
+    private volatile long tail = 0;
+    private volatile long head = 0;
+    private volatile Thread consumer = null;
+    private volatile Thread producer = null;
+    private volatile IOException failure = null;
+    // Run once by the consumer after a producer that can't wait found the ring full
+    private final AtomicReference<Runnable> roomListener = new AtomicReference<Runnable>();
+
+    /**
+     * Constructor
+     * @param capacity Size of the ring (rounded up to a power of two)
+     */
+    public ReceiveBuffer(int capacity) {
+        ring = new byte[Integer.highestOneBit(Math.max(16, capacity - 1)) << 1];
+        mask = ring.length - 1;
+    }
+
+    //--- Producer side
+
+    /**
+     * Add received bytes, waiting for room if the consumer is behind
+     * @param src Data
+     * @param offset Starting offset
+     * @param length Number of bytes
+     */
+    public void put(byte[] src, int offset, int length) {
+        while (length > 0) {
+            long t = tail;
+            int room = ring.length - (int) (t - head);
+            if (room == 0) {
+                producer = Thread.currentThread();
+                if (ring.length - (int) (t - head) == 0) {
+                    LockSupport.parkNanos(this, 1000000L);
+                }
+                producer = null;
+                continue;
+            }
+            int count = Math.min(length, Math.min(room, ring.length - (int) (t & mask)));
+            System.arraycopy(src, offset, ring, (int) (t & mask), count);
+            tail = t + count;
+            offset += count;
+            length -= count;
+            wake(consumer);
+        }
+    }
+
+    /**
+     * Add as many received bytes as there is room for without waiting, for producers that serve other
+     * connections too (such as a selector thread)
+     * @param src Data (its position is advanced past what was added)
+     * @return Number of bytes added
+     */
+    public int offer(ByteBuffer src) {
+        long t = tail;
+        int count = Math.min(src.remaining(), ring.length - (int) (t - head));
+        for (int done = 0; done < count;) {
+            int run = Math.min(count - done, ring.length - (int) ((t + done) & mask));
+            src.get(ring, (int) ((t + done) & mask), run);
+            done += run;
+        }
+        if (count > 0) {
+            tail = t + count;
+            wake(consumer);
+        }
+        return count;
+    }
+
+    /**
+     * Ask to be told when the consumer makes room, after offer() could not add everything
+     * @param listener Run once on the consumer's thread when bytes are removed
+     * @return false if there is already room, in which case the listener is not kept
+     */
+    public boolean notifyWhenRoom(Runnable listener) {
+        roomListener.set(listener);
+        // Check again now that the consumer can see the listener, so the wakeup can't be missed
+        if (tail - head < ring.length && roomListener.compareAndSet(listener, null)) {
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * The connection is gone; waiting and future reads fail with this error once the buffer is empty
+     * @param ex Cause
+     */
+    public void fail(IOException ex) {
+        failure = ex;
+        wake(consumer);
+    }
+
+    private static void wake(Thread t) {
+        if (t != null) {
+            LockSupport.unpark(t);
+        }
+    }
+
+    //--- Consumer side
+
+    /**
+     * @return Number of bytes waiting
+     * @throws java.io.IOException If the connection failed and nothing is left to read
+     */
+    public int available() throws IOException {
+        int available = (int) (tail - head);
+        if (available == 0 && failure != null) {
+            throw failure;
+        }
+        return available;
+    }
+
+    /**
+     * Wait until at least a number of bytes are waiting
+     * @param count Number of bytes wanted
+     * @param deadline System.nanoTime() at which to give up
+     * @return true if that many bytes are available
+     * @throws java.io.IOException If the connection failed
+     */
+    public boolean await(int count, long deadline) throws IOException {
+        count = Math.min(count, ring.length);
+        while (available() < count) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                return false;
+            }
+            consumer = Thread.currentThread();
+            // Check again now that the producer can see us, so a wakeup can't be missed
+            if (tail - head < count && failure == null) {
+                LockSupport.parkNanos(this, remaining);
+            }
+            consumer = null;
+        }
+        return true;
+    }
+
+    /**
+     * Remove the next byte
+     * @return Byte value (0-255) or -1 if nothing is waiting
+     */
+    public int poll() {
+        long h = head;
+        if (h == tail) {
+            return -1;
+        }
+        int value = ring[(int) (h & mask)] & 0x0ff;
+        head = h + 1;
+        madeRoom();
+        return value;
+    }
+
+    /**
+     * Remove up to length waiting bytes
+     * @param dst Where to put them
+     * @param offset Starting offset in dst
+     * @param length Maximum number of bytes
+     * @return Number of bytes removed
+     */
+    public int drain(byte[] dst, int offset, int length) {
+        long h = head;
+        int count = (int) Math.min(length, tail - h);
+        for (int done = 0; done < count;) {
+            int run = Math.min(count - done, ring.length - (int) ((h + done) & mask));
+            System.arraycopy(ring, (int) ((h + done) & mask), dst, offset + done, run);
+            done += run;
+        }
+        head = h + count;
+        madeRoom();
+        return count;
+    }
+
+    private void madeRoom() {
+        wake(producer);
+        Runnable listener = roomListener.get();
+        if (listener != null && roomListener.compareAndSet(listener, null)) {
+            listener.run();
+        }
+    }
+}
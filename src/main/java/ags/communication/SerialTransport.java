@@ -0,0 +1,55 @@
+package ags.communication;
+
+import ags.communication.GenericHost.FlowControl;
+import com.fazecast.jSerialComm.SerialPort;
+import com.fazecast.jSerialComm.SerialPortTimeoutException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Transport over a serial port
+ * @author brobert
+ */
+public class SerialTransport extends StreamTransport {
+
+    private final SerialPort port;
+
+    /**
+     * Constructor
+     * @param port Open serial port ready to use
+     */
+    public SerialTransport(SerialPort port) {
+        super(port.getInputStream(), port.getOutputStream(), "serial:" + port.getSystemPortName());
+        this.port = port;
+        port.setDTR();
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        try {
+            return super.read(dst);
+        } catch (SerialPortTimeoutException ex) {
+            // Nothing arrived within the port's read timeout
+            return 0;
+        }
+    }
+
+    @Override
+    public void configure(int baudRate, FlowControl flow) throws IOException {
+        port.setBaudRate(baudRate);
+        port.setNumDataBits(8);
+        port.setNumStopBits(1);
+        port.setParity(SerialPort.NO_PARITY);
+        port.setFlowControl(flow.getConfigValue());
+        port.setDTR();
+    }
+
+    @Override
+    public boolean isClearToSend() {
+        return port.getCTS();
+    }
+
+    public SerialPort getPort() {
+        return port;
+    }
+}
@@ -0,0 +1,134 @@
+package ags.communication;
+
+import ags.communication.GenericHost.FlowControl;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Transport over a non-blocking TCP connection (an emulator, or a serial port shared over the network).
+ * Writes are gathering writes straight from the caller's buffers; reads go through a small receive
+ * buffer so available() can report what has arrived without blocking.
+ * @author brobert
+ */
+public class SocketChannelTransport implements Transport {
+
+    /**
+     * How long read() waits for the first byte, the same as the serial port read timeout
+     */
+    private static final int READ_TIMEOUT = 50;
+    /**
+     * How long a write may stall before the connection is considered dead
+     */
+    private static final int WRITE_TIMEOUT = 5000;
+    private final SocketChannel channel;
+    private final Selector readSelector;
+    private final Selector writeSelector;
+    private final ByteBuffer received = ByteBuffer.allocate(8192);
+    private final String linkName;
+
+    /**
+     * Connect to a remote apple
+     * @param host Host name
+     * @param port TCP port
+     * @throws java.io.IOException If the connection could not be made
+     */
+    public SocketChannelTransport(String host, int port) throws IOException {
+        channel = SocketChannel.open(new InetSocketAddress(host, port));
+        // Disable Nagle's algorithm for immediate transmission
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        channel.configureBlocking(false);
+        readSelector = Selector.open();
+        writeSelector = Selector.open();
+        channel.register(readSelector, SelectionKey.OP_READ);
+        channel.register(writeSelector, SelectionKey.OP_WRITE);
+        received.flip();
+        linkName = "tcp:" + host + ":" + port;
+    }
+
+    /**
+     * Move anything the socket has into the receive buffer
+     * @return false if the other end closed the connection
+     */
+    private boolean fill() throws IOException {
+        received.compact();
+        try {
+            return channel.read(received) >= 0;
+        } finally {
+            received.flip();
+        }
+    }
+
+    @Override
+    public int available() throws IOException {
+        if (!fill() && !received.hasRemaining()) {
+            throw new IOException("Connection to " + linkName + " closed");
+        }
+        return received.remaining();
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        if (!received.hasRemaining() && available() == 0) {
+            readSelector.select(READ_TIMEOUT);
+            readSelector.selectedKeys().clear();
+            available();
+        }
+        int size = Math.min(dst.remaining(), received.remaining());
+        int limit = received.limit();
+        received.limit(received.position() + size);
+        dst.put(received);
+        received.limit(limit);
+        return size;
+    }
+
+    @Override
+    public void write(ByteBuffer... srcs) throws IOException {
+        long remaining = 0;
+        for (ByteBuffer src : srcs) {
+            remaining += src.remaining();
+        }
+        while (remaining > 0) {
+            long written = channel.write(srcs);
+            remaining -= written;
+            if (written == 0) {
+                // Socket buffer is full, wait for the other end to catch up
+                if (writeSelector.select(WRITE_TIMEOUT) == 0) {
+                    throw new IOException("Timed out writing to " + linkName);
+                }
+                writeSelector.selectedKeys().clear();
+            }
+        }
+    }
+
+    @Override
+    public void flush() {
+        // Nothing is buffered on this side
+    }
+
+    @Override
+    public void configure(int baudRate, FlowControl flow) {
+        // We're TCP based, so no baud rate!
+    }
+
+    @Override
+    public boolean isClearToSend() {
+        return true;
+    }
+
+    @Override
+    public String getLinkName() {
+        return linkName;
+    }
+
+    @Override
+    public void close() throws IOException {
+        readSelector.close();
+        writeSelector.close();
+        channel.close();
+    }
+}
@@ -0,0 +1,165 @@
+package ags.communication;
+
+import java.util.Arrays;
+
+/**
+ * Looks for one or more byte patterns in a stream of input, one byte at a time.
+ * The patterns are compiled into an Aho-Corasick automaton expanded to a full transition table, so
+ * each byte costs one table lookup, nothing is buffered or re-scanned and no garbage is created.
+ * With high-bit folding the patterns and the input are compared on their low 7 bits, which is how
+ * text echoed by the apple is matched against plain ascii.
+ * A matcher keeps its position between calls, so it is owned by one thread at a time.
+ * @author brobert
+ */
+public class StreamMatcher {
+
+    private static final int ALPHABET = 256;
+    // How much recent input is kept for error messages
+    private static final int HISTORY_SIZE = 64;
+    private final int foldMask;
+    private final int[] next;
+    // Lowest numbered pattern ending at each state, or -1
+    private final int[] matches;
+    private final byte[] history = new byte[HISTORY_SIZE];
+    private int state = 0;
+    private long seen = 0;
+
+    /**
+     * Constructor
+     * @param foldHighBit If true, bytes are compared without their high bit
+     * @param patterns Text to look for (characters 0-255)
+     */
+    public StreamMatcher(boolean foldHighBit, String... patterns) {
+        this(foldHighBit, toBytes(patterns));
+    }
+
+    /**
+     * Constructor
+     * @param foldHighBit If true, bytes are compared without their high bit
+     * @param patterns Byte sequences to look for
+     */
+    public StreamMatcher(boolean foldHighBit, byte[]... patterns) {
+        foldMask = foldHighBit ? 0x07f : 0x0ff;
+        int maxStates = 1;
+        for (byte[] pattern : patterns) {
+            if (pattern.length == 0) {
+                throw new IllegalArgumentException("Patterns must not be empty");
+            }
+            maxStates += pattern.length;
+        }
+        int[] trie = new int[maxStates * ALPHABET];
+        int[] found = new int[maxStates];
+        Arrays.fill(trie, -1);
+        Arrays.fill(found, -1);
+        int states = 1;
+        for (int p = 0; p < patterns.length; p++) {
+            int s = 0;
+            for (byte b : patterns[p]) {
+                int edge = s * ALPHABET + (b & foldMask);
+                if (trie[edge] < 0) {
+                    trie[edge] = states++;
+                }
+                s = trie[edge];
+            }
+            if (found[s] < 0) {
+                found[s] = p;
+            }
+        }
+        // Breadth-first: fill in the missing transitions from each state's failure state
+        int[] failure = new int[states];
+        int[] queue = new int[states];
+        int queued = 0;
+        for (int c = 0; c < ALPHABET; c++) {
+            if (trie[c] < 0) {
+                trie[c] = 0;
+            } else {
+                queue[queued++] = trie[c];
+            }
+        }
+        for (int q = 0; q < queued; q++) {
+            int r = queue[q];
+            int f = failure[r];
+            // A pattern ending at the failure state also ends here
+            if (found[f] >= 0 && (found[r] < 0 || found[f] < found[r])) {
+                found[r] = found[f];
+            }
+            for (int c = 0; c < ALPHABET; c++) {
+                int u = trie[r * ALPHABET + c];
+                if (u < 0) {
+                    trie[r * ALPHABET + c] = trie[f * ALPHABET + c];
+                } else {
+                    failure[u] = trie[f * ALPHABET + c];
+                    queue[queued++] = u;
+                }
+            }
+        }
+        next = Arrays.copyOf(trie, states * ALPHABET);
+        matches = Arrays.copyOf(found, states);
+    }
+
+    private static byte[][] toBytes(String[] patterns) {
+        byte[][] out = new byte[patterns.length][];
+        for (int i = 0; i < patterns.length; i++) {
+            out[i] = new byte[patterns[i].length()];
+            for (int j = 0; j < out[i].length; j++) {
+                out[i][j] = (byte) patterns[i].charAt(j);
+            }
+        }
+        return out;
+    }
+
+    /**
+     * Forget any partial match and the input history
+     */
+    public void reset() {
+        state = 0;
+        seen = 0;
+    }
+
+    /**
+     * Process the next byte of input
+     * @param b Byte received
+     * @return Number of the pattern that ends with this byte (lowest if several do), or -1
+     */
+    public int feed(int b) {
+        history[(int) (seen++ & (HISTORY_SIZE - 1))] = (byte) b;
+        state = next[(state << 8) | (b & foldMask)];
+        return matches[state];
+    }
+
+    /**
+     * Process input until a pattern is found; anything after the match is not looked at
+     * @param data Buffer of input
+     * @param offset Starting offset
+     * @param length Number of bytes available
+     * @return Number of the pattern found, or -1
+     */
+    public int feed(byte[] data, int offset, int length) {
+        for (int i = offset; i < offset + length; i++) {
+            int found = feed(data[i]);
+            if (found >= 0) {
+                return found;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return Number of bytes processed since the last reset
+     */
+    public long getCount() {
+        return seen;
+    }
+
+    /**
+     * @return The most recent input (up to the last 64 bytes), for error messages
+     */
+    public byte[] getRecent() {
+        int size = (int) Math.min(seen, HISTORY_SIZE);
+        byte[] out = new byte[size];
+        for (int i = 0; i < size; i++) {
+            out[i] = history[(int) ((seen - size + i) & (HISTORY_SIZE - 1))];
+        }
+        return out;
+    }
+}
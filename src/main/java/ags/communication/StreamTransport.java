@@ -0,0 +1,99 @@
+package ags.communication;
+
+import ags.communication.GenericHost.FlowControl;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Transport over a plain pair of streams, such as an in-process ags.emulator.VirtualApple
+ * @author brobert
+ */
+public class StreamTransport implements Transport {
+
+    final InputStream in;
+    final OutputStream out;
+    private final String linkName;
+    // Used to copy buffers that don't expose their backing array (direct or mapped buffers)
+    private final byte[] scratch = new byte[4096];
+
+    /**
+     * Constructor
+     * @param in Bytes coming from the apple
+     * @param out Bytes going to the apple
+     * @param linkName Name used to remember settings for this link
+     */
+    public StreamTransport(InputStream in, OutputStream out, String linkName) {
+        this.in = in;
+        this.out = out;
+        this.linkName = linkName;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return in.available();
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        int size;
+        if (dst.hasArray()) {
+            size = in.read(dst.array(), dst.arrayOffset() + dst.position(), dst.remaining());
+            if (size > 0) {
+                dst.position(dst.position() + size);
+            }
+        } else {
+            size = in.read(scratch, 0, Math.min(scratch.length, dst.remaining()));
+            if (size > 0) {
+                dst.put(scratch, 0, size);
+            }
+        }
+        if (size < 0) {
+            throw new IOException("Connection to " + linkName + " closed");
+        }
+        return size;
+    }
+
+    @Override
+    public void write(ByteBuffer... srcs) throws IOException {
+        for (ByteBuffer src : srcs) {
+            if (src.hasArray()) {
+                out.write(src.array(), src.arrayOffset() + src.position(), src.remaining());
+                src.position(src.limit());
+            } else {
+                while (src.hasRemaining()) {
+                    int size = Math.min(scratch.length, src.remaining());
+                    src.get(scratch, 0, size);
+                    out.write(scratch, 0, size);
+                }
+            }
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    @Override
+    public void configure(int baudRate, FlowControl flow) throws IOException {
+        // The other end decides how fast the line is
+    }
+
+    @Override
+    public boolean isClearToSend() {
+        return true;
+    }
+
+    @Override
+    public String getLinkName() {
+        return linkName;
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+        out.close();
+    }
+}
@@ -0,0 +1,391 @@
+package ags.communication;
+
+import ags.communication.GenericHost.FlowControl;
+import ags.controller.Configurable;
+import ags.controller.Configurable.CATEGORY;
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Accepts connections from emulators and serial-to-TCP bridges and hands each one over as a Transport.
+ * All socket reads for all connections are done by a few selector threads (one per core unless
+ * LISTENER_THREADS says otherwise), which put what arrives straight into the connection's ReceiveBuffer,
+ * so a connection costs a buffer and not a thread.  Writes are made by whoever is talking to the apple
+ * and only go through the selector when the other end stops taking data.
+ * <p>
+ * Each connection has its own backpressure in both directions: if its receive buffer fills up the
+ * selector stops reading that socket until the session catches up, and a writer waits (up to a few
+ * seconds) for a client that isn't reading.  Connections that are idle for IDLE_TIMEOUT_SECONDS are
+ * closed, and connections beyond MAX_CONNECTIONS are refused.
+ * @author brobert
+ */
+public class TCPListener implements Closeable {
+
+    /**
+     * Most connections served at once; more are closed as soon as they are accepted
+     */
+    @Configurable(category = CATEGORY.ADVANCED, isRequired = false)
+    public static int MAX_CONNECTIONS = 32;
+    /**
+     * Seconds without traffic in either direction before a connection is closed (0 = never)
+     */
+    @Configurable(category = CATEGORY.ADVANCED, isRequired = false)
+    public static int IDLE_TIMEOUT_SECONDS = 300;
+    /**
+     * Number of selector threads (0 = one per core)
+     */
+    @Configurable(category = CATEGORY.ADVANCED, isRequired = false)
+    public static int LISTENER_THREADS = 0;
+
+    /**
+     * Receives each new connection
+     */
+    public interface Handler {
+
+        void connected(Transport connection);
+    }
+
+    private static final int RECEIVE_BUFFER_SIZE = 65536;
+    private static final long CHECK_MILLIS = 1000L;
+    private static final long READ_TIMEOUT_NANOS = 50000000L;
+    private static final long WRITE_TIMEOUT_NANOS = 5000000000L;
+    private final ServerSocketChannel server;
+    private final Handler handler;
+    private final Loop[] loops;
+    private final AtomicInteger connections = new AtomicInteger();
+    private int nextLoop = 0;
+    private volatile boolean closed = false;
+
+    /**
+     * Start listening
+     * @param port TCP port to listen on
+     * @param handler Receives each connection (called on a selector thread, so it should not block)
+     * @throws java.io.IOException If the port could not be opened
+     */
+    public TCPListener(int port, Handler handler) throws IOException {
+        this.handler = handler;
+        server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress(port));
+        server.configureBlocking(false);
+        int threads = LISTENER_THREADS > 0 ? LISTENER_THREADS : Runtime.getRuntime().availableProcessors();
+        loops = new Loop[threads];
+        for (int i = 0; i < threads; i++) {
+            loops[i] = new Loop("TCP listener " + port + " #" + i);
+        }
+        server.register(loops[0].selector, SelectionKey.OP_ACCEPT);
+        for (Loop loop : loops) {
+            loop.thread.start();
+        }
+        System.out.println("Listening for connections on port " + port + " (" + threads + " i/o threads)");
+    }
+
+    /**
+     * @return Number of connections open now
+     */
+    public int getConnections() {
+        return connections.get();
+    }
+
+    /**
+     * Stop listening and close every connection
+     * @throws java.io.IOException If the listening socket could not be closed
+     */
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        for (Loop loop : loops) {
+            loop.selector.wakeup();
+        }
+        server.close();
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel;
+        while ((channel = server.accept()) != null) {
+            if (connections.incrementAndGet() > MAX_CONNECTIONS) {
+                connections.decrementAndGet();
+                System.out.println("Refused connection from " + channel.getRemoteAddress() + ", already serving " + MAX_CONNECTIONS);
+                channel.close();
+                continue;
+            }
+            channel.configureBlocking(false);
+            // Disable Nagle's algorithm for immediate transmission
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            Loop loop = loops[nextLoop++ % loops.length];
+            Connection connection = new Connection(channel);
+            // Nothing is selected until the connection knows its key
+            connection.key = channel.register(loop.selector, 0);
+            connection.key.attach(connection);
+            connection.key.interestOps(SelectionKey.OP_READ);
+            loop.selector.wakeup();
+            System.out.println("Accepted connection from " + channel.getRemoteAddress());
+            handler.connected(connection);
+        }
+    }
+
+    /**
+     * One selector thread and the connections registered with it
+     */
+    private class Loop implements Runnable {
+
+        private final Selector selector;
+        private final Thread thread;
+
+        Loop(String name) throws IOException {
+            selector = Selector.open();
+            thread = new Thread(this, name);
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MAX_PRIORITY);
+        }
+
+        public void run() {
+            long nextCheck = System.nanoTime();
+            while (!closed) {
+                try {
+                    selector.select(CHECK_MILLIS);
+                } catch (IOException ex) {
+                    System.out.println("Selector failed: " + ex.getMessage());
+                    break;
+                }
+                for (Iterator<SelectionKey> i = selector.selectedKeys().iterator(); i.hasNext();) {
+                    SelectionKey key = i.next();
+                    i.remove();
+                    try {
+                        if (!key.isValid()) {
+                            continue;
+                        }
+                        if (key.isAcceptable()) {
+                            accept();
+                            continue;
+                        }
+                        Connection connection = (Connection) key.attachment();
+                        if (key.isReadable()) {
+                            connection.readReady();
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            connection.writeReady();
+                        }
+                    } catch (IOException | CancelledKeyException ex) {
+                        if (key.attachment() instanceof Connection) {
+                            ((Connection) key.attachment()).close(String.valueOf(ex.getMessage()));
+                        } else {
+                            System.out.println("Error accepting connection: " + ex.getMessage());
+                        }
+                    }
+                }
+                long now = System.nanoTime();
+                if (now - nextCheck >= 0) {
+                    nextCheck = now + CHECK_MILLIS * 1000000L;
+                    for (SelectionKey key : selector.keys()) {
+                        if (key.attachment() instanceof Connection) {
+                            ((Connection) key.attachment()).checkIdle(now);
+                        }
+                    }
+                }
+            }
+            for (SelectionKey key : selector.keys()) {
+                if (key.attachment() instanceof Connection) {
+                    ((Connection) key.attachment()).close("server stopped");
+                }
+            }
+            try {
+                selector.close();
+            } catch (IOException ex) {
+                // Nothing left to do with it anyway
+            }
+        }
+    }
+
+    /**
+     * An accepted connection.  Reads happen on its selector thread, writes on the caller's thread.
+     */
+    private class Connection implements Transport {
+
+        private final SocketChannel channel;
+        private final String linkName;
+        private final String metricsName;
+        private final ReceiveBuffer received = new ReceiveBuffer(RECEIVE_BUFFER_SIZE);
+        // Read from the socket but not yet taken by the receive buffer (selector thread only)
+        private final ByteBuffer pending = ByteBuffer.allocate(8192);
+        private final TransferMetrics metrics;
+        private final AtomicBoolean isClosed = new AtomicBoolean();
+        private final byte[] scratch = new byte[4096];
+        private SelectionKey key;
+        private volatile long lastActivity = System.nanoTime();
+        private volatile Thread writer = null;
+
+        Connection(SocketChannel channel) throws IOException {
+            this.channel = channel;
+            // Settings are remembered per client machine, the source port changes every time
+            InetSocketAddress remote = (InetSocketAddress) channel.getRemoteAddress();
+            linkName = "tcp-client:" + remote.getHostString();
+            // but one machine can have several sessions open, and each one needs metrics of its own
+            metricsName = linkName + ":" + remote.getPort();
+            metrics = TransferMetrics.forLink(metricsName);
+        }
+
+        /**
+         * Move what the socket has into the receive buffer, or stop reading if the buffer is full
+         */
+        void readReady() throws IOException {
+            if (pending.position() == 0) {
+                int count = channel.read(pending);
+                if (count < 0) {
+                    close("closed by client");
+                    return;
+                }
+                if (count > 0) {
+                    lastActivity = System.nanoTime();
+                    metrics.received(count);
+                }
+            }
+            pending.flip();
+            received.offer(pending);
+            pending.compact();
+            if (pending.position() > 0) {
+                // The session is behind, leave the rest in the socket until it catches up
+                key.interestOpsAnd(~SelectionKey.OP_READ);
+                if (!received.notifyWhenRoom(this::resumeReading)) {
+                    resumeReading();
+                }
+            }
+        }
+
+        private void resumeReading() {
+            try {
+                key.interestOpsOr(SelectionKey.OP_READ);
+                key.selector().wakeup();
+            } catch (CancelledKeyException ex) {
+                // Closed in the meantime
+            }
+        }
+
+        void writeReady() {
+            key.interestOpsAnd(~SelectionKey.OP_WRITE);
+            Thread t = writer;
+            if (t != null) {
+                LockSupport.unpark(t);
+            }
+        }
+
+        void checkIdle(long now) {
+            if (IDLE_TIMEOUT_SECONDS > 0 && now - lastActivity > IDLE_TIMEOUT_SECONDS * 1000000000L) {
+                close("idle for " + IDLE_TIMEOUT_SECONDS + " seconds");
+            }
+        }
+
+        void close(String reason) {
+            if (!isClosed.compareAndSet(false, true)) {
+                return;
+            }
+            System.out.println("Closing connection " + linkName + ": " + reason);
+            key.cancel();
+            try {
+                channel.close();
+            } catch (IOException ex) {
+                // Already gone
+            }
+            connections.decrementAndGet();
+            TransferMetrics.release(metricsName);
+            received.fail(new IOException("Connection to " + linkName + " closed: " + reason));
+            Thread t = writer;
+            if (t != null) {
+                LockSupport.unpark(t);
+            }
+        }
+
+        @Override
+        public int available() throws IOException {
+            return received.available();
+        }
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            received.await(1, System.nanoTime() + READ_TIMEOUT_NANOS);
+            int size = received.drain(scratch, 0, Math.min(scratch.length, dst.remaining()));
+            dst.put(scratch, 0, size);
+            return size;
+        }
+
+        @Override
+        public void write(ByteBuffer... srcs) throws IOException {
+            long remaining = 0;
+            for (ByteBuffer src : srcs) {
+                remaining += src.remaining();
+            }
+            long deadline = System.nanoTime() + WRITE_TIMEOUT_NANOS;
+            while (remaining > 0) {
+                if (isClosed.get()) {
+                    throw new IOException("Connection to " + linkName + " closed");
+                }
+                long written = channel.write(srcs);
+                remaining -= written;
+                if (written > 0) {
+                    lastActivity = System.nanoTime();
+                    continue;
+                }
+                // Socket buffer is full, let the selector say when the client has taken some
+                long wait = deadline - System.nanoTime();
+                if (wait <= 0) {
+                    throw new IOException("Timed out writing to " + linkName);
+                }
+                writer = Thread.currentThread();
+                try {
+                    key.interestOpsOr(SelectionKey.OP_WRITE);
+                } catch (CancelledKeyException ex) {
+                    throw new IOException("Connection to " + linkName + " closed");
+                }
+                key.selector().wakeup();
+                LockSupport.parkNanos(this, wait);
+                writer = null;
+            }
+        }
+
+        @Override
+        public void flush() {
+            // Nothing is buffered on this side
+        }
+
+        @Override
+        public void configure(int baudRate, FlowControl flow) {
+            // We're TCP based, so no baud rate!
+        }
+
+        @Override
+        public boolean isClearToSend() {
+            return true;
+        }
+
+        @Override
+        public String getLinkName() {
+            return linkName;
+        }
+
+        @Override
+        public String getMetricsName() {
+            return metricsName;
+        }
+
+        @Override
+        public ReceiveBuffer getReceiveBuffer() {
+            return received;
+        }
+
+        @Override
+        public void close() {
+            close("closed by server");
+        }
+    }
+}
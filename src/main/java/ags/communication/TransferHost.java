@@ -7,6 +7,8 @@ import ags.controller.Launcher;
 import ags.disk.Disk33;
 import ags.disk.Drive;
 import com.fazecast.jSerialComm.SerialPort;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
 import ags.game.Game;
 import ags.game.Game.Disk;
@@ -18,6 +20,11 @@ import ags.script.Target;
 import ags.script.Variable;
 import ags.ui.TextScreen40;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -43,16 +50,112 @@ public class TransferHost extends GenericHost {
      */
     @Configurable(category = CATEGORY.ADVANCED, isRequired = false)
     public static int MAX_CHUNK_SIZE = 4096;
+    /**
+     * Smallest data chunk the transfer will shrink to after errors
+     */
+    @Configurable(category = CATEGORY.ADVANCED, isRequired = false)
+    public static int MIN_CHUNK_SIZE = 64;
+    /**
+     * Number of bytes the chunk size grows by after each good chunk
+     */
+    @Configurable(category = CATEGORY.ADVANCED, isRequired = false)
+    public static int CHUNK_SIZE_STEP = 256;
+    /**
+     * Number of data chunks allowed in flight before waiting on their checksums (1 = stop-and-wait).
+     * Only 1 is safe on a link that can drop bytes: a chunk that comes up short ends inside the next
+     * chunk's A-B-C header or data, and the driver then runs the rest of it as commands.
+     */
+    @Configurable(category = CATEGORY.ADVANCED, isRequired = false)
+    public static int TRANSFER_WINDOW = 1;
     /**
      * Maximum consecutive errors allowed when transferring binary data
      */
     @Configurable(category = CATEGORY.ADVANCED, isRequired = false)
     public static int MAX_ERRORS_ALLOWED = 10;
+    /**
+     * Send game binaries through the packbits decompressor wherever that is faster than sending them raw
+     */
+    @Configurable(category = CATEGORY.ADVANCED, isRequired = false)
+    public static boolean COMPRESS_GAMES = true;
+    /**
+     * Pack screens for the shortest transfer time (OptimalPackbitsEncoder) rather than with the greedy encoder
+     */
+    @Configurable(category = CATEGORY.ADVANCED, isRequired = false)
+    public static boolean OPTIMAL_SCREEN_COMPRESSION = true;
+    /**
+     * Size of the regions game data is split into when deciding whether to compress it
+     */
+    @Configurable(category = CATEGORY.ADVANCED, isRequired = false)
+    public static int COMPRESSION_REGION_SIZE = 2048;
     /**
      * Number of ack requests to send in a row when performing a last-ditch effort to communicate with the apple
      */
     @Configurable(category = CATEGORY.ADVANCED, isRequired = false)
     public static int MAX_ACK_BURST = 16;
+    /**
+     * How long the driver is trusted to still be listening after its last good answer before a command
+     * starts with an ack request (errors and running apple code always lead to one)
+     */
+    @Configurable(category = CATEGORY.ADVANCED, isRequired = false)
+    public static int LINK_IDLE_MILLIS = 2000;
+    /**
+     * Seconds a keyboard watch may go without a key before it is ended and started again, so that a menu
+     * left alone still has traffic on the link (TCPListener closes connections idle for IDLE_TIMEOUT_SECONDS)
+     */
+    @Configurable(category = CATEGORY.ADVANCED, isRequired = false)
+    public static int KEY_WATCH_REFRESH_SECONDS = 60;
+    /**
+     * Where the speed routine (init/speed.a) is loaded and run
+     */
+    private static final int SPEED_ROUTINE_ADDRESS = 0x0300;
+    /**
+     * What the speed routine expects to receive at the new speed.  None of these is a driver command, so
+     * whatever is left of it after a mismatch is beeped at and ignored.
+     */
+    private static final byte[] SPEED_TEST_PATTERN = {0x55, (byte) 0xAA, 0x00, (byte) 0xFF, 0x0F, (byte) 0xF0, 0x33, (byte) 0xCC};
+    /**
+     * Leave out of transfers whatever the memory shadow says the apple already has
+     */
+    @Configurable(category = CATEGORY.ADVANCED, isRequired = false)
+    public static boolean MEMORY_SHADOW = true;
+    /**
+     * Shortest run of bytes the apple already has that is worth splitting a transfer around
+     * (about what the A-B-C header and checksum of another chunk cost)
+     */
+    private static final int SHADOW_MIN_SKIP = 32;
+    /**
+     * Send raw data as sequence-numbered, checksummed frames ('L') when the extension module supports them
+     */
+    @Configurable(category = CATEGORY.ADVANCED, isRequired = false)
+    public static boolean FRAMED_TRANSFERS = true;
+    /**
+     * Number of frames allowed in flight before waiting on their replies.  Only 1 is safe on a link that
+     * can drop bytes: a frame that comes up short ends inside the next one, and the driver then runs the
+     * rest of that frame's bytes as commands.
+     */
+    @Configurable(category = CATEGORY.ADVANCED, isRequired = false)
+    public static int FRAME_WINDOW = 1;
+    /**
+     * Largest amount of data in one frame
+     */
+    private static final int MAX_FRAME_SIZE = 256;
+    /**
+     * Bytes in a frame besides the data ('L', sequence, length, address, two sums)
+     */
+    private static final int FRAME_OVERHEAD = 7;
+    /**
+     * How much longer than the line needs to deliver them a frame reply may take
+     */
+    private static final int FRAME_TIMEOUT_MILLIS = 100;
+    /**
+     * Driver scratch byte (high byte of the block length) that the probe frame writes; the frame code
+     * keeps no state of its own there
+     */
+    private static final int FRAME_PROBE_ADDRESS = 0x0009;
+    /**
+     * Size of the blocks the driver's 'J' command reports a CRC for
+     */
+    public static final int CRC_PAGE_SIZE = 256;
     /**
      * Address of routine to run the current basic program
      */
@@ -90,6 +193,43 @@ public class TransferHost extends GenericHost {
     @FileType("o,asm,obj")
     public static String DECOMPRESSOR_ROUTINE = "ags/asm/deflate.o";
 
+    /**
+     * Does the driver report each block's checksum on its own? (null until the first transfer finds out)
+     */
+    Boolean driverSendsChecksums = null;
+    /**
+     * Reusable buffer for assembling driver commands
+     */
+    private final CommandFrame frame = new CommandFrame();
+    /**
+     * Chunk size learned for this link (created on the first transfer)
+     */
+    ChunkSizeController chunkSizes = null;
+    /**
+     * What this host has stored in the apple's memory
+     */
+    private final MemoryShadow shadow = new MemoryShadow();
+    /**
+     * When the driver last answered correctly
+     */
+    private final LinkHealth health = new LinkHealth();
+    /**
+     * Is the driver sending keypresses as they are typed ('G')?
+     */
+    private boolean watchingKeys = false;
+    /**
+     * When the current keyboard watch was started
+     */
+    private long watchStarted = 0;
+    /**
+     * Keys that arrived while a keyboard watch was being ended, oldest first
+     */
+    private final ArrayDeque<Byte> typeahead = new ArrayDeque<>();
+    /**
+     * Frame that ends a keyboard watch (kept apart so the command being sent isn't overwritten)
+     */
+    private final CommandFrame watchEnd = new CommandFrame();
+
     public TransferHost() {
         super();
     }
@@ -102,37 +242,74 @@ public class TransferHost extends GenericHost {
         super(port);
     }
 
+    /**
+     * Constructor
+     * @param transport Connection to the apple
+     */
+    public TransferHost(Transport transport) {
+        super(transport);
+    }
+
     /**
      * Init the apple and send the driver code to it
      * @throws java.io.IOException If there is a problem resulting in unexpected input
      */
     public void init() throws IOException {
         Thread.currentThread().setName("Initalizing Serial Driver");
+        driverSendsChecksums = null;
+        health.doubt();
+        watchingKeys = false;
+        typeahead.clear();
 //        expectEcho = false;
         System.out.println("Executing init script.");
         Engine.start(INIT_FILE);
         // ensure the loader is running, falling back to the test routine if necessary
         try {
             expect(DRIVER_ACK, 2000, false);
+            health.confirmed();
             System.out.println("Received acknowledgement response from Apple!");
-            GenericHost.setBootstrapPhase(false); // Switch to fast runtime communication
+            setBootstrapPhase(false); // Switch to fast runtime communication
         } catch (IOException e) {
             Thread.currentThread().setName("Error during startup");
             System.out.println("Didn't get an immediate response from the driver, trying a few acknowledge tests.");
             try {
                 testDriver();
                 System.out.println("Received acknowledgement response from Apple!");
-                GenericHost.setBootstrapPhase(false); // Switch to fast runtime communication
+                setBootstrapPhase(false); // Switch to fast runtime communication
                 Thread.currentThread().setName("Recovered from startup error");
             } catch (IOException ex) {
                 System.out.println("ALERT: Didn't detect the apple driver is running.  Ensure it is started (will retry in 20 seconds)");
                 System.out.println("For example, try pressing ctrl-reset on the apple and typing CALL 2049");
             }
         }
+        // The init script had the monitor write wherever it wanted, and a restarted driver has no extension
+        shadow.invalidateAll();
+        store80 = false;
+        decompressorLoaded = false;
+        // The init script knows whether the serial port can go faster than the driver starts out
+        Variable fastBaud = Variable.getVariable("fastBaud");
+        if (!isBootstrapPhase() && fastBaud.isInitalized()) {
+            try {
+                speedUp(Integer.parseInt(fastBaud.getValue()));
+            } catch (IOException | NumberFormatException ex) {
+                System.out.println("Could not speed up the link: " + ex.getMessage());
+            }
+        }
+    }
+
+    /**
+     * @return What this host has stored in the apple's memory
+     */
+    public MemoryShadow getShadow() {
+        return shadow;
     }
 
     /**
      * Send a chunk of raw binary data directly to the apple's ram
+     * Up to TRANSFER_WINDOW chunks are kept in flight; their checksums are verified as they come back
+     * and only the chunks that failed are sent again.  Chunk sizes are picked by the link's ChunkSizeController.
+     * When the extension module is loaded, a chunk with a bad checksum is checked page by page with CRC-16
+     * and only the damaged pages are sent again.
      * @param fileData Data to send
      * @param addressStart Starting address in apple's ram to load data
      * @param dataStart Starting offset in data to send
@@ -141,58 +318,540 @@ public class TransferHost extends GenericHost {
      * @return Total number of errors experienced when sending data
      */
     public int sendRawData(byte[] fileData, int addressStart, int dataStart, int length) throws IOException, IOException {
-        int offset = dataStart;
+        return sendRawData(ByteBuffer.wrap(fileData), addressStart, dataStart, length);
+    }
+
+    /**
+     * Send part of a file straight from the file system cache, without reading it into memory first
+     * @param file File to send from
+     * @param position Starting position in the file
+     * @param length Number of bytes to send
+     * @param addressStart Address in apple's ram to load the data
+     * @throws java.io.IOException If the file can't be mapped or there was trouble sending data
+     * @return Total number of errors experienced when sending data
+     */
+    public int sendRawData(FileChannel file, long position, int length, int addressStart) throws IOException {
+        return sendRawData(file.map(FileChannel.MapMode.READ_ONLY, position, length), addressStart, 0, length);
+    }
+
+    /**
+     * Send a chunk of raw binary data directly to the apple's ram (see sendRawData(byte[], int, int, int))
+     * The data is only read, never copied, so it can come from a memory-mapped file or a cached payload.
+     * Ranges the memory shadow says the apple already has are left out, unless they are too short to be
+     * worth a separate chunk.  Pages the apple had before are checked first (see revalidatePages).
+     * @param fileData Data to send, indexed from the start of the buffer (its position is ignored)
+     * @param addressStart Starting address in apple's ram to load data
+     * @param dataStart Starting offset in data to send
+     * @param length Length of data to send over
+     * @throws java.io.IOException If there was trouble sending data after a number of attempts
+     * @return Total number of errors experienced when sending data
+     */
+    public int sendRawData(ByteBuffer fileData, int addressStart, int dataStart, int length) throws IOException {
+        int end = dataStart + length;
+        if (!MEMORY_SHADOW) {
+            return storeRawData(fileData, addressStart, dataStart, length);
+        }
+        revalidatePages(fileData, addressStart, dataStart, end, false);
+        int totalErrors = 0;
+        int skipped = 0;
+        int pos = shadow.findDifference(addressStart, fileData, dataStart, end);
+        skipped += pos - dataStart;
+        while (pos < end) {
+            // Extend the range over matching runs too short to be worth skipping
+            int rangeEnd = shadow.findMatch(addressStart, fileData, pos, end);
+            int next = shadow.findDifference(addressStart, fileData, rangeEnd, end);
+            while (next < end && next - rangeEnd < SHADOW_MIN_SKIP) {
+                rangeEnd = shadow.findMatch(addressStart, fileData, next, end);
+                next = shadow.findDifference(addressStart, fileData, rangeEnd, end);
+            }
+            totalErrors += storeRawData(fileData, addressStart, pos, rangeEnd - pos);
+            skipped += next - rangeEnd;
+            pos = next;
+        }
+        if (skipped > 0) {
+            getMetrics().shadowSkipped(skipped);
+            System.out.println("Skipped " + skipped + " of " + length + " bytes the apple already has");
+        }
+        return totalErrors;
+    }
+
+    /**
+     * Ask the apple whether whole pages it was sent before (and may have kept through a reset or a program
+     * that didn't touch them) still hold the same data, and mark the ones that do as valid so they aren't
+     * sent again.  Only pages whose last known contents match the new data are checked, so memory that was
+     * never sent this data isn't trusted on a 16-bit sum alone.  The 'K' command is in the extension module.
+     * @param fileData Data to send, indexed from the start of the buffer
+     * @param addressStart Starting address in apple's ram of fileData[0]
+     * @param dataStart Starting offset in data
+     * @param end End of the data
+     * @param loadExtension Load the extension module if it isn't there (false if it might be overwritten)
+     * @return Number of pages found intact
+     * @throws java.io.IOException If data could not be sent
+     */
+    private int revalidatePages(ByteBuffer fileData, int addressStart, int dataStart, int end, boolean loadExtension) throws IOException {
+        int firstPage = (addressStart + dataStart + CRC_PAGE_SIZE - 1) / CRC_PAGE_SIZE;
+        int endPage = Math.min(MemoryShadow.SIZE, addressStart + end) / CRC_PAGE_SIZE;
+        int found = 0;
+        int page = firstPage;
+        while (page < endPage) {
+            while (page < endPage && !isStalePage(fileData, addressStart, page)) {
+                page++;
+            }
+            int runStart = page;
+            while (page < endPage && page - runStart < 255 && isStalePage(fileData, addressStart, page)) {
+                page++;
+            }
+            if (page == runStart) {
+                break;
+            }
+            if (!decompressorLoaded) {
+                if (!loadExtension) {
+                    break;
+                }
+                loadDecompressor();
+            }
+            int matched = checkPageSums(fileData, addressStart, runStart, page - runStart);
+            if (matched < 0) {
+                break;
+            }
+            found += matched;
+        }
+        return found;
+    }
+
+    /**
+     * @return true if the page is not known to be in memory but the apple had this data there before
+     */
+    private boolean isStalePage(ByteBuffer fileData, int addressStart, int page) {
+        // Reading the i/o page would hit every soft switch in it
+        if (page >= 0x0c0 && page < 0x0d0) {
+            return false;
+        }
+        int offset = page * CRC_PAGE_SIZE - addressStart;
+        int end = offset + CRC_PAGE_SIZE;
+        return shadow.findDifference(addressStart, fileData, offset, end) < end
+                && shadow.wasStored(addressStart, fileData, offset, end);
+    }
+
+    /**
+     * Get the quick sum of a run of pages from the apple and mark the ones that match as valid
+     * @param fileData Data to send, indexed from the start of the buffer
+     * @param addressStart Starting address in apple's ram of fileData[0]
+     * @param firstPage First page to check
+     * @param pages Number of pages (up to 255)
+     * @return Number of pages that matched, or -1 if the driver didn't answer
+     * @throws java.io.IOException If data could not be sent
+     */
+    private int checkPageSums(ByteBuffer fileData, int addressStart, int firstPage, int pages) throws IOException {
+        readBytes(); // Clear input buffer
+        writeFrame(frame.reset().command('K').operand(firstPage).operand(pages));
+        // The driver needs about 19 cycles per byte for the sum
+        int timeout = 100 + (int) (DataUtil.cyclesToNanos(CRC_PAGE_SIZE * 20) / 1000000L);
+        int matched = 0;
+        for (int page = firstPage; page < firstPage + pages; page++) {
+            int lo = readByte(timeout);
+            int hi = readByte(timeout);
+            if (lo < 0 || hi < 0) {
+                System.out.println("No answer to page sum request, sending pages instead");
+                tryToFixDriver();
+                return -1;
+            }
+            int offset = page * CRC_PAGE_SIZE - addressStart;
+            if (((hi << 8) | lo) == computePageSum(fileData, offset, CRC_PAGE_SIZE)) {
+                shadow.store(addressStart, fileData, offset, CRC_PAGE_SIZE);
+                matched++;
+            }
+        }
+        health.confirmed();
+        System.out.println("Page sums found " + matched + " of " + pages + " pages still in memory at $"
+                + Integer.toHexString(firstPage * CRC_PAGE_SIZE));
+        return matched;
+    }
+
+    /**
+     * Send raw data and record it in the memory shadow once the apple has it
+     * @param fileData Data to send, indexed from the start of the buffer
+     * @param addressStart Starting address in apple's ram to load data
+     * @param dataStart Starting offset in data to send
+     * @param length Length of data to send over
+     * @throws java.io.IOException If there was trouble sending data after a number of attempts
+     * @return Total number of errors experienced when sending data
+     */
+    private int storeRawData(ByteBuffer fileData, int addressStart, int dataStart, int length) throws IOException {
+        // Whatever happens, the old contents can't be relied on any more
+        shadow.invalidate(addressStart + dataStart, length);
+        int errors = transmitRawData(fileData, addressStart, dataStart, length);
+        shadow.store(addressStart, fileData, dataStart, length);
+        return errors;
+    }
+
+    /**
+     * Send a range of raw data with the A-B-C commands, verifying each chunk
+     * @param fileData Data to send, indexed from the start of the buffer
+     * @param addressStart Starting address in apple's ram to load data
+     * @param dataStart Starting offset in data to send
+     * @param length Length of data to send over
+     * @throws java.io.IOException If there was trouble sending data after a number of attempts
+     * @return Total number of errors experienced when sending data
+     */
+    private int transmitRawData(ByteBuffer fileData, int addressStart, int dataStart, int length) throws IOException {
+        int next = dataStart;
         int end = dataStart + length;
-        int chunkSize = MAX_CHUNK_SIZE;
         int totalErrors = 0;
         int errors = 0;
-        testDriver();
-        while (offset < end && errors < MAX_ERRORS_ALLOWED) {
+        ArrayDeque<Chunk> inFlight = new ArrayDeque<Chunk>();
+        ArrayDeque<Chunk> retry = new ArrayDeque<Chunk>();
+        ArrayDeque<Chunk> damaged = new ArrayDeque<Chunk>();
+        // The page CRC command lives in the extension module, so it can't be used if this transfer overwrites it
+        if (overlapsExtension(addressStart + dataStart, length)) {
+            decompressorLoaded = false;
+            extensionOverwritten = true;
+        }
+        // Past 115200 (the //gs at 230400) frames would have to be paced, but A-B-C blocks keep up
+        boolean framesKeepUp = DataUtil.cyclesToNanos(CommandFrame.FRAME_CYCLES) <= DataUtil.nanosPerCharAtSpeed(currentBaud);
+        if (FRAMED_TRANSFERS && framesKeepUp && decompressorLoaded && extensionSupportsFrames()) {
+            return transmitFrames(fileData, addressStart, dataStart, length);
+        }
+        boolean canCheckPages = decompressorLoaded;
+        if (chunkSizes == null) {
+            chunkSizes = new ChunkSizeController(getLinkName(), MIN_CHUNK_SIZE, MAX_CHUNK_SIZE, CHUNK_SIZE_STEP);
+        }
+        long startTime = System.nanoTime();
+        checkDriver();
+        while ((next < end || !retry.isEmpty() || !inFlight.isEmpty() || !damaged.isEmpty()) && errors < MAX_ERRORS_ALLOWED) {
             Launcher.checkRuntimeStatus();
-            // Set size so that it won't exceed the remainder of the data
-            int size = Math.min(chunkSize, end - offset);
-//            System.out.println("sending offset: " + offset + ", length=" + size);
-            writeQuickly("A");
-            writeOutput(DataUtil.getWord(offset + addressStart));
-            writeQuickly("B");
-            // Add 1 to hi and lo bytes after subtracting one from the total size
-            // This was done here to reduce the SOS driver size by 4 bytes
-            int useSize = (0x0ff00 & (size + 255)) | (0x0FF & (size));
-            writeOutput(DataUtil.getWord(useSize));
-            writeQuickly("C");
-            // Send data chunk
-            writeOutput(fileData, offset, size);
-            try {
-                // Verify checksum
-                byte[] checksum = computeChecksum(fileData, offset, size);
-                readBytes(); // Clear input buffer
-                writeQuickly("D");
-                expectBytes(checksum, 500);
+            // Once everything in flight is accounted for, find out which pages of the bad chunks need resending
+            while (inFlight.isEmpty() && !damaged.isEmpty()) {
+                Chunk chunk = damaged.poll();
+                if (!resendDamagedPages(fileData, addressStart, chunk, retry)) {
+                    // No usable answer, so resend the whole thing
+                    retry.add(chunk);
+                }
+            }
+            if (next >= end && retry.isEmpty() && inFlight.isEmpty()) {
+                break;
+            }
+            // Fill the window, but fall back to one chunk at a time while recovering from an error
+            int window = Boolean.TRUE.equals(driverSendsChecksums) && errors == 0 ? Math.max(1, TRANSFER_WINDOW) : 1;
+            while (inFlight.size() < window && (!retry.isEmpty() || next < end)) {
+                Chunk chunk = retry.poll();
+                if (chunk == null) {
+                    // Set size so that it won't exceed the remainder of the data
+                    chunk = new Chunk(fileData, next, Math.min(chunkSizes.getChunkSize(), end - next));
+                    next += chunk.size;
+                }
+                sendChunk(fileData, addressStart, chunk);
+                inFlight.add(chunk);
+            }
+            // Checksums come back in the same order the chunks were sent
+            Chunk chunk = inFlight.poll();
+            int inFlightBytes = chunk.size;
+            for (Chunk c : inFlight) {
+                inFlightBytes += c.size;
+            }
+            int timeout = 500 + (int) (DataUtil.nanosPerCharAtSpeed(currentBaud) * inFlightBytes / 1000000L);
+            int checksum = awaitChecksum(timeout);
+            if (checksum == (chunk.checksum & 0x0ff)) {
                 // If we got this far then the checksum matched.
-                // Move on to the next chunk and restablish the max chunk size.
-                offset += chunkSize;
+                getMetrics().chunkRoundTrip(System.nanoTime() - chunk.sentAt);
+                health.confirmed();
                 errors = 0;
-                chunkSize = MAX_CHUNK_SIZE;
-            } catch (IOException e) {
-                // If we didn't get the expected checksum, retry with a smaller chunk size
-                System.out.println("Checksum failed: " + e.getMessage());
-                errors++;
-                totalErrors++;
-                chunkSize = chunkSize / 2;
-                if (chunkSize < 2) {
-                    chunkSize = 2;
+                chunkSizes.success(chunk.size);
+                continue;
+            }
+            errors++;
+            totalErrors++;
+            getMetrics().checksumFailure();
+            health.doubt();
+            chunkSizes.failure(chunk.size);
+            if (checksum >= 0 && canCheckPages && chunk.size > CRC_PAGE_SIZE) {
+                // The block arrived but is damaged somewhere; ask which pages once the driver is caught up
+                damaged.add(chunk);
+            } else {
+                // Retry the failed chunk with the reduced chunk size
+                int retrySize = Math.max(1, Math.min(chunkSizes.getChunkSize(), chunk.size / 2));
+                for (int pos = chunk.offset + ((chunk.size - 1) / retrySize) * retrySize; pos >= chunk.offset; pos -= retrySize) {
+                    retry.addFirst(new Chunk(fileData, pos, Math.min(retrySize, chunk.offset + chunk.size - pos)));
                 }
+            }
+            if (checksum < 0) {
+                // Nothing came back, so we can't tell what happened to the chunks behind this one either
+                System.out.println("Checksum failed: timed out waiting for chunk at offset " + chunk.offset);
+                while (!inFlight.isEmpty()) {
+                    retry.add(inFlight.poll());
+                }
+            } else {
+                System.out.println("Checksum failed: expected " + (chunk.checksum & 0x0ff) + " but got " + checksum);
+            }
+            if (inFlight.isEmpty()) {
                 // Verify we can still get a response from the driver
                 // In the case of missing bytes this should fill the gap, so to speak
                 tryToFixDriver();
             }
         }
+        chunkSizes.save();
         if (errors >= MAX_ERRORS_ALLOWED) {
             throw new IOException("TOO MANY CHECKSUM ERRORS!  ABORTING TRANSFER!");
         }
+        getMetrics().transfer(length, System.nanoTime() - startTime, currentBaud);
+        long elapsed = Math.max(1, (System.nanoTime() - startTime) / 1000000L);
+        System.out.println("Sent " + length + " bytes in " + elapsed + "ms (" + (length * 1000L / elapsed)
+                + " bytes/sec), " + totalErrors + " errors, chunk size now " + chunkSizes.getChunkSize());
         return totalErrors;
     }
 
+    /**
+     * Ask the driver for the CRC of each page of a chunk that failed its checksum and queue only the
+     * pages that don't match for another try
+     * @param fileData Data being sent
+     * @param addressStart Starting address in apple's ram of the data
+     * @param chunk Chunk that failed
+     * @param retry Queue of chunks to send again
+     * @return false if the driver didn't answer
+     * @throws java.io.IOException If data could not be sent
+     */
+    private boolean resendDamagedPages(ByteBuffer fileData, int addressStart, Chunk chunk, ArrayDeque<Chunk> retry) throws IOException {
+        int useSize = (0x0ff00 & (chunk.size + 255)) | (0x0FF & (chunk.size));
+        readBytes(); // Clear input buffer
+        writeFrame(frame.reset().command('J').word(chunk.offset + addressStart).word(useSize));
+        ArrayDeque<Chunk> badPages = new ArrayDeque<Chunk>();
+        int pages = 0;
+        // Blocks end on apple memory page boundaries, so the first and last ones can be short
+        for (int pageStart = chunk.offset; pageStart < chunk.offset + chunk.size; pages++) {
+            int pageEnd = ((pageStart + addressStart) & ~(CRC_PAGE_SIZE - 1)) + CRC_PAGE_SIZE - addressStart;
+            int pageSize = Math.min(pageEnd, chunk.offset + chunk.size) - pageStart;
+            // The driver needs about 90 cycles per byte to work out the CRC
+            int timeout = 100 + (int) (DataUtil.cyclesToNanos(pageSize * 90) / 1000000L);
+            int lo = readByte(timeout);
+            int hi = readByte(timeout);
+            if (lo < 0 || hi < 0) {
+                System.out.println("No answer to page CRC request, resending whole chunk");
+                tryToFixDriver();
+                return false;
+            }
+            if (((hi << 8) | lo) != computeCrc16(fileData, pageStart, pageSize)) {
+                badPages.add(new Chunk(fileData, pageStart, pageSize));
+            }
+            pageStart += pageSize;
+        }
+        retry.addAll(badPages);
+        System.out.println("CRC check found " + badPages.size() + " of " + pages + " pages damaged in chunk at offset " + chunk.offset);
+        return true;
+    }
+
+    /**
+     * Send the A-B-C command sequence for a single chunk of data
+     * @param fileData Data to send
+     * @param addressStart Starting address in apple's ram to load data
+     * @param chunk Portion of the data to send
+     * @throws java.io.IOException If data could not be sent
+     */
+    private void sendChunk(ByteBuffer fileData, int addressStart, Chunk chunk) throws IOException {
+//        System.out.println("sending offset: " + chunk.offset + ", length=" + chunk.size);
+        // Add 1 to hi and lo bytes after subtracting one from the total size
+        // This was done here to reduce the SOS driver size by 4 bytes
+        int useSize = (0x0ff00 & (chunk.size + 255)) | (0x0FF & (chunk.size));
+        frame.reset()
+                .command('A').word(chunk.offset + addressStart)
+                .command('B').word(useSize)
+                .command('C').payload(fileData.slice(chunk.offset, chunk.size), CommandFrame.DATA_CYCLES);
+        writeFrame(frame);
+        chunk.sentAt = System.nanoTime();
+    }
+
+    /**
+     * Wait for the checksum of the oldest chunk in flight.
+     * Current drivers send it as soon as the chunk is stored, older drivers have to be asked for it.
+     * @param timeout max time (in milliseconds) to wait
+     * @return checksum value or -1 if the driver did not respond in time
+     * @throws java.io.IOException If there was a problem with the port
+     */
+    private int awaitChecksum(int timeout) throws IOException {
+        if (Boolean.FALSE.equals(driverSendsChecksums)) {
+            readBytes(); // Clear input buffer
+            writeFrame(frame.reset().command('D'));
+            return readByte(timeout);
+        }
+        int checksum = readByte(timeout);
+        if (checksum >= 0 || driverSendsChecksums != null) {
+            driverSendsChecksums = Boolean.TRUE;
+            return checksum;
+        }
+        // Nothing yet -- see if this is an older driver that only answers 'D'
+        writeFrame(frame.reset().command('D'));
+        checksum = readByte(timeout);
+        if (checksum >= 0) {
+            System.out.println("Driver does not report checksums on its own, falling back to stop-and-wait transfers");
+            driverSendsChecksums = Boolean.FALSE;
+        }
+        return checksum;
+    }
+
+    /**
+     * Send a range of raw data as frames ('L').  Each frame carries its own sequence number, address and
+     * sums, and the driver answers each one with its sequence number (bit 7 flipped if the sums don't
+     * match), so a damaged frame is found as soon as its reply arrives and only that frame is sent again.
+     * A missing or unexpected reply means bytes were lost; as long as nothing was sent behind the frame
+     * (FRAME_WINDOW = 1) the driver is still inside it, and since a frame is never longer than
+     * FRAME_OVERHEAD + MAX_FRAME_SIZE bytes resynchronizeFrames brings it back in step in a fixed number
+     * of byte times.  Everything not yet answered is then sent again.
+     * @param fileData Data to send, indexed from the start of the buffer
+     * @param addressStart Starting address in apple's ram to load data
+     * @param dataStart Starting offset in data to send
+     * @param length Length of data to send over
+     * @throws java.io.IOException If there was trouble sending data after a number of attempts
+     * @return Total number of errors experienced when sending data
+     */
+    private int transmitFrames(ByteBuffer fileData, int addressStart, int dataStart, int length) throws IOException {
+        int next = dataStart;
+        int end = dataStart + length;
+        int totalErrors = 0;
+        int errors = 0;
+        ArrayDeque<Chunk> inFlight = new ArrayDeque<Chunk>();
+        ArrayDeque<Chunk> retry = new ArrayDeque<Chunk>();
+        long charNanos = DataUtil.nanosPerCharAtSpeed(currentBaud);
+        long startTime = System.nanoTime();
+        checkDriver();
+        while ((next < end || !retry.isEmpty() || !inFlight.isEmpty()) && errors < MAX_ERRORS_ALLOWED) {
+            Launcher.checkRuntimeStatus();
+            // Fall back to one frame at a time while recovering from an error
+            int window = errors == 0 ? Math.max(1, FRAME_WINDOW) : 1;
+            while (inFlight.size() < window && (!retry.isEmpty() || next < end)) {
+                Chunk chunk = retry.poll();
+                if (chunk == null) {
+                    chunk = new Chunk(fileData, next, Math.min(MAX_FRAME_SIZE, end - next));
+                    next += chunk.size;
+                }
+                sendFrame(fileData, addressStart, chunk);
+                inFlight.add(chunk);
+            }
+            Chunk chunk = inFlight.poll();
+            int inFlightBytes = FRAME_OVERHEAD + chunk.size;
+            for (Chunk c : inFlight) {
+                inFlightBytes += FRAME_OVERHEAD + c.size;
+            }
+            int reply = readByte(FRAME_TIMEOUT_MILLIS + (int) (charNanos * inFlightBytes / 1000000L));
+            if (reply == chunk.sequence) {
+                getMetrics().chunkRoundTrip(System.nanoTime() - chunk.sentAt);
+                health.confirmed();
+                errors = 0;
+                continue;
+            }
+            errors++;
+            totalErrors++;
+            getMetrics().checksumFailure();
+            health.doubt();
+            retry.add(chunk);
+            if (reply == (chunk.sequence | 0x080)) {
+                // Damaged, but the driver is still in step with us
+                System.out.println("Frame " + chunk.sequence + " failed its checksum, sending it again");
+                continue;
+            }
+            if (reply < 0) {
+                System.out.println("Timed out waiting for frame " + chunk.sequence + ", resynchronizing");
+            } else {
+                System.out.println("Expected reply to frame " + chunk.sequence + " but got " + reply + ", resynchronizing");
+            }
+            // There's no telling which of the frames behind it arrived
+            retry.addAll(inFlight);
+            inFlight.clear();
+            resynchronizeFrames();
+        }
+        if (errors >= MAX_ERRORS_ALLOWED) {
+            throw new IOException("TOO MANY CHECKSUM ERRORS!  ABORTING TRANSFER!");
+        }
+        getMetrics().transfer(length, System.nanoTime() - startTime, currentBaud);
+        long elapsed = Math.max(1, (System.nanoTime() - startTime) / 1000000L);
+        System.out.println("Sent " + length + " bytes in " + elapsed + "ms (" + (length * 1000L / elapsed)
+                + " bytes/sec) as frames, " + totalErrors + " errors");
+        return totalErrors;
+    }
+
+    /**
+     * Send one frame: 'L', sequence number, length - 1, address, data and the data's two sums
+     * @param fileData Data to send
+     * @param addressStart Starting address in apple's ram of fileData[0]
+     * @param chunk Portion of the data to send (up to MAX_FRAME_SIZE bytes)
+     * @throws java.io.IOException If data could not be sent
+     */
+    private void sendFrame(ByteBuffer fileData, int addressStart, Chunk chunk) throws IOException {
+        // Sequence numbers stay below $40, so no reply can be mistaken for "hi" while resynchronizing
+        chunk.sequence = frameSequence;
+        frameSequence = (frameSequence + 1) & 0x03f;
+        int sum = computePageSum(fileData, chunk.offset, chunk.size);
+        frame.reset()
+                .command('L').operand(chunk.sequence).operand(chunk.size - 1).word(chunk.offset + addressStart)
+                .payload(fileData.slice(chunk.offset, chunk.size), CommandFrame.FRAME_CYCLES)
+                // Checking the sums and replying takes about as long as an ack
+                .operand(sum).operand(sum >> 8, CommandFrame.ACK_CYCLES, 1);
+        writeFrame(frame);
+        chunk.sentAt = System.nanoTime();
+    }
+
+    /**
+     * Get the driver back in step after frame bytes went missing.  Whatever frame it is stuck in needs
+     * fewer than FRAME_OVERHEAD + MAX_FRAME_SIZE more bytes, so that many NULs finish it (NULs between
+     * commands are ignored by the extension) and an ack sent after them has to come back within a known
+     * time.  If it doesn't, tryToFixDriver gets a go.
+     * @throws java.io.IOException If the driver can't be reached at all
+     */
+    private void resynchronizeFrames() throws IOException {
+        getMetrics().driverFix();
+        byte[] fill = new byte[FRAME_OVERHEAD + MAX_FRAME_SIZE];
+        writeFrame(frame.reset()
+                .payload(fill, 0, fill.length, CommandFrame.EXTENSION_CYCLES + CommandFrame.COMMAND_CYCLES)
+                .command('@', CommandFrame.ACK_CYCLES, DRIVER_ACK.length()));
+        try {
+            // writeFrame has already waited out the NULs
+            expect(DRIVER_ACK, FRAME_TIMEOUT_MILLIS + (int) (DataUtil.nanosPerCharAtSpeed(currentBaud) * fill.length / 1000000L), false);
+            readBytes();
+            health.confirmed();
+        } catch (IOException ex) {
+            System.out.println("Driver did not come back in step, trying harder");
+            tryToFixDriver();
+        }
+    }
+
+    /**
+     * Find out (once for each time the extension module is loaded) whether it handles frames, by sending a
+     * one byte frame to a driver scratch byte.  Older modules beep and otherwise ignore it.
+     * @return true if frames can be used
+     * @throws java.io.IOException If the driver stops responding
+     */
+    private boolean extensionSupportsFrames() throws IOException {
+        if (framesSupported == null) {
+            // Sequence number, length, data and sums of the probe are all NUL
+            frameSequence = 0;
+            ByteBuffer probe = ByteBuffer.wrap(new byte[1]);
+            Chunk chunk = new Chunk(probe, 0, 1);
+            readBytes(); // Clear input buffer
+            sendFrame(probe, FRAME_PROBE_ADDRESS, chunk);
+            framesSupported = readByte(500) == chunk.sequence;
+            if (!framesSupported) {
+                System.out.println("Extension module does not support framed transfers, using A-B-C blocks");
+                testDriver();
+            }
+        }
+        return framesSupported;
+    }
+
+    /**
+     * Portion of a raw data transfer, sent and verified as one unit
+     */
+    private static class Chunk {
+        final int offset;
+        final int size;
+        final byte checksum;
+        long sentAt;
+        int sequence;
+
+        Chunk(ByteBuffer fileData, int offset, int size) {
+            this.offset = offset;
+            this.size = size;
+            this.checksum = computeChecksum(fileData, offset, size);
+        }
+    }
+
     /**
      * Store a byte value in the apple's ram
      * @param address Apple memory address to set
@@ -218,6 +877,182 @@ public class TransferHost extends GenericHost {
         storeMemory(address, b);
     }
 
+    /**
+     * Memory patches and soft switch writes to be sent together by sendBatch, in the order they were added
+     */
+    public static class Batch {
+
+        private final List<Integer> addresses = new ArrayList<Integer>();
+        private final List<byte[]> values = new ArrayList<byte[]>();
+        private boolean hasSwitches = false;
+
+        /**
+         * Add a memory patch
+         * @param address Starting address in Apple's ram to store data
+         * @param b One or more bytes to store
+         * @return This batch
+         */
+        public Batch store(int address, byte... b) {
+            addresses.add(address);
+            values.add(b.clone());
+            return this;
+        }
+
+        /**
+         * Add a memory patch
+         * @param address Starting address in Apple's ram to store data
+         * @param i One or more bytes to store
+         * @return This batch
+         */
+        public Batch store(int address, int... i) {
+            byte[] b = new byte[i.length];
+            for (int x = 0; x < i.length; x++) {
+                b[x] = (byte) (i[x] & 0x00ff);
+            }
+            return store(address, b);
+        }
+
+        /**
+         * Add a soft switch.  The switch is written, not read, which works for the display switches and for
+         * the IIe switches that only respond to writes ($C000-$C00F), but not for the language card.
+         * @param address Soft switch address
+         * @return This batch
+         */
+        public Batch touch(int address) {
+            hasSwitches = true;
+            return store(address, 0);
+        }
+
+        public boolean isEmpty() {
+            return addresses.isEmpty();
+        }
+    }
+
+    /**
+     * Send a batch of patches and soft switch writes.  If the extension module is loaded (a batch with soft
+     * switches loads it, as toggleSwitch does) they go out as 'M' packets of several segments each, usually
+     * just one packet with one set of sums and one reply, instead of one A-B-C transfer and one checksum
+     * round trip per patch.  Patches the shadow says the apple already has are left out.
+     * @param batch Patches to send
+     * @throws java.io.IOException If data could not be sent correctly
+     */
+    public void sendBatch(Batch batch) throws IOException {
+        Launcher.checkRuntimeStatus();
+        if (batch.hasSwitches) {
+            loadDecompressor();
+        }
+        boolean remap = false;
+        List<Integer> addresses = new ArrayList<Integer>();
+        List<byte[]> values = new ArrayList<byte[]>();
+        for (int i = 0; i < batch.addresses.size(); i++) {
+            int address = batch.addresses.get(i);
+            byte[] b = batch.values.get(i);
+            if (b.length == 0) {
+                continue;
+            }
+            remap |= changesMemoryMap(address);
+            // Soft switches are I/O, which the shadow never holds
+            if (MEMORY_SHADOW && shadow.findDifference(address, ByteBuffer.wrap(b), 0, b.length) == b.length) {
+                getMetrics().shadowSkipped(b.length);
+                continue;
+            }
+            addresses.add(address);
+            values.add(b);
+        }
+        if (remap) {
+            // Different memory is visible now, and it isn't clear which side of the switch each patch landed on
+            shadow.invalidateAll();
+        }
+        if (addresses.isEmpty()) {
+            return;
+        }
+        if (!FRAMED_TRANSFERS || !decompressorLoaded || !extensionSupportsFrames()) {
+            for (int i = 0; i < addresses.size(); i++) {
+                storeMemory(addresses.get(i), values.get(i));
+            }
+            return;
+        }
+        System.out.println("Storing " + addresses.size() + " patches as a batch");
+        checkDriver();
+        int first = 0;
+        while (first < addresses.size()) {
+            // A packet is never longer than a frame, so resynchronizeFrames still works
+            int size = 5;
+            int last = first;
+            while (last < addresses.size() && size + 3 + values.get(last).length <= FRAME_OVERHEAD + MAX_FRAME_SIZE) {
+                size += 3 + values.get(last).length;
+                last++;
+            }
+            if (last == first) {
+                // Too big to share a packet with anything
+                storeMemory(addresses.get(first), values.get(first));
+                first++;
+                continue;
+            }
+            sendBatchPacket(addresses.subList(first, last), values.subList(first, last), !remap);
+            first = last;
+        }
+    }
+
+    /**
+     * Send one 'M' packet (segment count, sequence number, length - 1, address and data of each segment,
+     * then the two sums of all the segments' data) and wait for its reply, sending it again if it was
+     * damaged and resynchronizing if the reply went missing, as transmitFrames does.
+     * @param addresses Address of each segment
+     * @param values Data of each segment
+     * @param remember Record the data in the shadow once the apple has it
+     * @throws java.io.IOException If the packet could not be sent after a number of attempts
+     */
+    private void sendBatchPacket(List<Integer> addresses, List<byte[]> values, boolean remember) throws IOException {
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        for (byte[] b : values) {
+            data.write(b, 0, b.length);
+        }
+        int sum = computePageSum(ByteBuffer.wrap(data.toByteArray()), 0, data.size());
+        int size = 5 + 3 * values.size() + data.size();
+        long charNanos = DataUtil.nanosPerCharAtSpeed(currentBaud);
+        for (int i = 0; i < addresses.size(); i++) {
+            shadow.invalidate(addresses.get(i), values.get(i).length);
+        }
+        for (int errors = 0; errors < MAX_ERRORS_ALLOWED; errors++) {
+            Launcher.checkRuntimeStatus();
+            int sequence = frameSequence;
+            frameSequence = (frameSequence + 1) & 0x03f;
+            frame.reset().command('M').operand(values.size()).operand(sequence);
+            for (int i = 0; i < addresses.size(); i++) {
+                byte[] b = values.get(i);
+                frame.operand(b.length - 1).word(addresses.get(i)).payload(b, 0, b.length, CommandFrame.FRAME_CYCLES);
+            }
+            frame.operand(sum).operand(sum >> 8, CommandFrame.ACK_CYCLES, 1);
+            long sentAt = System.nanoTime();
+            writeFrame(frame);
+            int reply = readByte(FRAME_TIMEOUT_MILLIS + (int) (charNanos * size / 1000000L));
+            if (reply == sequence) {
+                getMetrics().chunkRoundTrip(System.nanoTime() - sentAt);
+                health.confirmed();
+                if (remember) {
+                    for (int i = 0; i < addresses.size(); i++) {
+                        shadow.store(addresses.get(i), ByteBuffer.wrap(values.get(i)), 0, values.get(i).length);
+                    }
+                }
+                return;
+            }
+            getMetrics().checksumFailure();
+            health.doubt();
+            if (reply == (sequence | 0x080)) {
+                System.out.println("Batch " + sequence + " failed its checksum, sending it again");
+                continue;
+            }
+            if (reply < 0) {
+                System.out.println("Timed out waiting for batch " + sequence + ", resynchronizing");
+            } else {
+                System.out.println("Expected reply to batch " + sequence + " but got " + reply + ", resynchronizing");
+            }
+            resynchronizeFrames();
+        }
+        throw new IOException("TOO MANY CHECKSUM ERRORS!  ABORTING TRANSFER!");
+    }
+
     /**
      * Tell the apple to jump to the specified address (set PC=address)
      * @param address Address to jump to
@@ -225,14 +1060,12 @@ public class TransferHost extends GenericHost {
      * @throws java.io.IOException If data could not be sent correctly
      */
     public void jmp(int address, boolean sub) throws IOException {
-        testDriver();
-        writeQuickly("A");
-        writeOutput(DataUtil.getWord(address));
-        if (sub) {
-            writeQuickly("F");
-        } else {
-            writeQuickly("E");
-        }
+        checkDriver();
+        // There's no telling what the program will change
+        shadow.invalidateAll();
+        writeFrame(frame.reset().command('A').word(address).command(sub ? 'F' : 'E'));
+        // Nor whether it comes back
+        health.doubt();
     }
 
     /**
@@ -242,6 +1075,21 @@ public class TransferHost extends GenericHost {
      * @throws java.io.IOException If data could not be sent correctly
      */
     public boolean startGame(GameBase game) throws IOException {
+        long start = System.nanoTime();
+        boolean connected = launch(game);
+        if (game instanceof Game) {
+            getMetrics().gameStarted(game.getName(), System.nanoTime() - start);
+        }
+        return connected;
+    }
+
+    /**
+     * Load and start a game or one of its parts
+     * @param game Game or part to start
+     * @return true if apple is still connected, false if the apple is no longer connected
+     * @throws java.io.IOException If data could not be sent correctly
+     */
+    private boolean launch(GameBase game) throws IOException {
         Launcher.checkRuntimeStatus();
         Game g;
         Part p = null;
@@ -250,6 +1098,8 @@ public class TransferHost extends GenericHost {
         if (game instanceof Game game1) {
             g = game1;
             Thread.currentThread().setName("Executing game " + g.getName());
+            // Starting a new game, so nothing loaded so far needs protecting
+            extensionOverwritten = false;
             
             // Display loading screen with game name
             displayGameLoadingScreen(g.getName());
@@ -257,7 +1107,7 @@ public class TransferHost extends GenericHost {
             if (g.getPart() != null && !g.getPart().isEmpty()) {
                 for (Part gg : g.getPart()) {
                     System.out.println("Loading game part: " + gg.getName());
-                    if (!startGame(gg)) {
+                    if (!launch(gg)) {
                         System.out.println("Load process terminated at part " + gg.getName());
                         // The program did not return back to the driver.  Time to exit!
                         return false;
@@ -282,12 +1132,13 @@ public class TransferHost extends GenericHost {
             if (game.getType().equalsIgnoreCase(TYPE_BASIC)) {
                 int length = loadGame(game);
                 // Set start address of basic program
-                storeMemory(0xD8, 0x00); // Reset onErr flag
-                storeMemory(toInt(game.getStart()) - 1, 0);
-                storeMemory(BASIC_PTR_START, DataUtil.getWord(toInt(game.getStart())));
-                storeMemory(BASIC_PTR_END, DataUtil.getWord(toInt(game.getStart() + length)));
-                storeMemory(BASIC_PTR_LOMEM, DataUtil.getWord(toInt(game.getStart() + length)));
-                storeMemory(BASIC_PTR_HIMEM, DataUtil.getWord(0x00BEFF));
+                sendBatch(new Batch()
+                        .store(0xD8, 0x00) // Reset onErr flag
+                        .store(toInt(game.getStart()) - 1, 0)
+                        .store(BASIC_PTR_START, DataUtil.getWord(toInt(game.getStart())))
+                        .store(BASIC_PTR_END, DataUtil.getWord(toInt(game.getStart() + length)))
+                        .store(BASIC_PTR_LOMEM, DataUtil.getWord(toInt(game.getStart() + length)))
+                        .store(BASIC_PTR_HIMEM, DataUtil.getWord(0x00BEFF)));
                 // Now execute it!
                 jmp(BASIC_RUN, false);
                 return false;
@@ -305,15 +1156,19 @@ public class TransferHost extends GenericHost {
                     jmp(toInt(game.getStart()), isSubroutine);
                 }
                 if (isSubroutine) {
-                    for (int i = 0; i < 10000; i += 100) {
-                        try {
-                            testDriver();
-                        } catch (IOException e) {
-                            // The program did not return back to the driver yet.
-                            DataUtil.wait(100);
-                            continue;
-                        }
+                    // 'F' answers when the program returns to the driver, so there's no need to keep asking
+                    try {
+                        expect(DRIVER_ACK, 10000, false);
+                        health.confirmed();
                         return true;
+                    } catch (IOException e) {
+                        // The answer may have been lost, ask once before deciding it isn't coming back
+                    }
+                    try {
+                        testDriver();
+                        return true;
+                    } catch (IOException e) {
+                        // The program did not return back to the driver.
                     }
                 }
                 // We launched a program and it's not coming back.
@@ -356,11 +1211,191 @@ public class TransferHost extends GenericHost {
         System.out.println("Starting address: " + g.getStart());
         System.out.println("Length: " + length);
 
-        int totalErrors = sendRawData(fileData, address - offset, offset, length);
+        int totalErrors = sendGameData(fileName, fileData, address - offset, offset, length);
         System.out.println("Finished transfering game with " + totalErrors + " errors");
         return length;
     }
 
+    /**
+     * Send game data, passing each region through the decompressor when that is faster than sending it raw.
+     * Compressed regions are verified with the driver's checksum and sent raw if they don't match.
+     * @param resource Name of the resource the data was read from, or null if it wasn't
+     * @param fileData Data to send
+     * @param addressStart Starting address in apple's ram to load data
+     * @param dataStart Starting offset in data to send
+     * @param length Length of data to send over
+     * @return Total number of errors experienced when sending data
+     * @throws java.io.IOException If there was trouble sending data after a number of attempts
+     */
+    private int sendGameData(String resource, byte[] fileData, int addressStart, int dataStart, int length) throws IOException {
+        // Loading the decompressor would clobber data this game already put there
+        if (!COMPRESS_GAMES || extensionOverwritten) {
+            return sendRawData(fileData, addressStart, dataStart, length);
+        }
+        long charNanos = DataUtil.nanosPerCharAtSpeed(currentBaud);
+        ByteBuffer data = ByteBuffer.wrap(fileData);
+        if (MEMORY_SHADOW) {
+            revalidatePages(data, addressStart, dataStart, dataStart + length, true);
+        }
+        int totalErrors = 0;
+        int compressedBytes = 0;
+        int skippedBytes = 0;
+        long start = System.nanoTime();
+        ArrayDeque<int[]> rawRegions = new ArrayDeque<int[]>();
+        ByteBuffer plan = getCompressionPlan(resource, fileData, addressStart + dataStart, dataStart, length);
+        while (plan.hasRemaining()) {
+            int pos = dataStart + plan.getInt();
+            int size = plan.getInt();
+            // Sent straight from the (usually memory-mapped) plan
+            ByteBuffer packed = plan.slice(plan.position(), plan.getInt());
+            plan.position(plan.position() + packed.limit());
+            // Sending raw only costs as much as what the apple doesn't have already
+            int changed = MEMORY_SHADOW ? shadow.countDifferences(addressStart, data, pos, pos + size) : size;
+            if (changed == 0) {
+                skippedBytes += size;
+                continue;
+            }
+            boolean compressed = false;
+            if (packed.limit() > 0) {
+                long packedNanos = DecompressorTiming.streamNanos(packed, packed.limit(), charNanos, true);
+                if (packedNanos < changed * charNanos * 9 / 10) {
+                    compressed = sendCompressedRegion(packed, fileData, addressStart, pos, size, packedNanos);
+                    if (compressed) {
+                        compressedBytes += size;
+                    } else {
+                        totalErrors++;
+                    }
+                }
+            }
+            if (!compressed) {
+                int[] last = rawRegions.peekLast();
+                if (last != null && last[0] + last[1] == pos) {
+                    last[1] += size;
+                } else {
+                    rawRegions.add(new int[]{pos, size});
+                }
+            }
+        }
+        // Raw regions go last, since they may overwrite the decompressor
+        for (int[] region : rawRegions) {
+            totalErrors += sendRawData(fileData, addressStart, region[0], region[1]);
+        }
+        if (skippedBytes > 0) {
+            getMetrics().shadowSkipped(skippedBytes);
+            System.out.println("Skipped " + skippedBytes + " of " + length + " bytes the apple already has");
+        }
+        if (compressedBytes > 0) {
+            long elapsed = Math.max(1, (System.nanoTime() - start) / 1000000L);
+            System.out.println("Sent " + compressedBytes + " of " + length + " bytes compressed, " + elapsed + "ms total ("
+                    + (length * 1000L / elapsed) + " bytes/sec)");
+        }
+        return totalErrors;
+    }
+
+    /**
+     * Version of the compression plan format and encoder, part of the payload cache key
+     */
+    private static final int COMPRESSION_PLAN_VERSION = 1;
+
+    /**
+     * Split game data into regions and pack the ones that the decompressor is allowed to write, reusing
+     * the result from the payload cache when this data was packed before.
+     * Each region is stored as its offset (relative to the start of the data), size, packed length
+     * and packed data; the packed length is zero for regions that have to be sent raw.
+     * @param resource Name of the resource the data was read from, or null if it wasn't
+     * @param fileData Data to send
+     * @param address Address in apple's ram of the first byte
+     * @param dataStart Starting offset in data to send
+     * @param length Length of data to send
+     * @return Buffer holding the plan
+     */
+    private static ByteBuffer getCompressionPlan(String resource, byte[] fileData, int address, int dataStart, int length) {
+        int regionSize = Math.max(CRC_PAGE_SIZE, COMPRESSION_REGION_SIZE);
+        String key = resource == null
+                ? PayloadCache.key("packbitsStore", COMPRESSION_PLAN_VERSION, fileData, dataStart, length, address, regionSize)
+                : PayloadCache.key("packbitsStore", COMPRESSION_PLAN_VERSION, resource, fileData, dataStart, length, address, regionSize);
+        return PayloadCache.getInstance().get(key, () -> {
+            ByteArrayOutputStream plan = new ByteArrayOutputStream(length + 64);
+            DataOutputStream out = new DataOutputStream(plan);
+            try {
+                for (int pos = 0; pos < length;) {
+                    int regionAddress = address + pos;
+                    // Regions end on region size boundaries in apple memory
+                    int size = Math.min(length - pos, regionSize - (regionAddress % regionSize));
+                    out.writeInt(pos);
+                    out.writeInt(size);
+                    // The decompressor must not overwrite the zero page, stack, itself or the driver
+                    if (regionAddress >= 0x0200 && regionAddress + size <= EXTENSION_START) {
+                        byte[] packed = DataUtil.packbitsStore(regionAddress, fileData, dataStart + pos, size);
+                        out.writeInt(packed.length);
+                        out.write(packed);
+                    } else {
+                        out.writeInt(0);
+                    }
+                    pos += size;
+                }
+            } catch (IOException ex) {
+                // Can't happen when writing to memory
+                throw new IllegalStateException(ex);
+            }
+            return plan.toByteArray();
+        });
+    }
+
+    /**
+     * Send one region of game data through the decompressor and check that it arrived intact
+     * @param packed Packed data (from DataUtil.packbitsStore), from index 0 up to its limit
+     * @param fileData Unpacked data
+     * @param addressStart Address in apple's ram of fileData[0]
+     * @param offset Offset of the region in fileData
+     * @param size Size of the region
+     * @param packedNanos Estimated time to send and unpack the data
+     * @return true if the region is correct, false if it has to be sent again
+     * @throws java.io.IOException If data could not be sent
+     */
+    private boolean sendCompressedRegion(ByteBuffer packed, byte[] fileData, int addressStart, int offset, int size, long packedNanos) throws IOException {
+        loadDecompressor();
+        readBytes(); // Clear input buffer
+        sendCompressedData(packed);
+        // The decompressor leaves the XOR of everything it stored where the driver's 'D' command finds it
+        writeFrame(frame.reset().command('D'));
+        int checksum = readByte(500 + (int) (packedNanos / 1000000L));
+        if (checksum == (computeChecksum(fileData, offset, size)[0] & 0x0ff)) {
+            shadow.store(addressStart, ByteBuffer.wrap(fileData), offset, size);
+            health.confirmed();
+            return true;
+        }
+        health.doubt();
+        if (checksum < 0) {
+            System.out.println("Timed out waiting for decompressor, flushing it out");
+            // Each NUL either ends the stream or is ignored by the extension, so this gets back to the driver
+            byte[] flush = new byte[260];
+            writeFrame(frame.reset().payload(flush, 0, flush.length, CommandFrame.EXTENSION_CYCLES + CommandFrame.COMMAND_CYCLES));
+            tryToFixDriver();
+        } else {
+            System.out.println("Compressed data checksum failed, sending region raw instead");
+        }
+        return false;
+    }
+
+    /**
+     * Make sure the driver is listening before a command, unless it answered correctly within
+     * LINK_IDLE_MILLIS and nothing since then (an error, running apple code) casts doubt on it.  In that
+     * case the command's own first reply is the check, and its error handling covers a missing one.
+     * @throws java.io.IOException If the driver is not correctly responding in a timely manner
+     */
+    private void checkDriver() throws IOException {
+        endKeyWatch();
+        if (health.needsProbe(LINK_IDLE_MILLIS * 1000000L)) {
+            getMetrics().driverProbe(false);
+            testDriver();
+        } else {
+            getMetrics().driverProbe(true);
+            // A late answer to something earlier must not be taken for this command's reply
+            readBytes();
+        }
+    }
+
     /**
      * Ensure driver is responsive (send ack command: @)
      * @throws java.io.IOException If the driver is not correctly responding in a timely manner
@@ -370,13 +1405,15 @@ public class TransferHost extends GenericHost {
         while (numRetries > 0) {
             Launcher.checkRuntimeStatus();
             try {
-                writeQuickly("@");
+                writeFrame(frame.reset().command('@', CommandFrame.ACK_CYCLES, DRIVER_ACK.length()));
                 expect(DRIVER_ACK, 1000, false);
+                health.confirmed();
                 return;
             } catch (IOException ex) {
                 // Ignore error for now
                 //ex.printStackTrace();
             }
+            getMetrics().driverRetry();
             numRetries--;
         }
         throw new IOException("Failed to get response from driver after " +
@@ -391,39 +1428,109 @@ public class TransferHost extends GenericHost {
      * @throws java.io.IOException If the apple's driver is not responsive
      */
     public void tryToFixDriver() throws IOException {
+        getMetrics().driverFix();
+        health.doubt();
+        // A confused driver may have stored bytes anywhere
+        shadow.invalidateAll();
+        frame.reset();
         for (int i = 0; i < MAX_ACK_BURST; i++) {
-            writeQuickly("@");
+            frame.command('@', CommandFrame.ACK_CYCLES, DRIVER_ACK.length());
         }
+        writeFrame(frame);
         expect(DRIVER_ACK, 5000, false);    // We should get back at least one ACK
-        DataUtil.wait(10);              // Wait for the ACK responses to stop
+        awaitQuiet(10000000L);          // Wait for the ACK responses to stop
         readBytes();             // Flush out the buffer to eliminate any false positives
+        health.confirmed();
     }
 
     /**
      * Get a keypress from the apple's keyboard
      * @throws java.io.IOException If data could not be sent or received correctly
-     * @return Keypress if any
+     * @return Keypress if any (waits up to half a second)
      */
     public byte getKey() throws IOException {
-        Launcher.checkRuntimeStatus();
-        writeQuickly("G");
-        for (int i = 0; (i < 500) && (inputAvailable() == 0); i++) {
-            DataUtil.wait(1);
-        }
-        if (inputAvailable() > 0) {
-            byte[] b = new byte[1];
-            readInput(b);
-            byte bb = b[0];
-            if (bb >= 0) {
+        return awaitKey(500);
+    }
+
+    /**
+     * Wait for a keypress on the apple's keyboard.  The driver is put in keyboard watch mode ('G'), where it
+     * sends each key as it is typed and nothing otherwise, so this just sleeps until the serial line has
+     * something.  The watch lasts until the next command is sent (see endKeyWatch), and keys typed before
+     * the driver noticed that one are handed out by the following calls.  A watch with no keys for
+     * KEY_WATCH_REFRESH_SECONDS is ended and started again so the link doesn't look idle.
+     * @param timeout Longest time to wait (milliseconds), or 0 to wait until a key is pressed
+     * @throws java.io.IOException If data could not be sent or received correctly
+     * @return Keypress, or 0 if there wasn't one in time
+     */
+    public byte awaitKey(int timeout) throws IOException {
+        long deadline = System.nanoTime() + timeout * 1000000L;
+        do {
+            if (!typeahead.isEmpty()) {
+                getMetrics().getKeyLatency().keyReceived();
+                return typeahead.poll();
+            }
+            if (!watchingKeys) {
+                checkDriver();
+                super.writeFrame(frame.reset().command('G'));
+                watchingKeys = true;
+                watchStarted = System.nanoTime();
+            } else if (KEY_WATCH_REFRESH_SECONDS > 0 && System.nanoTime() - watchStarted > KEY_WATCH_REFRESH_SECONDS * 1000000000L) {
+                // The ack and the new 'G' are the keep-alive; keys typed meanwhile end up in the typeahead
+                endKeyWatch();
+                continue;
+            }
+            // Wake up at least once a second to see whether the watch is due for a refresh
+            int key = readByte(timeout == 0 ? 1000 : (int) Math.max(0, Math.min(1000L, (deadline - System.nanoTime()) / 1000000L)));
+            if (key >= 0x080) {
+                health.confirmed();
+                getMetrics().getKeyLatency().keyReceived();
+                return (byte) (key & 0x007f);
+            } else if (key >= 0) {
+                // Keys always have the high bit set, so the driver isn't watching the keyboard after all
+                System.out.println("Unexpected data from the apple while waiting for a key, testing connection");
+                watchingKeys = false;
+                health.doubt();
+                testDriver();
                 return 0;
             }
-            return (byte) (bb & 0x007f);
-        } else {
-            System.out.println("Not getting a response from the apple, testing connection");
-            testDriver();
-            System.out.println("Connection working, how odd.  Going on...");
-            return 0;
+        } while (timeout == 0 || deadline - System.nanoTime() > 0);
+        return 0;
+    }
+
+    /**
+     * Take the driver out of keyboard watch mode, so that keypresses aren't mistaken for the replies to the
+     * next command.  Any byte ends the watch; an ack request ('@') also tells when the driver has stopped,
+     * and the keys that come in before its answer are kept for awaitKey.
+     * @throws java.io.IOException If data could not be sent
+     */
+    private void endKeyWatch() throws IOException {
+        if (!watchingKeys) {
+            return;
         }
+        watchingKeys = false;
+        super.writeFrame(watchEnd.reset().command('@', CommandFrame.ACK_CYCLES, DRIVER_ACK.length()));
+        int previous = -1;
+        for (int b; (b = readByte(1000)) >= 0; previous = b) {
+            if (b >= 0x080) {
+                typeahead.add((byte) (b & 0x007f));
+            } else if (previous == DRIVER_ACK.charAt(0) && b == DRIVER_ACK.charAt(1)) {
+                health.confirmed();
+                return;
+            }
+        }
+        // Let the command's own checks sort it out
+        health.doubt();
+    }
+
+    /**
+     * Send a complete command, first ending a keyboard watch if the driver is in one
+     * @param frame Command to send
+     * @throws java.io.IOException If the data could not be sent
+     */
+    @Override
+    public void writeFrame(CommandFrame frame) throws IOException {
+        endKeyWatch();
+        super.writeFrame(frame);
     }
 
     /**
@@ -434,15 +1541,82 @@ public class TransferHost extends GenericHost {
      * @return expected checksum
      */
     protected static byte[] computeChecksum(byte[] data, int start, int size) {
+        return new byte[]{computeChecksum(ByteBuffer.wrap(data), start, size)};
+    }
+
+    /**
+     * XOR checksum of part of a buffer (absolute offsets, the buffer's position is ignored)
+     * @param data Data
+     * @param start Starting offset
+     * @param size Number of bytes
+     * @return expected checksum
+     */
+    protected static byte computeChecksum(ByteBuffer data, int start, int size) {
         byte checksum = 0;
         for (int i = start; i < start + size; i++) {
-            checksum = (byte) ((0x00ff & checksum) ^ (0x00ff & data[i]));
+            checksum ^= data.get(i);
         }
-        return new byte[]{checksum};
+        return checksum;
+    }
+
+    /**
+     * Compute the CRC-16/CCITT (polynomial $1021, initial value $FFFF) of a range of data,
+     * as reported by the driver's 'J' command
+     * @param data Data to check
+     * @param start Starting offset
+     * @param size Number of bytes
+     * @return 16-bit CRC
+     */
+    protected static int computeCrc16(byte[] data, int start, int size) {
+        return computeCrc16(ByteBuffer.wrap(data), start, size);
+    }
+
+    /**
+     * CRC-16 of part of a buffer (absolute offsets, the buffer's position is ignored)
+     * @param data Data to check
+     * @param start Starting offset
+     * @param size Number of bytes
+     * @return 16-bit CRC
+     */
+    protected static int computeCrc16(ByteBuffer data, int start, int size) {
+        int crc = 0x0ffff;
+        for (int i = start; i < start + size; i++) {
+            crc ^= (data.get(i) & 0x00ff) << 8;
+            for (int bit = 0; bit < 8; bit++) {
+                crc = (crc & 0x08000) != 0 ? (crc << 1) ^ 0x01021 : crc << 1;
+            }
+            crc &= 0x0ffff;
+        }
+        return crc;
+    }
+
+    /**
+     * Compute the quick sum reported by the driver's 'K' command: a running sum of the bytes (low byte) and
+     * a sum of those sums (high byte), each addition taking in the carry from the one before
+     * @param data Data to check, indexed from the start of the buffer
+     * @param start Starting offset
+     * @param size Number of bytes
+     * @return 16-bit sum
+     */
+    protected static int computePageSum(ByteBuffer data, int start, int size) {
+        int sum = 0;
+        int sumOfSums = 0;
+        int carry = 0;
+        for (int i = start; i < start + size; i++) {
+            sum += (data.get(i) & 0x00ff) + carry;
+            carry = sum >> 8;
+            sum &= 0x0ff;
+            sumOfSums += sum + carry;
+            carry = sumOfSums >> 8;
+            sumOfSums &= 0x0ff;
+        }
+        return (sumOfSums << 8) | sum;
     }
 
     private void bootDiskGame(Game g) throws IOException {
         Thread.currentThread().setName("Running in disk mode for game "+g.getName());
+        shadow.invalidateAll();
+        health.doubt();
         System.out.println("Booting disk-based game: " + g.getName());
         ClassLoader c = TransferHost.class.getClassLoader();
         // Set up the drive device and all disks
@@ -495,16 +1669,23 @@ public class TransferHost extends GenericHost {
         d.boot();
     }
 
+    /**
+     * @param driverName Name of the assembly source the routine was built from
+     * @return Resource name of the routine built for the serial port found by the init script
+     */
+    private static String driverFile(String driverName) {
+        Target gs = Target.getTarget("apple2gs_setup");
+        String slot = Variable.getVariable("slot").getValue();
+        if (gs != null && gs.isRunAlready()) {
+            return "ags/asm/" + driverName + "_gs_port" + slot + ".o";
+        } else {
+            return "ags/asm/" + driverName + "_ssc_slot" + slot + ".o";
+        }
+    }
+
     public void loadDriver(String driverName, int address) {
         try {
-            String filename = "";
-            Target gs = Target.getTarget("apple2gs_setup");
-            String slot = Variable.getVariable("slot").getValue();
-            if (gs != null && gs.isRunAlready()) {
-                filename = "ags/asm/" + driverName + "_gs_port" + slot + ".o";
-            } else {
-                filename = "ags/asm/" + driverName + "_ssc_slot" + slot + ".o";
-            }
+            String filename = driverFile(driverName);
             InputStream data = ClassLoader.getSystemResourceAsStream(filename);
             if (data == null) {
                 // Try alternative resource loading methods
@@ -525,15 +1706,98 @@ public class TransferHost extends GenericHost {
         }
 
     }
+    /**
+     * Switch the link to a faster speed, if the serial port can go that fast.  The speed routine
+     * (init/speed.a) changes the port's clock and waits for SPEED_TEST_PATTERN at the new speed; the driver
+     * answers "hi" at the new speed if the pattern got through and at the old one if it didn't.  If neither
+     * answer comes, the driver is tried at the new speed in case only its answer was lost.
+     * @param baud Speed to try
+     * @return true if the link now runs at that speed
+     * @throws java.io.IOException If the driver can't be reached at either speed
+     */
+    public boolean speedUp(int baud) throws IOException {
+        int oldBaud = currentBaud;
+        if (baud <= oldBaud) {
+            return false;
+        }
+        System.out.println("Trying to speed up the link to " + baud + " baud");
+        byte[] routine = DataUtil.getFileAsBytes(driverFile("speed"));
+        sendRawData(routine, SPEED_ROUTINE_ADDRESS, 0, routine.length);
+        jmp(SPEED_ROUTINE_ADDRESS, true);
+        // Give the routine time to switch before anything arrives at the new speed
+        DataUtil.wait(20);
+        setBaud(baud);
+        readBytes();
+        writeFrame(frame.reset().payload(SPEED_TEST_PATTERN, 0, SPEED_TEST_PATTERN.length, CommandFrame.OPERAND_CYCLES));
+        try {
+            expect(DRIVER_ACK, 1000, false);
+            testDriver();
+            System.out.println("Link is now running at " + baud + " baud");
+            return true;
+        } catch (IOException ex) {
+            System.out.println("No answer at " + baud + " baud, going back to " + oldBaud);
+        }
+        setBaud(oldBaud);
+        try {
+            // By now the routine has given up on the pattern (garbled, or about a second without it) and its
+            // "hi" went by while the host was still listening at the new speed, so ask again
+            testDriver();
+            return false;
+        } catch (IOException ex) {
+            System.out.println("No answer at " + oldBaud + " baud either, checking " + baud + " again");
+        }
+        setBaud(baud);
+        try {
+            testDriver();
+            return true;
+        } catch (IOException ex) {
+            setBaud(oldBaud);
+            tryToFixDriver();
+            return false;
+        }
+    }
+
+    /**
+     * Memory used by the extension module (decompressor, softswitch and page CRC commands)
+     */
+    public static final int EXTENSION_START = 0x0BD00;
+    public static final int EXTENSION_END = 0x0BEFE;
     boolean decompressorLoaded = false;
+    /**
+     * Does the loaded extension module handle frames ('L')? (null until it has been asked)
+     */
+    Boolean framesSupported = null;
+    // Sequence number of the next frame
+    private int frameSequence = 0;
+    /**
+     * Has the current game put its own data where the extension module goes?
+     */
+    boolean extensionOverwritten = false;
+
+    private static boolean overlapsExtension(int address, int length) {
+        return address <= EXTENSION_END && address + length > EXTENSION_START;
+    }
 
     private void loadDecompressor() throws IOException {
         if (!decompressorLoaded) {
             byte[] decompressor = DataUtil.getFileAsBytes(DECOMPRESSOR_ROUTINE);
-            sendRawData(decompressor, 0x0BD00, 0, decompressor.length);
-            // Register decompressor as a command
-            jmp(0x0BD00, true);
-            testDriver();
+            sendRawData(decompressor, EXTENSION_START, 0, decompressor.length);
+            // Register decompressor as a command (jmp would forget everything, but this only changes the extension)
+            checkDriver();
+            writeFrame(frame.reset().command('A').word(EXTENSION_START).command('F', CommandFrame.ACK_CYCLES, DRIVER_ACK.length()));
+            shadow.invalidate(EXTENSION_START, EXTENSION_END + 1 - EXTENSION_START);
+            try {
+                // 'F' answers when the routine returns, which saves asking again
+                expect(DRIVER_ACK, 1000, false);
+                health.confirmed();
+            } catch (IOException ex) {
+                testDriver();
+            }
+            // The decompressor is assembled with XOR mode enabled
+            xorMode = true;
+            extensionOverwritten = false;
+            // This may be a different version of the module
+            framesSupported = null;
         }
         decompressorLoaded = true;
     }
@@ -541,68 +1805,153 @@ public class TransferHost extends GenericHost {
     // Track if XOR is enabled at the moment according to data being encountered
     // The decompressor is assembled with XOR enabled, so start off with value TRUE
     boolean xorMode = true;
+    // Packs screen updates, continuing from whatever mode the decompressor was left in
+    private PackbitsEncoder screenEncoder = null;
+    // Sends packed streams as fast as the decompressor can take them
+    private PacedStream pacer = null;
+    private final PacedStream.Schedule paceSchedule = new PacedStream.Schedule();
+    // The screen encoder's buffer as a ByteBuffer (the encoder reuses it, so this is kept too)
+    private ByteBuffer packedView = null;
+
+    /**
+     * Send the changes between two frames through the decompressor
+     * @param address Destination address of the frame
+     * @param oldFrame What the apple has now, or null if unknown
+     * @param newFrame What the apple should have
+     * @return Number of bytes sent
+     * @throws java.io.IOException If data could not be sent
+     */
+    public int sendScreenUpdate(int address, byte[] oldFrame, byte[] newFrame) throws IOException {
+        loadDecompressor();
+        if (screenEncoder == null || OPTIMAL_SCREEN_COMPRESSION != (screenEncoder instanceof OptimalPackbitsEncoder)) {
+            screenEncoder = OPTIMAL_SCREEN_COMPRESSION ? new OptimalPackbitsEncoder() : new PackbitsEncoder();
+        }
+        long charNanos = DataUtil.nanosPerCharAtSpeed(currentBaud);
+        if (screenEncoder instanceof OptimalPackbitsEncoder) {
+            ((OptimalPackbitsEncoder) screenEncoder).setNanosPerChar(charNanos);
+        }
+        boolean startMode = xorMode;
+        screenEncoder.setXorMode(startMode);
+        int size = screenEncoder.packScreenUpdate(address, oldFrame, newFrame);
+        getMetrics().getKeyLatency().mark(LatencyTracker.Stage.ENCODE);
+        if (size > 0) {
+            ByteBuffer packed = view(screenEncoder.getBuffer(), size);
+            long predicted = DecompressorTiming.streamNanos(packed, size, charNanos, startMode);
+            long start = System.nanoTime();
+            sendCompressedData(packed);
+            getMetrics().screenTime(predicted, System.nanoTime() - start);
+            getMetrics().getKeyLatency().mark(LatencyTracker.Stage.WIRE);
+        }
+        return size;
+    }
+
     public void sendCompressedData(byte[] compressedData) throws IOException {
+        sendCompressedData(compressedData, compressedData == null ? 0 : compressedData.length);
+    }
+
+    /**
+     * Send packed data to the decompressor
+     * @param compressedData Packed data (see PackbitsEncoder for the format)
+     * @param length Number of bytes of compressedData to send
+     * @throws java.io.IOException If data could not be sent
+     */
+    public void sendCompressedData(byte[] compressedData, int length) throws IOException {
         // Nothing to send?  Just exit and do nothing!
-        if (compressedData == null || compressedData.length == 0) return;
+        if (length == 0) return;
+        sendCompressedData(view(compressedData, length));
+    }
+
+    /**
+     * @param data Packed data
+     * @param length Number of bytes of data to use
+     * @return data as a buffer from index 0 to length, reusing the last one made for the same array
+     */
+    private ByteBuffer view(byte[] data, int length) {
+        if (packedView == null || packedView.array() != data) {
+            packedView = ByteBuffer.wrap(data);
+        }
+        packedView.clear().limit(length);
+        return packedView;
+    }
+
+    /**
+     * Send packed data to the decompressor.  The stream is split into bursts that the apple can take at
+     * the line rate and the pacer thread sends each one as soon as the decompressor is ready for it.
+     * @param compressedData Packed data (see PackbitsEncoder for the format), from index 0 up to its limit
+     * @throws java.io.IOException If data could not be sent
+     */
+    public void sendCompressedData(ByteBuffer compressedData) throws IOException {
+        int length = compressedData.limit();
+        // Nothing to send?  Just exit and do nothing!
+        if (length == 0) return;
         
         Launcher.checkRuntimeStatus();
         loadDecompressor();
-        writeQuickly("H");
-//        long start = System.nanoTime();
-        // Send data chunk
-        int next = 2;   // Send two byte header without caring what is in it.
-        long wait = 0;
-//        String debug = "Frame length "+compressedData.length+"\n";
-        for (int i = 0; i < compressedData.length; i++) {
-            // When we hit the next data block, look at it more thouroughly
-            if (next == i) {
-                out.flush();
-                DataUtil.nanosleep(wait);
-//                debug += ", ";
-                if (compressedData[i] == 0 && i < compressedData.length-1) {
-                    System.err.println("ERROR: Compression stream sent termination character 0x00 before end of actual data!");
-                }
-                if ((compressedData[i] & 0x080) == 0) {
-                    if (compressedData[i] >= 0x07E) {
-                        // XOR/Data store commands
-                        next = i+1;
-                        wait = 40;
-                        xorMode = (compressedData[i] == 0x07E);
-//                        debug += xorMode ? "!! " : "@@ ";
-                    } else {
-                        // Uncompressed data (73 cycles/char, below threshold)
-                        next = i + compressedData[i] + 1;
-                        wait = 73 - DataUtil.NANOS_PER_CHAR;
-                    }
-                } else {
-                    next = i + 3;
-                    if (compressedData[i + 1] != 0 || compressedData[i + 2] != 0 || !xorMode) {
-                        // Compressed data
-                        int reps = Math.abs(((compressedData[i] & 0x07f) + 2));
-                        // 101 cycles per repetition
-                        wait = DataUtil.cyclesToNanos(reps * 101) + DataUtil.NANOS_PER_CHAR;
-                    } else {
-                        // Compressed zeros in XOR mode == skipped
-                        // 50 cycles to increment memory pointers
-                        wait = DataUtil.cyclesToNanos(50);
-                    }
-                }
-//                debug += Integer.toHexString(compressedData[i] & 0x0ff) + " ";
-            }
-            writeOutput(compressedData, i, 1);
+        if (length > 2) {
+            // In XOR mode the result depends on what was there before, so just forget what the stream covers
+            shadow.invalidate((compressedData.get(0) & 0x0ff) | ((compressedData.get(1) & 0x0ff) << 8), PackbitsDecoder.span(compressedData, length));
+        }
+        writeFrame(frame.reset().command('H'));
+        DecompressorTiming.schedule(compressedData, length, DataUtil.nanosPerCharAtSpeed(currentBaud), xorMode, paceSchedule);
+        if (paceSchedule.getLength() < length) {
+            System.err.println("ERROR: Compression stream sent termination character 0x00 before end of actual data!");
+        }
+        if (pacer == null) {
+            pacer = new PacedStream(this);
         }
-//        System.out.println(debug);
-        out.flush();
-        DataUtil.nanosleep(wait);
-//        long end = System.nanoTime();
-//        System.out.println("Took "+(end-start)+" nanos to send "+compressedData.length+" bytes");
+        pacer.send(paceSchedule);
+        xorMode = paceSchedule.isXorMode();
     }
 
+    /**
+     * Stop the pacer thread and save what was learned about the link along with closing the connection
+     * @throws java.io.IOException If the connection could not be closed
+     */
+    @Override
+    public void disconnect() throws IOException {
+        if (pacer != null) {
+            pacer.close();
+            pacer = null;
+        }
+        if (chunkSizes != null) {
+            chunkSizes.flush();
+        }
+        super.disconnect();
+    }
+
+    /**
+     * Touch a soft switch
+     * @param address Soft switch address
+     * @throws java.io.IOException If data could not be sent
+     */
     public void toggleSwitch(int address) throws IOException {
         loadDecompressor();
-        writeQuickly("I");
+        if (changesMemoryMap(address)) {
+            // Different memory is visible now, so what the shadow holds isn't what the apple would show
+            shadow.invalidateAll();
+        }
 //        writeOutput(DataUtil.getWord(address));
-        writeOutput((byte) (address & 0x0ff));
+        writeFrame(frame.reset().command('I').operand(address));
+    }
+
+
+    // Is 80STORE on (making the page switches choose between main and auxiliary memory)?
+    private boolean store80 = false;
+
+    /**
+     * @param address Soft switch address
+     * @return true if touching it can change which memory the apple sees
+     */
+    private boolean changesMemoryMap(int address) {
+        int sw = address & 0x0ffff;
+        if (sw == 0x0c000 || sw == 0x0c001) {
+            store80 = sw == 0x0c001;
+            return true;
+        }
+        // RAMRD, RAMWRT, INTCXROM, ALTZP, SLOTC3ROM and the language card
+        return (sw > 0x0c001 && sw <= 0x0c00b)
+                || (sw >= 0x0c080 && sw <= 0x0c08f)
+                || (store80 && sw >= 0x0c054 && sw <= 0x0c057);
     }
     
     /**
@@ -615,6 +1964,8 @@ public class TransferHost extends GenericHost {
     private static final int TINYLOADER_DATA_TIMEOUT = 25; // More realistic timeout for data bytes - first byte needs more time
     private static final byte[] ZERO = new byte[]{0};
     private static final byte[] ZERO_ASCII = new byte[]{'0'};
+    // TinyLoader says "S0" when it is waiting for a new transfer
+    private final StreamMatcher tinyLoaderReady = new StreamMatcher(false, "S0");
     
     /**
      * Send data using the TinyLoader protocol with optional reset
@@ -624,6 +1975,7 @@ public class TransferHost extends GenericHost {
      * @return Total number of errors experienced when sending data
      */
     public int sendRawDataTinyLoader(byte[] fileData, int addressStart) throws IOException {
+        shadow.invalidate(addressStart, fileData.length);
         int dataOffset = 0;
         int target = addressStart;
         int remaining = fileData.length;
@@ -728,6 +2080,7 @@ public class TransferHost extends GenericHost {
         }
         
         boolean resetSuccessful = false;
+        tinyLoaderReady.reset();
         long resetStartTime = System.currentTimeMillis();
         System.out.println("TinyLoader: Starting reset sequence...");
         
@@ -738,15 +2091,7 @@ public class TransferHost extends GenericHost {
                 input = readBytes();
                 
                 // Look for "S0" pattern anywhere in the received data (handles buffered responses)
-                boolean foundS0 = false;
-                for (int j = 0; j < input.length - 1; j++) {
-                    if (input[j] == 'S' && input[j + 1] == '0') {
-                        foundS0 = true;
-                        break;
-                    }
-                }
-                
-                if (foundS0) {
+                if (tinyLoaderReady.feed(input, 0, input.length) >= 0) {
                     resetSuccessful = true;
                     // Aggressively drain all remaining S0 responses and any other stale data
                     aggressiveDrainBuffer();
@@ -783,12 +2128,12 @@ public class TransferHost extends GenericHost {
     private void aggressiveDrainBuffer() throws IOException {
         // Fast path: if buffer is already empty, just do one quick check
         if (inputAvailable() == 0) {
-            DataUtil.wait(20); // Quick check for any delayed data
+            awaitInput(1, System.nanoTime() + 20000000L); // Quick check for any delayed data
             byte[] quickDrain = readBytes();
             if (quickDrain.length > 0) {
                 System.out.printf("TinyLoader: Quick-drained %d delayed bytes\n", quickDrain.length);
                 // If we found delayed data, do one more thorough check
-                DataUtil.wait(30);
+                awaitQuiet(30000000L);
                 byte[] secondDrain = readBytes();
                 if (secondDrain.length > 0) {
                     System.out.printf("TinyLoader: Second-drained %d more bytes\n", secondDrain.length);
@@ -799,19 +2144,12 @@ public class TransferHost extends GenericHost {
         
         // Thorough path: buffer has data, need to be more careful
         int totalDrained = 0;
-        int drainAttempts = 0;
-        
-        // Keep draining until we get 2 consecutive empty reads with shorter delays
-        while (drainAttempts < 2) {
-            DataUtil.wait(30); // Reduced from 50ms to 30ms
-            byte[] drain = readBytes();
-            if (drain.length > 0) {
-                totalDrained += drain.length;
-                drainAttempts = 0; // Reset counter - we found more data
-            } else {
-                drainAttempts++; // No data found, increment counter
-            }
-        }
+        
+        // Keep draining until the line has been quiet for 60ms (two empty 30ms checks)
+        do {
+            totalDrained += readBytes().length;
+            awaitQuiet(60000000L);
+        } while (inputAvailable() > 0);
         
         if (totalDrained > 0) {
             System.out.printf("TinyLoader: Thoroughly drained %d stale bytes from buffer\n", totalDrained);
@@ -824,6 +2162,8 @@ public class TransferHost extends GenericHost {
      */
     public void executeTinyLoader(int address) throws IOException {
         System.out.printf("TinyLoader: Executing code at $%04X\n", address);
+        shadow.invalidateAll();
+        health.doubt();
 
         resetTinyLoader();
         
@@ -882,9 +2222,9 @@ public class TransferHost extends GenericHost {
         TextScreen40 screen = new TextScreen40();
         screen.drawLoadingScreen("LOADING GAME", gameName);
         
-        // Send the screen buffer to Apple II memory using standard memory operations
+        // Send the screen buffer to Apple II memory, packed if possible (the starburst compresses well)
         byte[] screenData = screen.getBuffer();
-        sendRawData(screenData, 0x400, 0, screenData.length);
+        sendGameData(null, screenData, 0x400, 0, screenData.length);
         
         System.out.println("Game loading screen displayed for: " + gameName);
     }
@@ -899,7 +2239,7 @@ public class TransferHost extends GenericHost {
      * @param offset Character offset (32 or 64)
      * @return BASIC program as single line
      */
-    private String generate44EncodedBasicWithOffset(byte[] binaryData, int targetAddress, int offset, boolean execute) {
+    static String generate44EncodedBasicWithOffset(byte[] binaryData, int targetAddress, int offset, boolean execute) {
         // Encode the binary data as high nibbles + low nibbles
         StringBuilder highNibbles = new StringBuilder();
         StringBuilder lowNibbles = new StringBuilder();
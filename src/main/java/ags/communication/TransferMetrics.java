@@ -0,0 +1,440 @@
+package ags.communication;
+
+import ags.controller.Configurable;
+import ags.controller.Configurable.CATEGORY;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Running totals for one link: bytes on the wire, transfer rate against the line rate, chunk round
+ * trip times, error recovery, screen compression, key to screen latency and how long games take to start.
+ * Recording only touches atomic counters (no locks, no allocation) so it is always on.  Each link is
+ * registered as a JMX MBean and a summary line is printed every METRICS_SUMMARY_SECONDS when there
+ * was any traffic.
+ * @author brobert
+ */
+public class TransferMetrics implements TransferMetricsMBean {
+
+    /**
+     * Seconds between metrics summary lines (0 turns them off)
+     */
+    @Configurable(category = CATEGORY.ADVANCED, isRequired = false)
+    public static int METRICS_SUMMARY_SECONDS = 60;
+    private static final int RTT_BUCKETS = 32;
+    private static final int RECENT_GAMES = 16;
+    private static final ConcurrentHashMap<String, TransferMetrics> links = new ConcurrentHashMap<String, TransferMetrics>();
+    private static Thread reporter = null;
+    private final String linkName;
+    private final AtomicLong bytesSent = new AtomicLong();
+    private final AtomicLong bytesReceived = new AtomicLong();
+    private final AtomicLong payloadBytes = new AtomicLong();
+    private final AtomicLong payloadNanos = new AtomicLong();
+    private final AtomicLong checksumFailures = new AtomicLong();
+    private final AtomicLong driverFixes = new AtomicLong();
+    private final AtomicLong driverRetries = new AtomicLong();
+    private final AtomicLong shadowSkippedBytes = new AtomicLong();
+    private final AtomicLong driverProbes = new AtomicLong();
+    private final AtomicLong driverProbesSkipped = new AtomicLong();
+    private final AtomicLongArray roundTrips = new AtomicLongArray(RTT_BUCKETS);
+    private final AtomicLong screenFrames = new AtomicLong();
+    private final AtomicLong screenRawBytes = new AtomicLong();
+    private final AtomicLong screenWireBytes = new AtomicLong();
+    private final AtomicLong screenPredictedNanos = new AtomicLong();
+    private final AtomicLong screenActualNanos = new AtomicLong();
+    private final AtomicLong gamesStarted = new AtomicLong();
+    private final AtomicReferenceArray<String> recentGames = new AtomicReferenceArray<String>(RECENT_GAMES);
+    private final AtomicLongArray recentGameMillis = new AtomicLongArray(RECENT_GAMES);
+    private final LatencyTracker keyLatency = new LatencyTracker();
+    private volatile int baud = 0;
+    private long lastReported = 0;
+
+    /**
+     * Get (or create and register) the metrics for a link
+     * @param linkName Link name, see GenericHost.getLinkName()
+     * @return Metrics for that link
+     */
+    public static TransferMetrics forLink(String linkName) {
+        TransferMetrics metrics = links.get(linkName);
+        if (metrics == null) {
+            metrics = new TransferMetrics(linkName);
+            TransferMetrics existing = links.putIfAbsent(linkName, metrics);
+            if (existing != null) {
+                return existing;
+            }
+            metrics.register();
+            startReporter();
+        }
+        return metrics;
+    }
+
+    /**
+     * Drop the metrics of a connection that is gone for good, so connections that come and go don't
+     * pile up (their totals are printed one last time)
+     * @param linkName Name the metrics were created with
+     */
+    public static void release(String linkName) {
+        TransferMetrics metrics = links.remove(linkName);
+        if (metrics == null) {
+            return;
+        }
+        if (metrics.bytesSent.get() + metrics.bytesReceived.get() != metrics.lastReported) {
+            System.out.println(metrics.getSummary());
+        }
+        try {
+            ObjectName name = new ObjectName("ags.communication:type=TransferMetrics,link=" + ObjectName.quote(linkName));
+            if (ManagementFactory.getPlatformMBeanServer().isRegistered(name)) {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+            }
+        } catch (JMException ex) {
+            System.out.println("Unable to unregister transfer metrics for " + linkName + ": " + ex.getMessage());
+        }
+    }
+
+    private TransferMetrics(String linkName) {
+        this.linkName = linkName;
+    }
+
+    private void register() {
+        try {
+            ObjectName name = new ObjectName("ags.communication:type=TransferMetrics,link=" + ObjectName.quote(linkName));
+            if (!ManagementFactory.getPlatformMBeanServer().isRegistered(name)) {
+                ManagementFactory.getPlatformMBeanServer().registerMBean(this, name);
+            }
+        } catch (JMException ex) {
+            System.out.println("Unable to register transfer metrics for " + linkName + ": " + ex.getMessage());
+        }
+    }
+
+    private static synchronized void startReporter() {
+        if (reporter != null) {
+            return;
+        }
+        reporter = new Thread(() -> {
+            while (true) {
+                DataUtil.wait(Math.max(1, METRICS_SUMMARY_SECONDS) * 1000);
+                if (METRICS_SUMMARY_SECONDS <= 0) {
+                    continue;
+                }
+                for (TransferMetrics metrics : links.values()) {
+                    long traffic = metrics.bytesSent.get() + metrics.bytesReceived.get();
+                    if (traffic != metrics.lastReported) {
+                        metrics.lastReported = traffic;
+                        System.out.println(metrics.getSummary());
+                    }
+                }
+            }
+        }, "Transfer metrics");
+        reporter.setDaemon(true);
+        reporter.start();
+    }
+
+    //--- Recording
+
+    public void sent(int bytes) {
+        bytesSent.addAndGet(bytes);
+    }
+
+    public void received(int bytes) {
+        bytesReceived.addAndGet(bytes);
+    }
+
+    /**
+     * A raw transfer finished
+     * @param bytes Payload bytes delivered
+     * @param nanos How long it took
+     * @param baudRate Line speed it ran at
+     */
+    public void transfer(int bytes, long nanos, int baudRate) {
+        payloadBytes.addAndGet(bytes);
+        payloadNanos.addAndGet(nanos);
+        baud = baudRate;
+    }
+
+    /**
+     * @param nanos Time from sending a chunk until its checksum came back
+     */
+    public void chunkRoundTrip(long nanos) {
+        int bucket = 64 - Long.numberOfLeadingZeros(nanos / 1000L);
+        roundTrips.incrementAndGet(Math.min(bucket, RTT_BUCKETS - 1));
+    }
+
+    public void checksumFailure() {
+        checksumFailures.incrementAndGet();
+    }
+
+    /**
+     * tryToFixDriver was needed
+     */
+    public void driverFix() {
+        driverFixes.incrementAndGet();
+    }
+
+    /**
+     * testDriver had to ask more than once
+     */
+    public void driverRetry() {
+        driverRetries.incrementAndGet();
+    }
+
+    /**
+     * testDriver was asked before a command
+     * @param skipped true if it wasn't sent because the driver answered recently
+     */
+    public void driverProbe(boolean skipped) {
+        (skipped ? driverProbesSkipped : driverProbes).incrementAndGet();
+    }
+
+    /**
+     * @param bytes Bytes not sent because the apple already had them
+     */
+    public void shadowSkipped(int bytes) {
+        shadowSkippedBytes.addAndGet(bytes);
+    }
+
+    /**
+     * @param rawBytes Size of the screen buffer
+     * @param wireBytes Bytes actually sent for it
+     */
+    public void screenFrame(int rawBytes, int wireBytes) {
+        screenFrames.incrementAndGet();
+        screenRawBytes.addAndGet(rawBytes);
+        screenWireBytes.addAndGet(wireBytes);
+    }
+
+    /**
+     * @param predictedNanos Time the decompressor model expected a packed screen to take
+     * @param actualNanos Time it took to send it
+     */
+    public void screenTime(long predictedNanos, long actualNanos) {
+        screenPredictedNanos.addAndGet(predictedNanos);
+        screenActualNanos.addAndGet(actualNanos);
+    }
+
+    /**
+     * @param name Game that is now running
+     * @param nanos Time since it was selected
+     */
+    public void gameStarted(String name, long nanos) {
+        int slot = (int) (gamesStarted.getAndIncrement() % RECENT_GAMES);
+        recentGameMillis.set(slot, nanos / 1000000L);
+        recentGames.set(slot, name);
+    }
+
+    /**
+     * @return Timing of the selector's screen updates after each keypress
+     */
+    public LatencyTracker getKeyLatency() {
+        return keyLatency;
+    }
+
+    //--- Reporting
+
+    @Override
+    public String getLinkName() {
+        return linkName;
+    }
+
+    @Override
+    public long getBytesSent() {
+        return bytesSent.get();
+    }
+
+    @Override
+    public long getBytesReceived() {
+        return bytesReceived.get();
+    }
+
+    @Override
+    public long getEffectiveBytesPerSecond() {
+        long nanos = payloadNanos.get();
+        return nanos == 0 ? 0 : payloadBytes.get() * DataUtil.NANOS_PER_SECOND / nanos;
+    }
+
+    @Override
+    public long getLineBytesPerSecond() {
+        return baud == 0 ? 0 : DataUtil.NANOS_PER_SECOND / DataUtil.nanosPerCharAtSpeed(baud);
+    }
+
+    @Override
+    public double getLineUtilizationPercent() {
+        long line = getLineBytesPerSecond();
+        return line == 0 ? 0 : 100.0 * getEffectiveBytesPerSecond() / line;
+    }
+
+    @Override
+    public long getChecksumFailures() {
+        return checksumFailures.get();
+    }
+
+    @Override
+    public long getDriverFixes() {
+        return driverFixes.get();
+    }
+
+    @Override
+    public long getDriverRetries() {
+        return driverRetries.get();
+    }
+
+    @Override
+    public long getShadowSkippedBytes() {
+        return shadowSkippedBytes.get();
+    }
+
+    @Override
+    public long getDriverProbes() {
+        return driverProbes.get();
+    }
+
+    @Override
+    public long getDriverProbesSkipped() {
+        return driverProbesSkipped.get();
+    }
+
+    @Override
+    public long getChunks() {
+        long total = 0;
+        for (int i = 0; i < RTT_BUCKETS; i++) {
+            total += roundTrips.get(i);
+        }
+        return total;
+    }
+
+    @Override
+    public long[] getChunkRoundTripHistogram() {
+        long[] histogram = new long[RTT_BUCKETS];
+        for (int i = 0; i < RTT_BUCKETS; i++) {
+            histogram[i] = roundTrips.get(i);
+        }
+        return histogram;
+    }
+
+    /**
+     * @param histogram Log2 histogram, bucket n covering [2^(n-1), 2^n) microseconds
+     * @param percent Percentile wanted
+     * @return Upper bound in microseconds of the bucket holding that percentile
+     */
+    static long percentile(long[] histogram, int percent) {
+        long total = 0;
+        for (long count : histogram) {
+            total += count;
+        }
+        long wanted = (total * percent + 99) / 100;
+        long seen = 0;
+        for (int i = 0; i < histogram.length; i++) {
+            seen += histogram[i];
+            if (seen >= wanted && seen > 0) {
+                return 1L << i;
+            }
+        }
+        return 0;
+    }
+
+    @Override
+    public long getChunkRoundTripMicrosP50() {
+        return percentile(getChunkRoundTripHistogram(), 50);
+    }
+
+    @Override
+    public long getChunkRoundTripMicrosP99() {
+        return percentile(getChunkRoundTripHistogram(), 99);
+    }
+
+    @Override
+    public long getScreenFrames() {
+        return screenFrames.get();
+    }
+
+    @Override
+    public long getScreenRawBytes() {
+        return screenRawBytes.get();
+    }
+
+    @Override
+    public long getScreenWireBytes() {
+        return screenWireBytes.get();
+    }
+
+    @Override
+    public long getScreenPredictedMillis() {
+        return screenPredictedNanos.get() / 1000000L;
+    }
+
+    @Override
+    public long getScreenActualMillis() {
+        return screenActualNanos.get() / 1000000L;
+    }
+
+    @Override
+    public long getGamesStarted() {
+        return gamesStarted.get();
+    }
+
+    @Override
+    public String[] getRecentTimesToPlayable() {
+        long count = gamesStarted.get();
+        int n = (int) Math.min(count, RECENT_GAMES);
+        String[] recent = new String[n];
+        for (int i = 0; i < n; i++) {
+            int slot = (int) ((count - 1 - i) % RECENT_GAMES);
+            recent[i] = recentGames.get(slot) + ": " + recentGameMillis.get(slot) + "ms";
+        }
+        return recent;
+    }
+
+    @Override
+    public String[] getKeyToScreenLatencies() {
+        return keyLatency.getSummaries();
+    }
+
+    @Override
+    public String getSummary() {
+        StringBuilder summary = new StringBuilder("Link ").append(linkName)
+                .append(": sent ").append(getBytesSent())
+                .append(" received ").append(getBytesReceived())
+                .append(", ").append(getEffectiveBytesPerSecond()).append(" bytes/sec")
+                .append(String.format(" (%.0f%% of line)", getLineUtilizationPercent()))
+                .append(", ").append(getChunks()).append(" chunks")
+                .append(" rtt p50 ").append(getChunkRoundTripMicrosP50()).append("us")
+                .append(" p99 ").append(getChunkRoundTripMicrosP99()).append("us")
+                .append(", ").append(getChecksumFailures()).append(" checksum failures, ")
+                .append(getDriverFixes()).append(" driver fixes, ")
+                .append(getDriverRetries()).append(" driver retries, ")
+                .append(getDriverProbes()).append(" driver checks (").append(getDriverProbesSkipped()).append(" skipped)");
+        if (getShadowSkippedBytes() > 0) {
+            summary.append(", ").append(getShadowSkippedBytes()).append(" bytes already in memory");
+        }
+        if (getScreenFrames() > 0) {
+            summary.append(", ").append(getScreenFrames()).append(" screens ")
+                    .append(getScreenRawBytes()).append("->").append(getScreenWireBytes()).append(" bytes")
+                    .append(" in ").append(getScreenActualMillis()).append("ms")
+                    .append(" (predicted ").append(getScreenPredictedMillis()).append("ms)");
+        }
+        for (String latency : getKeyToScreenLatencies()) {
+            summary.append(", key to screen ").append(latency);
+        }
+        String[] games = getRecentTimesToPlayable();
+        if (games.length > 0) {
+            summary.append(", last game ").append(games[0]);
+        }
+        return summary.toString();
+    }
+
+    @Override
+    public void reset() {
+        for (AtomicLong counter : new AtomicLong[]{bytesSent, bytesReceived, payloadBytes, payloadNanos,
+            checksumFailures, driverFixes, driverRetries, shadowSkippedBytes, driverProbes, driverProbesSkipped, screenFrames, screenRawBytes, screenWireBytes,
+            screenPredictedNanos, screenActualNanos, gamesStarted}) {
+            counter.set(0);
+        }
+        for (int i = 0; i < RTT_BUCKETS; i++) {
+            roundTrips.set(i, 0);
+        }
+        keyLatency.reset();
+    }
+}
@@ -0,0 +1,97 @@
+package ags.communication;
+
+/**
+ * JMX view of TransferMetrics (registered as ags.communication:type=TransferMetrics,link=...)
+ * @author brobert
+ */
+public interface TransferMetricsMBean {
+
+    String getLinkName();
+
+    long getBytesSent();
+
+    long getBytesReceived();
+
+    /**
+     * @return Payload bytes delivered per second while raw transfers were running
+     */
+    long getEffectiveBytesPerSecond();
+
+    /**
+     * @return Bytes per second the line could carry at the last baud rate used
+     */
+    long getLineBytesPerSecond();
+
+    /**
+     * @return Effective rate as a percentage of the line rate
+     */
+    double getLineUtilizationPercent();
+
+    long getChecksumFailures();
+
+    long getDriverFixes();
+
+    long getDriverRetries();
+
+    /**
+     * @return Bytes left out of transfers because the memory shadow showed the apple already had them
+     */
+    long getShadowSkippedBytes();
+
+    /**
+     * @return Times the host asked the driver for "hi" before a command
+     */
+    long getDriverProbes();
+
+    /**
+     * @return Times that check was left out because the driver had answered recently
+     */
+    long getDriverProbesSkipped();
+
+    long getChunks();
+
+    /**
+     * @return Chunk round trip times: count per bucket, bucket n covering [2^(n-1), 2^n) microseconds
+     */
+    long[] getChunkRoundTripHistogram();
+
+    long getChunkRoundTripMicrosP50();
+
+    long getChunkRoundTripMicrosP99();
+
+    long getScreenFrames();
+
+    long getScreenRawBytes();
+
+    long getScreenWireBytes();
+
+    /**
+     * @return Time the decompressor model predicted for the packed screens sent
+     */
+    long getScreenPredictedMillis();
+
+    /**
+     * @return Time those screens actually took to send
+     */
+    long getScreenActualMillis();
+
+    /**
+     * @return Per display type: keys timed, median and 99th percentile from key to updated screen,
+     * and the median of each stage (redraw, convert, encode, wire, flip)
+     */
+    String[] getKeyToScreenLatencies();
+
+    long getGamesStarted();
+
+    /**
+     * @return Most recent games with the time from selection until they were running, newest first
+     */
+    String[] getRecentTimesToPlayable();
+
+    /**
+     * @return One line summary, as printed periodically
+     */
+    String getSummary();
+
+    void reset();
+}
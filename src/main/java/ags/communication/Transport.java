@@ -0,0 +1,77 @@
+package ags.communication;
+
+import ags.communication.GenericHost.FlowControl;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Byte pipe between the host and the apple.  GenericHost does all of its i/o through one of these, so
+ * the protocol code doesn't care whether the apple is on a serial port (SerialTransport), at the other
+ * end of a TCP connection (SocketChannelTransport) or in the same process (StreamTransport).
+ * @author brobert
+ */
+public interface Transport extends Closeable {
+
+    /**
+     * @return Number of bytes that can be read without waiting
+     * @throws java.io.IOException If the link is broken
+     */
+    int available() throws IOException;
+
+    /**
+     * Read whatever has arrived, waiting a short while for the first byte if nothing is there yet
+     * @param dst Buffer to fill (up to its remaining space)
+     * @return Number of bytes read, 0 if nothing arrived in time
+     * @throws java.io.IOException If the link is broken or closed
+     */
+    int read(ByteBuffer dst) throws IOException;
+
+    /**
+     * Write all remaining bytes of the buffers, in order, as one gathering write where the link supports it
+     * @param srcs Buffers to send (their positions are advanced)
+     * @throws java.io.IOException If the data could not be sent
+     */
+    void write(ByteBuffer... srcs) throws IOException;
+
+    /**
+     * Push anything buffered out onto the line
+     * @throws java.io.IOException If the data could not be sent
+     */
+    void flush() throws IOException;
+
+    /**
+     * Set the line speed and flow control (8-N-1); links without a real serial line ignore this
+     * @param baudRate Baud rate
+     * @param flow Flow control mode
+     * @throws java.io.IOException If the port could not be configured
+     */
+    void configure(int baudRate, FlowControl flow) throws IOException;
+
+    /**
+     * @return True if the apple is ready for more data (CTS, for links with hardware flow control)
+     */
+    boolean isClearToSend();
+
+    /**
+     * @return Name identifying the connection to the apple, used to remember settings per link
+     */
+    String getLinkName();
+
+    /**
+     * @return Name this connection's TransferMetrics are kept under.  Usually the link name, but links
+     * that can be open more than once at the same time need a name per connection, so that each
+     * session's metrics are recorded by that session alone.
+     */
+    default String getMetricsName() {
+        return getLinkName();
+    }
+
+    /**
+     * @return Buffer this transport fills by itself as data arrives, or null if it has to be read by a
+     * reader thread
+     */
+    default ReceiveBuffer getReceiveBuffer() {
+        return null;
+    }
+}
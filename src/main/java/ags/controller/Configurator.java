@@ -215,6 +215,21 @@ public class Configurator {
         }
     }
 
+    /**
+     * Get the preferences node used to remember what was learned about a particular connection
+     * (serial port or tcp endpoint) between sessions
+     * @param linkName Name of the link, such as "serial:COM1" or "tcp:localhost:1977"
+     * @return Preferences node for that link
+     */
+    public static Preferences getLinkPreferences(String linkName) {
+        // Node names can't contain slashes and are limited in length
+        String nodeName = linkName.replace('/', '_');
+        if (nodeName.length() > Preferences.MAX_NAME_LENGTH) {
+            nodeName = nodeName.substring(0, Preferences.MAX_NAME_LENGTH);
+        }
+        return Preferences.userNodeForPackage(Configurator.class).node("links").node(nodeName);
+    }
+
     public static void saveValues() {
         Preferences prefs = Preferences.userNodeForPackage(Configurator.class);
         for (Field f : findVariables()) {
@@ -4,9 +4,13 @@
  */
 package ags.controller;
 
+import ags.communication.PipeTransferHost;
+import ags.communication.TCPListener;
 import ags.communication.TCPTransferHost;
 import ags.communication.TransferHost;
+import ags.communication.Transport;
 import ags.controller.Configurable.CATEGORY;
+import ags.emulator.VirtualApple;
 import ags.game.Game;
 import ags.game.GameUtil;
 import ags.script.Script;
@@ -76,7 +80,7 @@ public class Launcher implements Runnable {
     };
 
     public static enum PORT_TYPES {
-        SERIAL, TCP
+        SERIAL, TCP, EMULATOR, TCP_LISTEN
     };
 
     public static enum DISPLAY_TYPES {
@@ -90,18 +94,30 @@ public class Launcher implements Runnable {
     // TCP Connection Settings (moved to advanced as they rarely change)
     @Configurable(category = CATEGORY.ADVANCED, isRequired = true)
     public static String TCP_HOST = "localhost";
+    /**
+     * Port to connect to (TCP), or to accept connections on (TCP_LISTEN)
+     */
     @Configurable(category = CATEGORY.ADVANCED, isRequired = true)
     public static int TCP_PORT = 1977;
     
     // Serial Port Settings
     @Configurable(category = CATEGORY.COM, isRequired = true)
     public static String SERIAL_PORT = getDefaultSerialPort();
+    /**
+     * Serial ports to serve at the same time, separated by commas, each with its own session
+     * (SERIAL_PORT is used when this is empty)
+     */
+    @Configurable(category = CATEGORY.COM, isRequired = false)
+    public static String SERIAL_PORTS = "";
     @Configurable(category = CATEGORY.COM, isRequired = false)
     public static boolean DEBUG_BOOTSTRAP = false;
     @Configurable(category = CATEGORY.ADVANCED, isRequired = false)
     public static DISPLAY_TYPES DISPLAY_TYPE = DISPLAY_TYPES.Hires_Buffered;
-    static Thread activeThread = null;
+    // Sessions that have not finished yet
+    private static final List<Session> sessions = new ArrayList<Session>();
     private static boolean TERMINATE_PROGRAM = false;
+    // Accepts connections in TCP_LISTEN mode, each one gets a session
+    private static TCPListener listener = null;
     
     /**
      * Get list of available serial ports on this system
@@ -151,17 +167,33 @@ public class Launcher implements Runnable {
         return ports[0];
     }
 
+    /**
+     * Stop the calling thread if the user stopped the program or its session
+     */
     public static void checkRuntimeStatus() {
-        if (TERMINATE_PROGRAM) {
+        if (TERMINATE_PROGRAM || Session.current().isStopped()) {
             throw new RuntimeException("Program terminated by user intervention");
         }
         if (Main.instance != null) {
-            Main.instance.setTitle("AGS 3.1 - " + activeThread.getName());
+            int running;
+            synchronized (sessions) {
+                running = sessions.size();
+            }
+            Main.instance.setTitle("AGS 3.1 - " + (running > 1 ? running + " sessions running" : Thread.currentThread().getName()));
         }
     }
 
-    private static void finished() {
-        activeThread = null;
+    private static void finished(Session session) {
+        synchronized (sessions) {
+            sessions.remove(session);
+            if (!sessions.isEmpty() || listener != null) {
+                return;
+            }
+        }
+        showStopped();
+    }
+
+    private static void showStopped() {
         Main.instance.startStopButton.setText(START_PROGRAM);
         Main.instance.startStopButton.setEnabled(true);
         Main.instance.setTitle("AGS 3.1 - Not running");
@@ -185,19 +217,112 @@ public class Launcher implements Runnable {
 
     private static void start() {
         attachLogViewer(Main.instance.logDisplay);
-        if (activeThread != null && activeThread.isAlive()) {
-            return;
+        synchronized (sessions) {
+            if (!sessions.isEmpty() || listener != null) {
+                stopListener();
+                return;
+            }
+            TERMINATE_PROGRAM = false;
+            if (PORT_TYPE == PORT_TYPES.TCP_LISTEN) {
+                try {
+                    listener = new TCPListener(TCP_PORT, Launcher::accepted);
+                } catch (IOException ex) {
+                    showError("Unable to accept connections on port " + TCP_PORT + ": " + ex.getMessage());
+                    showStopped();
+                    return;
+                }
+                Main.instance.startStopButton.setEnabled(true);
+                Main.instance.setTitle("AGS 3.1 - Listening on port " + TCP_PORT);
+                return;
+            }
+            List<String> ports = getSessionPorts();
+            for (String portName : ports) {
+                Session session = new Session(ports.size() > 1 ? "Session " + portName : "Launcher");
+                sessions.add(session);
+                Thread thread = session.start(new Launcher(session, portName));
+                thread.setPriority(Thread.NORM_PRIORITY + 2);
+            }
         }
-        TERMINATE_PROGRAM = false;
-        activeThread = new Thread(new Launcher());
-        activeThread.setPriority(Thread.NORM_PRIORITY + 2);
-        activeThread.start();
         Main.instance.startStopButton.setEnabled(true);
     }
+
+    /**
+     * Start a session for a connection the listener accepted
+     * @param connection Connection to an emulator or a serial bridge
+     */
+    private static void accepted(Transport connection) {
+        synchronized (sessions) {
+            Session session = new Session("Session " + connection.getLinkName());
+            sessions.add(session);
+            Thread thread = session.start(new Launcher(session, connection));
+            thread.setPriority(Thread.NORM_PRIORITY + 2);
+        }
+    }
+
+    /**
+     * Stop accepting connections (sessions already running carry on until they are stopped)
+     */
+    private static void stopListener() {
+        if (listener == null) {
+            return;
+        }
+        try {
+            listener.close();
+        } catch (IOException ex) {
+            Logger.getLogger(Launcher.class.getName()).log(Level.SEVERE, null, ex);
+        }
+        listener = null;
+        if (sessions.isEmpty()) {
+            showStopped();
+        }
+    }
+
+    /**
+     * @return Serial port for each session to start (one session for other port types)
+     */
+    private static List<String> getSessionPorts() {
+        List<String> ports = new ArrayList<String>();
+        if (PORT_TYPE == PORT_TYPES.SERIAL && SERIAL_PORTS != null) {
+            for (String portName : SERIAL_PORTS.split(",")) {
+                if (!portName.trim().isEmpty()) {
+                    ports.add(portName.trim());
+                }
+            }
+        }
+        if (ports.isEmpty()) {
+            ports.add(SERIAL_PORT);
+        }
+        return ports;
+    }
+    private final Session session;
+    private final String serialPort;
+    private final Transport connection;
     public TransferHost host;
     private SerialPort port;
     private List<Game> games;
 
+    /**
+     * Constructor
+     * @param session Session this launcher runs in
+     * @param serialPort Serial port to use if the port type is SERIAL
+     */
+    public Launcher(Session session, String serialPort) {
+        this.session = session;
+        this.serialPort = serialPort;
+        this.connection = null;
+    }
+
+    /**
+     * Constructor for a connection accepted in TCP_LISTEN mode
+     * @param session Session this launcher runs in
+     * @param connection Connection to the apple
+     */
+    public Launcher(Session session, Transport connection) {
+        this.session = session;
+        this.serialPort = null;
+        this.connection = connection;
+    }
+
 //    @Override
     public void run() {
         try {
@@ -213,7 +338,7 @@ public class Launcher implements Runnable {
         }
     }
 
-    private void showError(String message) {
+    private static void showError(String message) {
         String showMessage = "";
         int len = 0;
         for (int i = 0; i < message.length(); i++) {
@@ -243,7 +368,7 @@ public class Launcher implements Runnable {
         switch (PORT_TYPE) {
             case SERIAL:
                 try {
-                    port = SerialPort.getCommPort(SERIAL_PORT);
+                    port = SerialPort.getCommPort(serialPort);
                     if (port.openPort()) {
                         // Configure for no buffering - immediate byte-by-byte communication
                         // Use semi-blocking with short timeout to eliminate async buffering
@@ -251,13 +376,13 @@ public class Launcher implements Runnable {
                         System.out.println("Opened serial port: " + port.getSystemPortName() + " with no-buffer configuration");
                     } else {
                         port = null;
-                        throw new IOException("Failed to open serial port '" + SERIAL_PORT + "'!");
+                        throw new IOException("Failed to open serial port '" + serialPort + "'!");
                     }
                 } catch (Throwable t) {
-                    System.out.println("Error opening serial port: " + SERIAL_PORT);
+                    System.out.println("Error opening serial port: " + serialPort);
                     t.printStackTrace();
                     port = null;
-                    throw new IOException("Serial port '" + SERIAL_PORT + "' is not available!");
+                    throw new IOException("Serial port '" + serialPort + "' is not available!");
                 }
 
                 host = new TransferHost(port);
@@ -268,6 +393,19 @@ public class Launcher implements Runnable {
                 System.out.println("Connecting to TCP host: " + TCP_HOST + ":" + TCP_PORT);
                 break;
 
+            case EMULATOR:
+                VirtualApple apple = new VirtualApple();
+                apple.boot();
+                apple.start();
+                host = new PipeTransferHost(apple.getHostInput(), apple.getHostOutput(), "emulator");
+                System.out.println("Started virtual apple at " + VirtualApple.EMULATOR_BAUD + " baud");
+                break;
+
+            case TCP_LISTEN:
+                host = new TransferHost(connection);
+                System.out.println("Serving " + connection.getLinkName());
+                break;
+
         }
     }
 
@@ -311,11 +449,26 @@ public class Launcher implements Runnable {
     }
 
     public void shutdown() {
+        if (host != null) {
+            // Closes the connection and stops the host's threads
+            try {
+                host.disconnect();
+            } catch (IOException ex) {
+                Logger.getLogger(Launcher.class.getName()).log(Level.SEVERE, null, ex);
+            }
+        }
         if (port != null) {
             port.clearDTR();
             port.closePort();
         }
+        if (connection != null) {
+            try {
+                connection.close();
+            } catch (IOException ex) {
+                Logger.getLogger(Launcher.class.getName()).log(Level.SEVERE, null, ex);
+            }
+        }
 
-        Launcher.finished();
+        Launcher.finished(session);
     }
 }
\ No newline at end of file
@@ -0,0 +1,115 @@
+package ags.controller;
+
+import ags.communication.GenericHost;
+import ags.script.Engine;
+import ags.script.Target;
+import ags.script.Variable;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Everything that belongs to one connected apple: its host, its script engine with the targets and
+ * variables the script defined, and whether the user asked it to stop.  Each session runs on its own
+ * thread and the code that used to reach for a singleton asks for the session of the thread it runs on,
+ * so one program can drive several apples at once.  Threads started by a session thread belong to the
+ * same session.  Code that runs outside of any session (tests, tools) shares a default one.
+ * @author brobert
+ */
+public class Session {
+
+    private static final Session DEFAULT = new Session("default");
+    private static final InheritableThreadLocal<Session> CURRENT = new InheritableThreadLocal<Session>();
+
+    /**
+     * @return Session of the calling thread
+     */
+    public static Session current() {
+        Session session = CURRENT.get();
+        return session == null ? DEFAULT : session;
+    }
+
+    private final String name;
+    private final Map<String, Target> targets = new HashMap<String, Target>();
+    private final Map<String, Variable> variables = new HashMap<String, Variable>();
+    private GenericHost host = null;
+    private Engine engine = null;
+    private Thread thread = null;
+    private volatile boolean stopped = false;
+
+    /**
+     * Constructor
+     * @param name Name of the session, used for its thread
+     */
+    public Session(String name) {
+        this.name = name;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Run a task on a new thread that belongs to this session
+     * @param task Task to run
+     * @return The thread, already started
+     */
+    public synchronized Thread start(final Runnable task) {
+        stopped = false;
+        thread = new Thread(new Runnable() {
+            public void run() {
+                CURRENT.set(Session.this);
+                task.run();
+            }
+        }, name);
+        thread.start();
+        return thread;
+    }
+
+    public synchronized boolean isAlive() {
+        return thread != null && thread.isAlive();
+    }
+
+    /**
+     * Ask the session to stop; its thread notices the next time it checks the runtime status
+     */
+    public void stop() {
+        stopped = true;
+    }
+
+    public boolean isStopped() {
+        return stopped;
+    }
+
+    /**
+     * @return Host talking to this session's apple, or null if it hasn't been created yet
+     */
+    public GenericHost getHost() {
+        return host;
+    }
+
+    public void setHost(GenericHost host) {
+        this.host = host;
+    }
+
+    public Engine getEngine() {
+        return engine;
+    }
+
+    public void setEngine(Engine engine) {
+        this.engine = engine;
+    }
+
+    /**
+     * @return Script targets defined in this session, by name
+     */
+    public Map<String, Target> getTargets() {
+        return targets;
+    }
+
+    /**
+     * @return Script variables defined in this session, by name
+     */
+    public Map<String, Variable> getVariables() {
+        return variables;
+    }
+}
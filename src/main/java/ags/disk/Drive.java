@@ -1,15 +1,11 @@
 package ags.disk;
 
 import ags.communication.*;
-import ags.controller.Launcher;
 import ags.disk.RWTS.Command;
 import ags.disk.RWTS.CommandBlock;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.concurrent.locks.LockSupport;
-import java.util.logging.Level;
-import java.util.logging.Logger;
 
 /**
  * Handles disk operations
@@ -128,25 +124,11 @@ public class Drive {
     //------------------- Basic operations that work with RWTS Driver directly
     // Wait for apple RWTS loop to start again
     public byte[] waitForCommand() throws IOException {
-        while (apple.inputAvailable() == 0) {
-            try {
-                Thread.sleep(100);
-                Launcher.checkRuntimeStatus();
-            } catch (InterruptedException ex) {
-                Logger.getLogger(Drive.class.getName()).log(Level.SEVERE, null, ex);
-            }
+        while (!apple.awaitInput(1, System.nanoTime() + 1000000000L)) {
+            // Commands can be a long time coming; awaitInput checks the runtime status while we wait
         }
-        int lastCheck = apple.inputAvailable();
-        boolean gotMore = true;
         // Wait for full command to fill buffer...
-        while (gotMore) {
-            LockSupport.parkNanos(DataUtil.NANOS_PER_CHAR * 2);
-            int check = apple.inputAvailable();
-            if (check == lastCheck) {
-                gotMore = false;
-                lastCheck = check;
-            }
-        }
+        apple.awaitQuiet(DataUtil.NANOS_PER_CHAR * 2);
         return read();
     }
 
@@ -176,20 +158,12 @@ public class Drive {
         int length = 256;
         List<Byte> buffer = new ArrayList<Byte>();
 
-        while (buffer.size() < length && timeout > 0) {
-            while (apple.inputAvailable() == 0 && timeout > 0) {
-                DataUtil.wait(20);
-                timeout -= 20;
-            }
-            if (timeout != 0) {
-                timeout = 40;
-            }
-
-            if (apple.inputAvailable() > 0) {
-                byte[] b = apple.readBytes();
-                for (byte B : b) {
-                    buffer.add(B);
-                }
+        // Wait up to 200ms for the reply to start, then until it pauses for 40ms
+        while (buffer.size() < length && apple.awaitInput(1, System.nanoTime() + timeout * 1000000L)) {
+            timeout = 40;
+            byte[] b = apple.readBytes();
+            for (byte B : b) {
+                buffer.add(B);
             }
         }
         if (buffer.size() > 0) {
@@ -0,0 +1,183 @@
+package ags.emulator;
+
+import java.io.OutputStream;
+import java.io.IOException;
+
+/**
+ * 6551 ACIA as found on the Super Serial Card.
+ * Like the real part there is no receive FIFO: a byte that finishes arriving while the previous one is
+ * still sitting unread in the data register is lost and the overrun flag is set.  Bytes from the host
+ * are serialized at the configured baud rate, so a burst written by the host reaches the 6502 one
+ * character time apart no matter how quickly it was written.
+ * @author brobert
+ */
+public class Acia6551 {
+
+    public static final int STATUS_OVERRUN = 0x04;
+    public static final int STATUS_RDRF = 0x08;
+    public static final int STATUS_TDRE = 0x10;
+    // Bytes on their way in, with the cycle at which each one is completely received
+    private final int[] rxData = new int[65536];
+    private final long[] rxDone = new long[65536];
+    private int rxHead = 0;
+    private int rxTail = 0;
+    private long rxLineFree = 0;
+    private int dataRegister = 0;
+    private int status = STATUS_TDRE;
+    private int command = 0;
+    private int control = 0;
+    // Transmit side: the byte in the shift register and the one waiting in the data register
+    private boolean shifting = false;
+    private int shiftByte;
+    private long shiftDone;
+    private boolean txFull = false;
+    private int txByte;
+    private final long cyclesPerChar;
+    private final OutputStream toHost;
+    private long overruns = 0;
+    private long received = 0;
+    private long sent = 0;
+
+    /**
+     * Constructor
+     * @param cyclesPerChar 6502 cycles needed to send one character at the line speed
+     * @param toHost Where bytes sent by the apple go
+     */
+    public Acia6551(long cyclesPerChar, OutputStream toHost) {
+        this.cyclesPerChar = cyclesPerChar;
+        this.toHost = toHost;
+    }
+
+    /**
+     * A byte left the host
+     * @param value Byte value
+     * @param cycle CPU cycle at which it started down the line
+     * @return false if too many bytes are already queued
+     */
+    public synchronized boolean receive(int value, long cycle) {
+        int next = (rxTail + 1) & (rxData.length - 1);
+        if (next == rxHead) {
+            return false;
+        }
+        rxLineFree = Math.max(rxLineFree, cycle) + cyclesPerChar;
+        rxData[rxTail] = value & 0x0ff;
+        rxDone[rxTail] = rxLineFree;
+        rxTail = next;
+        return true;
+    }
+
+    /**
+     * Bring the ACIA up to date with the CPU
+     * @param cycle Current CPU cycle
+     */
+    public synchronized void update(long cycle) {
+        while (rxHead != rxTail && rxDone[rxHead] <= cycle) {
+            if ((status & STATUS_RDRF) != 0) {
+                // Nowhere to put it
+                status |= STATUS_OVERRUN;
+                overruns++;
+            } else {
+                dataRegister = rxData[rxHead];
+                status |= STATUS_RDRF;
+                received++;
+            }
+            rxHead = (rxHead + 1) & (rxData.length - 1);
+        }
+        while (shifting && shiftDone <= cycle) {
+            emit(shiftByte);
+            if (txFull) {
+                shiftByte = txByte;
+                shiftDone += cyclesPerChar;
+                txFull = false;
+                status |= STATUS_TDRE;
+            } else {
+                shifting = false;
+            }
+        }
+    }
+
+    private void emit(int value) {
+        sent++;
+        try {
+            toHost.write(value);
+            toHost.flush();
+        } catch (IOException ex) {
+            // Nobody is listening, so the byte just falls on the floor like it would on a real cable
+        }
+    }
+
+    /**
+     * @return Are there bytes that haven't reached the data register yet?
+     */
+    public synchronized boolean isReceiving() {
+        return rxHead != rxTail;
+    }
+
+    /**
+     * CPU read of an ACIA register
+     * @param register 0-3 (data, status, command, control)
+     * @param cycle Current CPU cycle
+     * @return Register value
+     */
+    public synchronized int read(int register, long cycle) {
+        update(cycle);
+        switch (register & 3) {
+            case 0:
+                status &= ~(STATUS_RDRF | STATUS_OVERRUN);
+                return dataRegister;
+            case 1:
+                return status;
+            case 2:
+                return command;
+            default:
+                return control;
+        }
+    }
+
+    /**
+     * CPU write of an ACIA register
+     * @param register 0-3 (data, status, command, control)
+     * @param value Value written
+     * @param cycle Current CPU cycle
+     */
+    public synchronized void write(int register, int value, long cycle) {
+        update(cycle);
+        switch (register & 3) {
+            case 0:
+                if (!shifting) {
+                    shifting = true;
+                    shiftByte = value;
+                    shiftDone = cycle + cyclesPerChar;
+                } else {
+                    // Overwrites anything already waiting, as on the real chip
+                    txFull = true;
+                    txByte = value;
+                    status &= ~STATUS_TDRE;
+                }
+                break;
+            case 1:
+                // Programmed reset
+                status &= ~STATUS_OVERRUN;
+                command &= 0x0e0;
+                break;
+            case 2:
+                command = value;
+                break;
+            default:
+                control = value;
+                break;
+        }
+    }
+
+    public synchronized long getOverruns() {
+        return overruns;
+    }
+
+    public synchronized long getReceived() {
+        return received;
+    }
+
+    public synchronized long getSent() {
+        return sent;
+    }
+}
@@ -0,0 +1,463 @@
+package ags.emulator;
+
+/**
+ * NMOS 6502 core with cycle counting, good enough to run the AGS drivers at their real speed.
+ * All documented opcodes are supported, including decimal mode and the page-crossing and branch penalties.
+ * Undocumented opcodes are treated as single byte NOPs.
+ *
+ * ROM routines are not emulated; instead a Trap can be registered at their entry points.  When the
+ * program counter reaches a trap address the trap runs in place of the instruction there.
+ * @author brobert
+ */
+public class Cpu6502 {
+
+    /**
+     * Memory and I/O as seen by the CPU
+     */
+    public interface Bus {
+
+        int read(int address);
+
+        void write(int address, int value);
+    }
+
+    /**
+     * Host-side replacement for a ROM routine
+     */
+    public interface Trap {
+
+        void execute(Cpu6502 cpu);
+    }
+
+    private final Bus bus;
+    private final Trap[] traps = new Trap[0x10000];
+    public int a, x, y;
+    public int sp = 0x0ff;
+    public int pc;
+    public boolean n, v, d, i, z, c;
+    /**
+     * Total number of cycles executed
+     */
+    public long cycles = 0;
+
+    public Cpu6502(Bus bus) {
+        this.bus = bus;
+    }
+
+    public void setTrap(int address, Trap trap) {
+        traps[address & 0x0ffff] = trap;
+    }
+
+    //-------------------------------------
+    //--- Helpers for traps
+
+    /**
+     * Return from the current subroutine, as if the trapped routine ended with RTS
+     */
+    public void returnFromSubroutine() {
+        pc = (pop() | (pop() << 8)) + 1 & 0x0ffff;
+        cycles += 6;
+    }
+
+    public int read(int address) {
+        return bus.read(address & 0x0ffff) & 0x0ff;
+    }
+
+    public void write(int address, int value) {
+        bus.write(address & 0x0ffff, value & 0x0ff);
+    }
+
+    public int readWord(int address) {
+        return read(address) | (read(address + 1) << 8);
+    }
+
+    private void push(int value) {
+        write(0x0100 | sp, value);
+        sp = (sp - 1) & 0x0ff;
+    }
+
+    private int pop() {
+        sp = (sp + 1) & 0x0ff;
+        return read(0x0100 | sp);
+    }
+
+    public int getStatus() {
+        return (n ? 0x080 : 0) | (v ? 0x040 : 0) | 0x020 | (d ? 0x08 : 0) | (i ? 0x04 : 0) | (z ? 0x02 : 0) | (c ? 0x01 : 0);
+    }
+
+    public void setStatus(int p) {
+        n = (p & 0x080) != 0;
+        v = (p & 0x040) != 0;
+        d = (p & 0x08) != 0;
+        i = (p & 0x04) != 0;
+        z = (p & 0x02) != 0;
+        c = (p & 0x01) != 0;
+    }
+
+    private int nz(int value) {
+        value &= 0x0ff;
+        n = (value & 0x080) != 0;
+        z = value == 0;
+        return value;
+    }
+
+    //-------------------------------------
+    //--- Addressing modes (each returns the effective address)
+
+    private int imm() {
+        return pc++ & 0x0ffff;
+    }
+
+    private int zp() {
+        return read(pc++);
+    }
+
+    private int zpx() {
+        return (read(pc++) + x) & 0x0ff;
+    }
+
+    private int zpy() {
+        return (read(pc++) + y) & 0x0ff;
+    }
+
+    private int abs() {
+        int address = readWord(pc);
+        pc += 2;
+        return address;
+    }
+
+    private int indexed(int base, int index, boolean penalty) {
+        int address = (base + index) & 0x0ffff;
+        if (penalty && (address & 0x0ff00) != (base & 0x0ff00)) {
+            cycles++;
+        }
+        return address;
+    }
+
+    private int absx(boolean penalty) {
+        return indexed(abs(), x, penalty);
+    }
+
+    private int absy(boolean penalty) {
+        return indexed(abs(), y, penalty);
+    }
+
+    private int indx() {
+        int zp = (read(pc++) + x) & 0x0ff;
+        return read(zp) | (read((zp + 1) & 0x0ff) << 8);
+    }
+
+    private int indy(boolean penalty) {
+        int zp = read(pc++);
+        return indexed(read(zp) | (read((zp + 1) & 0x0ff) << 8), y, penalty);
+    }
+
+    //-------------------------------------
+    //--- Operations
+
+    private void adc(int value) {
+        int carry = c ? 1 : 0;
+        if (d) {
+            int lo = (a & 0x0f) + (value & 0x0f) + carry;
+            if (lo > 9) {
+                lo += 6;
+            }
+            int hi = (a >> 4) + (value >> 4) + (lo > 0x0f ? 1 : 0);
+            z = ((a + value + carry) & 0x0ff) == 0;
+            n = (hi & 0x08) != 0;
+            v = ((~(a ^ value)) & (a ^ (hi << 4)) & 0x080) != 0;
+            if (hi > 9) {
+                hi += 6;
+            }
+            c = hi > 0x0f;
+            a = ((hi << 4) | (lo & 0x0f)) & 0x0ff;
+        } else {
+            int result = a + value + carry;
+            v = ((~(a ^ value)) & (a ^ result) & 0x080) != 0;
+            c = result > 0x0ff;
+            a = nz(result);
+        }
+    }
+
+    private void sbc(int value) {
+        int borrow = c ? 0 : 1;
+        int result = a - value - borrow;
+        v = ((a ^ value) & (a ^ result) & 0x080) != 0;
+        if (d) {
+            int lo = (a & 0x0f) - (value & 0x0f) - borrow;
+            int hi = (a >> 4) - (value >> 4);
+            if ((lo & 0x010) != 0) {
+                lo -= 6;
+                hi--;
+            }
+            if ((hi & 0x010) != 0) {
+                hi -= 6;
+            }
+            c = result >= 0;
+            nz(result);
+            a = ((hi << 4) | (lo & 0x0f)) & 0x0ff;
+        } else {
+            c = result >= 0;
+            a = nz(result);
+        }
+    }
+
+    private void compare(int register, int value) {
+        c = register >= value;
+        nz(register - value);
+    }
+
+    private void bit(int value) {
+        z = (a & value) == 0;
+        n = (value & 0x080) != 0;
+        v = (value & 0x040) != 0;
+    }
+
+    private int asl(int value) {
+        c = (value & 0x080) != 0;
+        return nz(value << 1);
+    }
+
+    private int lsr(int value) {
+        c = (value & 0x01) != 0;
+        return nz(value >> 1);
+    }
+
+    private int rol(int value) {
+        int result = (value << 1) | (c ? 1 : 0);
+        c = (value & 0x080) != 0;
+        return nz(result);
+    }
+
+    private int ror(int value) {
+        int result = (value >> 1) | (c ? 0x080 : 0);
+        c = (value & 0x01) != 0;
+        return nz(result);
+    }
+
+    private interface Modify {
+
+        int apply(int value);
+    }
+
+    private void modify(int address, Modify op) {
+        write(address, op.apply(read(address)));
+    }
+
+    private void branch(boolean condition) {
+        int offset = (byte) read(pc++);
+        if (condition) {
+            int target = (pc + offset) & 0x0ffff;
+            cycles += (target & 0x0ff00) != (pc & 0x0ff00) ? 2 : 1;
+            pc = target;
+        }
+    }
+
+    private void interrupt(int vector, boolean brk) {
+        push(pc >> 8);
+        push(pc & 0x0ff);
+        push(getStatus() | (brk ? 0x010 : 0));
+        i = true;
+        pc = readWord(vector);
+    }
+
+    /**
+     * Raise an IRQ (ignored while interrupts are disabled)
+     */
+    public void irq() {
+        if (!i) {
+            interrupt(0x0fffe, false);
+            cycles += 7;
+        }
+    }
+
+    /**
+     * Execute one instruction (or trap)
+     */
+    public void step() {
+        Trap trap = traps[pc];
+        if (trap != null) {
+            trap.execute(this);
+            return;
+        }
+        int op = read(pc++);
+        pc &= 0x0ffff;
+        switch (op) {
+            // Loads and stores
+            case 0x0A9: a = nz(read(imm())); cycles += 2; break;
+            case 0x0A5: a = nz(read(zp())); cycles += 3; break;
+            case 0x0B5: a = nz(read(zpx())); cycles += 4; break;
+            case 0x0AD: a = nz(read(abs())); cycles += 4; break;
+            case 0x0BD: a = nz(read(absx(true))); cycles += 4; break;
+            case 0x0B9: a = nz(read(absy(true))); cycles += 4; break;
+            case 0x0A1: a = nz(read(indx())); cycles += 6; break;
+            case 0x0B1: a = nz(read(indy(true))); cycles += 5; break;
+            case 0x0A2: x = nz(read(imm())); cycles += 2; break;
+            case 0x0A6: x = nz(read(zp())); cycles += 3; break;
+            case 0x0B6: x = nz(read(zpy())); cycles += 4; break;
+            case 0x0AE: x = nz(read(abs())); cycles += 4; break;
+            case 0x0BE: x = nz(read(absy(true))); cycles += 4; break;
+            case 0x0A0: y = nz(read(imm())); cycles += 2; break;
+            case 0x0A4: y = nz(read(zp())); cycles += 3; break;
+            case 0x0B4: y = nz(read(zpx())); cycles += 4; break;
+            case 0x0AC: y = nz(read(abs())); cycles += 4; break;
+            case 0x0BC: y = nz(read(absx(true))); cycles += 4; break;
+            case 0x085: write(zp(), a); cycles += 3; break;
+            case 0x095: write(zpx(), a); cycles += 4; break;
+            case 0x08D: write(abs(), a); cycles += 4; break;
+            case 0x09D: write(absx(false), a); cycles += 5; break;
+            case 0x099: write(absy(false), a); cycles += 5; break;
+            case 0x081: write(indx(), a); cycles += 6; break;
+            case 0x091: write(indy(false), a); cycles += 6; break;
+            case 0x086: write(zp(), x); cycles += 3; break;
+            case 0x096: write(zpy(), x); cycles += 4; break;
+            case 0x08E: write(abs(), x); cycles += 4; break;
+            case 0x084: write(zp(), y); cycles += 3; break;
+            case 0x094: write(zpx(), y); cycles += 4; break;
+            case 0x08C: write(abs(), y); cycles += 4; break;
+            // Arithmetic and logic
+            case 0x069: adc(read(imm())); cycles += 2; break;
+            case 0x065: adc(read(zp())); cycles += 3; break;
+            case 0x075: adc(read(zpx())); cycles += 4; break;
+            case 0x06D: adc(read(abs())); cycles += 4; break;
+            case 0x07D: adc(read(absx(true))); cycles += 4; break;
+            case 0x079: adc(read(absy(true))); cycles += 4; break;
+            case 0x061: adc(read(indx())); cycles += 6; break;
+            case 0x071: adc(read(indy(true))); cycles += 5; break;
+            case 0x0E9: sbc(read(imm())); cycles += 2; break;
+            case 0x0E5: sbc(read(zp())); cycles += 3; break;
+            case 0x0F5: sbc(read(zpx())); cycles += 4; break;
+            case 0x0ED: sbc(read(abs())); cycles += 4; break;
+            case 0x0FD: sbc(read(absx(true))); cycles += 4; break;
+            case 0x0F9: sbc(read(absy(true))); cycles += 4; break;
+            case 0x0E1: sbc(read(indx())); cycles += 6; break;
+            case 0x0F1: sbc(read(indy(true))); cycles += 5; break;
+            case 0x029: a = nz(a & read(imm())); cycles += 2; break;
+            case 0x025: a = nz(a & read(zp())); cycles += 3; break;
+            case 0x035: a = nz(a & read(zpx())); cycles += 4; break;
+            case 0x02D: a = nz(a & read(abs())); cycles += 4; break;
+            case 0x03D: a = nz(a & read(absx(true))); cycles += 4; break;
+            case 0x039: a = nz(a & read(absy(true))); cycles += 4; break;
+            case 0x021: a = nz(a & read(indx())); cycles += 6; break;
+            case 0x031: a = nz(a & read(indy(true))); cycles += 5; break;
+            case 0x009: a = nz(a | read(imm())); cycles += 2; break;
+            case 0x005: a = nz(a | read(zp())); cycles += 3; break;
+            case 0x015: a = nz(a | read(zpx())); cycles += 4; break;
+            case 0x00D: a = nz(a | read(abs())); cycles += 4; break;
+            case 0x01D: a = nz(a | read(absx(true))); cycles += 4; break;
+            case 0x019: a = nz(a | read(absy(true))); cycles += 4; break;
+            case 0x001: a = nz(a | read(indx())); cycles += 6; break;
+            case 0x011: a = nz(a | read(indy(true))); cycles += 5; break;
+            case 0x049: a = nz(a ^ read(imm())); cycles += 2; break;
+            case 0x045: a = nz(a ^ read(zp())); cycles += 3; break;
+            case 0x055: a = nz(a ^ read(zpx())); cycles += 4; break;
+            case 0x04D: a = nz(a ^ read(abs())); cycles += 4; break;
+            case 0x05D: a = nz(a ^ read(absx(true))); cycles += 4; break;
+            case 0x059: a = nz(a ^ read(absy(true))); cycles += 4; break;
+            case 0x041: a = nz(a ^ read(indx())); cycles += 6; break;
+            case 0x051: a = nz(a ^ read(indy(true))); cycles += 5; break;
+            case 0x0C9: compare(a, read(imm())); cycles += 2; break;
+            case 0x0C5: compare(a, read(zp())); cycles += 3; break;
+            case 0x0D5: compare(a, read(zpx())); cycles += 4; break;
+            case 0x0CD: compare(a, read(abs())); cycles += 4; break;
+            case 0x0DD: compare(a, read(absx(true))); cycles += 4; break;
+            case 0x0D9: compare(a, read(absy(true))); cycles += 4; break;
+            case 0x0C1: compare(a, read(indx())); cycles += 6; break;
+            case 0x0D1: compare(a, read(indy(true))); cycles += 5; break;
+            case 0x0E0: compare(x, read(imm())); cycles += 2; break;
+            case 0x0E4: compare(x, read(zp())); cycles += 3; break;
+            case 0x0EC: compare(x, read(abs())); cycles += 4; break;
+            case 0x0C0: compare(y, read(imm())); cycles += 2; break;
+            case 0x0C4: compare(y, read(zp())); cycles += 3; break;
+            case 0x0CC: compare(y, read(abs())); cycles += 4; break;
+            case 0x024: bit(read(zp())); cycles += 3; break;
+            case 0x02C: bit(read(abs())); cycles += 4; break;
+            // Increments, decrements and shifts
+            case 0x0E6: modify(zp(), value -> nz(value + 1)); cycles += 5; break;
+            case 0x0F6: modify(zpx(), value -> nz(value + 1)); cycles += 6; break;
+            case 0x0EE: modify(abs(), value -> nz(value + 1)); cycles += 6; break;
+            case 0x0FE: modify(absx(false), value -> nz(value + 1)); cycles += 7; break;
+            case 0x0C6: modify(zp(), value -> nz(value - 1)); cycles += 5; break;
+            case 0x0D6: modify(zpx(), value -> nz(value - 1)); cycles += 6; break;
+            case 0x0CE: modify(abs(), value -> nz(value - 1)); cycles += 6; break;
+            case 0x0DE: modify(absx(false), value -> nz(value - 1)); cycles += 7; break;
+            case 0x0E8: x = nz(x + 1); cycles += 2; break;
+            case 0x0CA: x = nz(x - 1); cycles += 2; break;
+            case 0x0C8: y = nz(y + 1); cycles += 2; break;
+            case 0x088: y = nz(y - 1); cycles += 2; break;
+            case 0x00A: a = asl(a); cycles += 2; break;
+            case 0x006: modify(zp(), this::asl); cycles += 5; break;
+            case 0x016: modify(zpx(), this::asl); cycles += 6; break;
+            case 0x00E: modify(abs(), this::asl); cycles += 6; break;
+            case 0x01E: modify(absx(false), this::asl); cycles += 7; break;
+            case 0x04A: a = lsr(a); cycles += 2; break;
+            case 0x046: modify(zp(), this::lsr); cycles += 5; break;
+            case 0x056: modify(zpx(), this::lsr); cycles += 6; break;
+            case 0x04E: modify(abs(), this::lsr); cycles += 6; break;
+            case 0x05E: modify(absx(false), this::lsr); cycles += 7; break;
+            case 0x02A: a = rol(a); cycles += 2; break;
+            case 0x026: modify(zp(), this::rol); cycles += 5; break;
+            case 0x036: modify(zpx(), this::rol); cycles += 6; break;
+            case 0x02E: modify(abs(), this::rol); cycles += 6; break;
+            case 0x03E: modify(absx(false), this::rol); cycles += 7; break;
+            case 0x06A: a = ror(a); cycles += 2; break;
+            case 0x066: modify(zp(), this::ror); cycles += 5; break;
+            case 0x076: modify(zpx(), this::ror); cycles += 6; break;
+            case 0x06E: modify(abs(), this::ror); cycles += 6; break;
+            case 0x07E: modify(absx(false), this::ror); cycles += 7; break;
+            // Branches and jumps
+            case 0x010: branch(!n); cycles += 2; break;
+            case 0x030: branch(n); cycles += 2; break;
+            case 0x050: branch(!v); cycles += 2; break;
+            case 0x070: branch(v); cycles += 2; break;
+            case 0x090: branch(!c); cycles += 2; break;
+            case 0x0B0: branch(c); cycles += 2; break;
+            case 0x0D0: branch(!z); cycles += 2; break;
+            case 0x0F0: branch(z); cycles += 2; break;
+            case 0x04C: pc = abs(); cycles += 3; break;
+            case 0x06C: {
+                // The NMOS part doesn't carry into the high byte when fetching the vector
+                int vector = abs();
+                pc = read(vector) | (read((vector & 0x0ff00) | ((vector + 1) & 0x0ff)) << 8);
+                cycles += 5;
+                break;
+            }
+            case 0x020: {
+                int target = abs();
+                int ret = (pc - 1) & 0x0ffff;
+                push(ret >> 8);
+                push(ret & 0x0ff);
+                pc = target;
+                cycles += 6;
+                break;
+            }
+            case 0x060: pc = ((pop() | (pop() << 8)) + 1) & 0x0ffff; cycles += 6; break;
+            case 0x040: setStatus(pop()); pc = pop() | (pop() << 8); cycles += 6; break;
+            case 0x000: pc = (pc + 1) & 0x0ffff; interrupt(0x0fffe, true); cycles += 7; break;
+            // Stack, flags and transfers
+            case 0x048: push(a); cycles += 3; break;
+            case 0x068: a = nz(pop()); cycles += 4; break;
+            case 0x008: push(getStatus() | 0x010); cycles += 3; break;
+            case 0x028: setStatus(pop()); cycles += 4; break;
+            case 0x018: c = false; cycles += 2; break;
+            case 0x038: c = true; cycles += 2; break;
+            case 0x058: i = false; cycles += 2; break;
+            case 0x078: i = true; cycles += 2; break;
+            case 0x0B8: v = false; cycles += 2; break;
+            case 0x0D8: d = false; cycles += 2; break;
+            case 0x0F8: d = true; cycles += 2; break;
+            case 0x0AA: x = nz(a); cycles += 2; break;
+            case 0x0A8: y = nz(a); cycles += 2; break;
+            case 0x08A: a = nz(x); cycles += 2; break;
+            case 0x098: a = nz(y); cycles += 2; break;
+            case 0x0BA: x = nz(sp); cycles += 2; break;
+            case 0x09A: sp = x; cycles += 2; break;
+            case 0x0EA: cycles += 2; break;
+            default:
+                // Undocumented opcode
+                cycles += 2;
+                break;
+        }
+        pc &= 0x0ffff;
+    }
+}
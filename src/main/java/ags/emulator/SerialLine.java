@@ -0,0 +1,125 @@
+package ags.emulator;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * One direction of a serial cable between the host and the virtual apple.
+ * Every byte is stamped with the time it was written so the receiving end can work out when it
+ * would have gone down the wire.
+ * @author brobert
+ */
+public class SerialLine {
+
+    private final byte[] data = new byte[65536];
+    private final long[] stamps = new long[65536];
+    private int head = 0;
+    private int tail = 0;
+    private boolean closed = false;
+
+    public synchronized void write(int value) throws IOException {
+        int next = (tail + 1) & (data.length - 1);
+        while (next == head && !closed) {
+            try {
+                wait(10);
+            } catch (InterruptedException ex) {
+                throw new IOException("Interrupted while writing to serial line");
+            }
+        }
+        if (closed) {
+            throw new IOException("Serial line closed");
+        }
+        data[tail] = (byte) value;
+        stamps[tail] = System.nanoTime();
+        tail = next;
+        notifyAll();
+    }
+
+    /**
+     * Read a byte, waiting for one if necessary
+     * @return byte value, or -1 if the line was closed
+     */
+    public synchronized int read() {
+        while (head == tail && !closed) {
+            try {
+                wait(10);
+            } catch (InterruptedException ex) {
+                return -1;
+            }
+        }
+        if (head == tail) {
+            return -1;
+        }
+        int value = data[head] & 0x0ff;
+        head = (head + 1) & (data.length - 1);
+        notifyAll();
+        return value;
+    }
+
+    public synchronized int available() {
+        return (tail - head) & (data.length - 1);
+    }
+
+    /**
+     * @return Time (System.nanoTime) the next byte was written; only valid if available() > 0
+     */
+    public synchronized long peekStamp() {
+        return stamps[head];
+    }
+
+    public synchronized void close() {
+        closed = true;
+        notifyAll();
+    }
+
+    public InputStream getInputStream() {
+        return new InputStream() {
+            @Override
+            public int read() {
+                return SerialLine.this.read();
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) {
+                if (len == 0) {
+                    return 0;
+                }
+                int value = SerialLine.this.read();
+                if (value < 0) {
+                    return -1;
+                }
+                b[off] = (byte) value;
+                int count = 1;
+                while (count < len && available() > 0) {
+                    b[off + count++] = (byte) SerialLine.this.read();
+                }
+                return count;
+            }
+
+            @Override
+            public int available() {
+                return SerialLine.this.available();
+            }
+
+            @Override
+            public void close() {
+                SerialLine.this.close();
+            }
+        };
+    }
+
+    public OutputStream getOutputStream() {
+        return new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                SerialLine.this.write(b);
+            }
+
+            @Override
+            public void close() {
+                SerialLine.this.close();
+            }
+        };
+    }
+}
@@ -0,0 +1,308 @@
+package ags.emulator;
+
+import ags.communication.DataUtil;
+import ags.controller.Configurable;
+import ags.controller.Configurable.CATEGORY;
+import ags.controller.Launcher;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Headless stand-in for an Apple // with a Super Serial Card, for testing and benchmarking TransferHost
+ * without real hardware.  It boots the assembled SOS driver the same way the bootstrap does (load at $800,
+ * run at $801) and then runs the 6502 in step with the wall clock, so the host sees the same timing it
+ * would see on a real machine: the driver's cycle counts, serial bytes one character time apart and
+ * lost bytes when the driver doesn't read them in time.
+ *
+ * Only what the drivers need is modeled: RAM, the keyboard, the ACIA and a few monitor routines
+ * (MEMMOVE, IN0, PR0 and BELL); every other ROM address simply returns.  The IIgs serial ports and the
+ * disk hardware are not modeled.
+ *
+ * Use getHostInput/getHostOutput to talk to it in-process (see PipeTransferHost) or run main() to serve
+ * it on a TCP port for TCPTransferHost.
+ * @author brobert
+ */
+public class VirtualApple implements Cpu6502.Bus, Runnable {
+
+    /**
+     * Line speed of the virtual serial card
+     */
+    @Configurable(category = CATEGORY.ADVANCED, isRequired = false)
+    public static int EMULATOR_BAUD = 115200;
+    /**
+     * Slot of the virtual serial card (picks which driver binary is booted)
+     */
+    @Configurable(category = CATEGORY.ADVANCED, isRequired = false)
+    public static int EMULATOR_SLOT = 2;
+    public static final int MEMMOVE = 0x0FE2C;
+    public static final int IN0 = 0x0FE89;
+    public static final int PR0 = 0x0FE93;
+    public static final int BELL = 0x0FF3A;
+    /**
+     * Cycles to run between checks of the wall clock and the host's input
+     */
+    private static final int SLICE_CYCLES = 64;
+    /**
+     * How far the emulation may run ahead of the wall clock before it sleeps
+     */
+    private static final long MAX_LEAD_NANOS = 200000L;
+    private final int[] ram = new int[0x10000];
+    private final Cpu6502 cpu = new Cpu6502(this);
+    private final Acia6551 acia;
+    private final int aciaBase;
+    private final SerialLine fromHost = new SerialLine();
+    private final SerialLine toHost = new SerialLine();
+    private int keyboard = 0;
+    private long bells = 0;
+    private long startNanos;
+    private volatile boolean running = false;
+    private Thread thread = null;
+
+    public VirtualApple() {
+        this(EMULATOR_BAUD, EMULATOR_SLOT);
+    }
+
+    /**
+     * Constructor
+     * @param baud Line speed of the serial card
+     * @param slot Slot of the serial card
+     */
+    public VirtualApple(int baud, int slot) {
+        // 8-N-1 is ten bits per character
+        acia = new Acia6551(DataUtil.CPU_SPEED * 10L / baud, toHost.getOutputStream());
+        aciaBase = 0x0C088 + slot * 16;
+        // Anything in ROM that isn't trapped just returns
+        for (int i = 0x0D000; i < 0x10000; i++) {
+            ram[i] = 0x060;
+        }
+        cpu.setTrap(MEMMOVE, this::memmove);
+        cpu.setTrap(IN0, Cpu6502::returnFromSubroutine);
+        cpu.setTrap(PR0, Cpu6502::returnFromSubroutine);
+        cpu.setTrap(BELL, c -> {
+            bells++;
+            // The real bell takes about a tenth of a second
+            c.cycles += DataUtil.CPU_SPEED / 10;
+            c.returnFromSubroutine();
+        });
+    }
+
+    /**
+     * Load the SOS driver for the configured slot and get it running
+     * @throws java.io.IOException If the driver binary can't be found (run the assembly build first)
+     */
+    public void boot() throws IOException {
+        boot(DataUtil.getFileAsBytes("ags/asm/sos_himem_ssc_slot" + EMULATOR_SLOT + ".o"));
+    }
+
+    /**
+     * Load a driver image at $800 and start it at $801, as the bootstrap loader does
+     * @param driver Driver image
+     */
+    public void boot(byte[] driver) {
+        load(0x0800, driver);
+        cpu.sp = 0x0ff;
+        cpu.i = true;
+        cpu.pc = 0x0801;
+    }
+
+    /**
+     * Put data directly into ram
+     * @param address Starting address
+     * @param data Data to store
+     */
+    public void load(int address, byte[] data) {
+        for (int i = 0; i < data.length && address + i < 0x0D000; i++) {
+            ram[address + i] = data[i] & 0x0ff;
+        }
+    }
+
+    /**
+     * Look at ram directly
+     * @param address Address to read
+     * @return Value in ram
+     */
+    public int peek(int address) {
+        return ram[address & 0x0ffff];
+    }
+
+    public synchronized void pressKey(int key) {
+        keyboard = (key & 0x07f) | 0x080;
+    }
+
+    public Cpu6502 getCpu() {
+        return cpu;
+    }
+
+    public Acia6551 getAcia() {
+        return acia;
+    }
+
+    public long getBells() {
+        return bells;
+    }
+
+    /**
+     * @return Stream of bytes sent by the apple
+     */
+    public InputStream getHostInput() {
+        return toHost.getInputStream();
+    }
+
+    /**
+     * @return Stream for bytes going to the apple
+     */
+    public OutputStream getHostOutput() {
+        return fromHost.getOutputStream();
+    }
+
+    public synchronized void start() {
+        if (thread == null) {
+            running = true;
+            thread = new Thread(this, "Virtual Apple");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    public void stop() {
+        running = false;
+        fromHost.close();
+        toHost.close();
+    }
+
+    @Override
+    public void run() {
+        startNanos = System.nanoTime();
+        long startCycles = cpu.cycles;
+        while (running) {
+            // Hand over what the host wrote; it can't arrive before now since the CPU has already run that far
+            while (fromHost.available() > 0) {
+                long cycle = startCycles + (fromHost.peekStamp() - startNanos) * DataUtil.CPU_SPEED / DataUtil.NANOS_PER_SECOND;
+                if (!acia.receive(fromHost.read(), Math.max(cpu.cycles, cycle))) {
+                    break;
+                }
+            }
+            long sliceEnd = cpu.cycles + SLICE_CYCLES;
+            while (cpu.cycles < sliceEnd) {
+                cpu.step();
+            }
+            acia.update(cpu.cycles);
+            long lead = (cpu.cycles - startCycles) * DataUtil.NANOS_PER_SECOND / DataUtil.CPU_SPEED - (System.nanoTime() - startNanos);
+            if (lead > MAX_LEAD_NANOS) {
+                LockSupport.parkNanos(lead);
+            } else if (lead < -100000000L) {
+                // Fell way behind (the machine was busy), so don't try to catch up all at once
+                startNanos = System.nanoTime();
+                startCycles = cpu.cycles;
+            }
+        }
+    }
+
+    /**
+     * Monitor MOVE routine: copy A1 through A2 to A4
+     */
+    private void memmove(Cpu6502 c) {
+        int a1 = c.readWord(0x03C);
+        int a2 = c.readWord(0x03E);
+        int a4 = c.readWord(0x042);
+        boolean done;
+        do {
+            c.write(a4 + c.y, c.read(a1 + c.y));
+            done = a1 >= a2;
+            a1 = (a1 + 1) & 0x0ffff;
+            a4 = (a4 + 1) & 0x0ffff;
+            // About 30 cycles per byte in the real routine
+            c.cycles += 30;
+        } while (!done);
+        c.write(0x03C, a1);
+        c.write(0x03D, a1 >> 8);
+        c.write(0x042, a4);
+        c.write(0x043, a4 >> 8);
+        c.returnFromSubroutine();
+    }
+
+    @Override
+    public int read(int address) {
+        if ((address & 0x0ff00) != 0x0C000) {
+            return ram[address];
+        }
+        if (address >= aciaBase && address < aciaBase + 4) {
+            return acia.read(address - aciaBase, cpu.cycles);
+        }
+        synchronized (this) {
+            if (address == 0x0C000) {
+                return keyboard;
+            }
+            if (address == 0x0C010) {
+                keyboard &= 0x07f;
+            }
+        }
+        return 0;
+    }
+
+    @Override
+    public void write(int address, int value) {
+        if (address < 0x0C000) {
+            ram[address] = value;
+        } else if (address >= aciaBase && address < aciaBase + 4) {
+            acia.write(address - aciaBase, value, cpu.cycles);
+        } else if (address == 0x0C010) {
+            synchronized (this) {
+                keyboard &= 0x07f;
+            }
+        }
+        // ROM and other I/O are ignored
+    }
+
+    /**
+     * Serve a virtual apple on a TCP port so TCPTransferHost (or anything else) can connect to it
+     * @param args Optional port number (defaults to Launcher.TCP_PORT)
+     * @throws java.io.IOException If the port can't be opened or the driver can't be found
+     */
+    public static void main(String... args) throws IOException {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : Launcher.TCP_PORT;
+        VirtualApple apple = new VirtualApple();
+        apple.boot();
+        apple.start();
+        InputStream fromApple = apple.getHostInput();
+        OutputStream toApple = apple.getHostOutput();
+        try (ServerSocket server = new ServerSocket(port)) {
+            System.out.println("Virtual apple listening on port " + port + " at " + EMULATOR_BAUD + " baud");
+            while (true) {
+                try (Socket socket = server.accept()) {
+                    socket.setTcpNoDelay(true);
+                    System.out.println("Host connected from " + socket.getRemoteSocketAddress());
+                    Thread pump = new Thread(() -> {
+                        try {
+                            OutputStream out = socket.getOutputStream();
+                            while (!socket.isClosed()) {
+                                if (fromApple.available() > 0) {
+                                    out.write(fromApple.read());
+                                    out.flush();
+                                } else {
+                                    DataUtil.wait(1);
+                                }
+                            }
+                        } catch (IOException ex) {
+                            // Host went away
+                        }
+                    }, "Virtual Apple output");
+                    pump.setDaemon(true);
+                    pump.start();
+                    InputStream in = socket.getInputStream();
+                    for (int b = in.read(); b >= 0; b = in.read()) {
+                        toApple.write(b);
+                    }
+                } catch (IOException ex) {
+                    System.out.println("Host connection lost: " + ex.getMessage());
+                }
+                System.out.println("Host disconnected; " + apple.getAcia().getOverruns() + " overruns, "
+                        + apple.getBells() + " beeps so far");
+            }
+        }
+    }
+}
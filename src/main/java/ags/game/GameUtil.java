@@ -6,6 +6,7 @@
 package ags.game;
 
 import java.io.InputStream;
+import java.util.Collections;
 import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -34,13 +35,26 @@ public class GameUtil {
     public static final String ACTION_RUN = "run";
     public static final String ACTION_LOAD = "load";
 
-    public static List<Game> readGames() {
+    // Catalog shared by every session, and the file it was read from
+    private static List<Game> catalog = null;
+    private static String catalogFile = null;
+
+    /**
+     * Read the game catalog.  It is only parsed once and every session shares the same (read-only) list.
+     * @return List of games, or null if the catalog could not be read
+     */
+    public static synchronized List<Game> readGames() {
+        if (catalog != null && GAMES_DATA_FILE.equals(catalogFile)) {
+            return catalog;
+        }
         try {
             InputStream input = Thread.currentThread().getContextClassLoader().getResourceAsStream("data/" + GAMES_DATA_FILE);
             if (input == null) return null;
             javax.xml.bind.JAXBContext jaxbCtx = javax.xml.bind.JAXBContext.newInstance(Games.class);
             Games out = (Games) jaxbCtx.createUnmarshaller().unmarshal(input);
-            return out.getGame();
+            catalog = Collections.unmodifiableList(out.getGame());
+            catalogFile = GAMES_DATA_FILE;
+            return catalog;
         } catch (JAXBException ex) {
             Logger.getLogger(GameUtil.class.getName()).log(Level.SEVERE, null, ex);
         }
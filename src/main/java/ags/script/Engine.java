@@ -2,6 +2,7 @@ package ags.script;
 
 import ags.controller.Configurable;
 import ags.controller.Configurable.CATEGORY;
+import ags.controller.Session;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
@@ -17,10 +18,6 @@ public class Engine {
      */
     @Configurable(category=CATEGORY.ADVANCED, isRequired=false)
     static public boolean FLUSH_REQUIRES_NEWLINE = false;
-    /**
-     * singleton installer instance
-     */
-    static private Engine instance = null;
     /**
      * input stream in use
      */
@@ -80,17 +77,18 @@ public class Engine {
      * @param script the path of the script to execute
      */
     public static void start(String script) {
-        instance = new Engine();
+        Engine instance = new Engine();
+        Session.current().setEngine(instance);
         instance.init(script);
         instance.run();
     }
     
     /**
-     * Get the singleton instance of the installer
+     * Get the instance of the installer running in the current session
      * @return The installer that is running
      */
     public static Engine getInstance() {
-        return instance;
+        return Session.current().getEngine();
     }
     
     //--------------------------------------------------
@@ -9,10 +9,10 @@
 
 package ags.script;
 
+import ags.controller.Session;
 import ags.script.commands.Require;
 import ags.script.exception.FatalScriptException;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
@@ -23,10 +23,11 @@ import java.util.Map;
  */
 public class Target {
     /**
-     * Map of all defined targets
+     * Map of all targets defined in the current session
      */
-    private static Map allTargets;
-    static {allTargets = new HashMap();}
+    private static Map allTargets() {
+        return Session.current().getTargets();
+    }
 
     /**
      * Get a registered target by name
@@ -34,7 +35,7 @@ public class Target {
      * @return null if target does not exist, otherwise relevant Target with the provided name
      */
     public static Target getTarget(String name) {
-        Target t = (Target) allTargets.get(name);
+        Target t = (Target) allTargets().get(name);
         return t;
     }
 
@@ -43,7 +44,7 @@ public class Target {
      * @throws com.vignette.vps.install.BadVariableValueException If there are references to undefined variables
      */
     static void verifyAll() throws BadVariableValueException {
-        for (Iterator i = allTargets.values().iterator(); i.hasNext(); ) {
+        for (Iterator i = allTargets().values().iterator(); i.hasNext(); ) {
             Target t = (Target) i.next();
             for (Iterator j = t.getCommands().iterator(); j.hasNext(); ) {
                 AbstractCommand c = (AbstractCommand) j.next();
@@ -83,7 +84,7 @@ public class Target {
         this.name=name;
         runAlready = false;
         commands = new ArrayList();
-        allTargets.put(name, this);
+        allTargets().put(name, this);
     }    
 
     /**
@@ -9,8 +9,8 @@
 
 package ags.script;
 
+import ags.controller.Session;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
@@ -21,10 +21,12 @@ import java.util.Map;
  */
 public class Variable {
     /**
-     * All variables defined in the script
+     * All variables defined in the script of the current session
      */
-    private static Map allVariables;
-    static {allVariables = new HashMap();}
+    private static Map allVariables() {
+        return Session.current().getVariables();
+    }
+
     /**
      * Get a variable by its name.  If the variable has not been defined yet, it is created automatically.
      * If a variable is not tied to a corresponding Set command in the script, it will generate an error condition ahead of time rather than fail during script execution.
@@ -32,7 +34,7 @@ public class Variable {
      * @return Variable object
      */
     static public Variable getVariable(String varName) {
-        Variable var = (Variable) allVariables.get(varName);
+        Variable var = (Variable) allVariables().get(varName);
         if (var == null) {
             var = new Variable(varName);
         }
@@ -73,7 +75,7 @@ public class Variable {
         initalized = false;
         this.name = name;
         dependencies = new ArrayList();
-        allVariables.put(name, this);
+        allVariables().put(name, this);
     }
 
     /**
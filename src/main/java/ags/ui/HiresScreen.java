@@ -27,18 +27,20 @@ public class HiresScreen extends IVirtualScreen {
     private PaletteYIQ palette = new Palette6();
     private Color BLUE = new Color(palette.getColor(5).toRGB());
     private Color ORANGE = new Color(palette.getColor(6).toRGB());
-    public static BufferedImage screen = new BufferedImage(560, 192, BufferedImage.TYPE_INT_RGB);
+    private final BufferedImage screen = new BufferedImage(560, 192, BufferedImage.TYPE_INT_RGB);
     private HGRImage appleScreen = new HGRImage();
     @Configurable(category = CATEGORY.ADVANCED, isRequired = false)
     public static Style.FONT DISPLAY_FONT = Style.FONT.APPLE2FAT;
     public static FontMetrics appleFontMetrics;
+    // Only used to measure the font, so every screen can share it
+    private static final BufferedImage METRICS_IMAGE = new BufferedImage(1, 1, BufferedImage.TYPE_INT_RGB);
     // Font variables
     public static int CHARACTER_WIDTH = 14;
     public static int CHARACTER_HEIGHT = 8;
 
     public static void setCurrentFont(Style.FONT newFont) {
         DISPLAY_FONT = newFont;
-        appleFontMetrics = screen.getGraphics().getFontMetrics(DISPLAY_FONT.font);
+        appleFontMetrics = METRICS_IMAGE.getGraphics().getFontMetrics(DISPLAY_FONT.font);
     }
     /**
      * 40 spaces in a row
@@ -220,11 +222,12 @@ public class HiresScreen extends IVirtualScreen {
         }
         alreadyActive = true;
         try {
-            host.toggleSwitch(0x0c052); // fullscreen
-            host.toggleSwitch(0x0c050); // 40-col
-            host.toggleSwitch(0x0c057); // hires
-            host.toggleSwitch(0x0c054); // page1
-            host.toggleSwitch(0x0c00c); // 40-col
+            host.sendBatch(new TransferHost.Batch()
+                    .touch(0x0c052) // fullscreen
+                    .touch(0x0c050) // 40-col
+                    .touch(0x0c057) // hires
+                    .touch(0x0c054) // page1
+                    .touch(0x0c00c)); // 40-col
         } catch (IOException ex) {
             Logger.getLogger(HiresScreen.class.getName()).log(Level.SEVERE, null, ex);
         }
@@ -1,5 +1,5 @@
 package ags.ui;
-import ags.communication.DataUtil;
+import ags.communication.LatencyTracker;
 import ags.communication.TransferHost;
 import ags.controller.Configurable;
 import java.awt.Image;
@@ -42,12 +42,15 @@ public abstract class IVirtualScreen {
     public boolean stale = true;
     public void send(TransferHost host) {
         byte[] buffer = getBuffer();
+        host.getMetrics().getKeyLatency().mark(LatencyTracker.Stage.CONVERT);
         try {
             if (!USE_COMPRESSION) {
                 host.sendRawData(buffer, getDisplayOffset(), 0, buffer.length);
+                host.getMetrics().getKeyLatency().mark(LatencyTracker.Stage.WIRE);
+                host.getMetrics().screenFrame(buffer.length, buffer.length);
             } else {
-                byte[] send = DataUtil.packScreenUpdate(getDisplayOffset(), stale ? null : lastScreen, buffer);
-                host.sendCompressedData(send);
+                int sent = host.sendScreenUpdate(getDisplayOffset(), stale ? null : lastScreen, buffer);
+                host.getMetrics().screenFrame(buffer.length, sent);
             }
             stale = false;
             copyScreen();
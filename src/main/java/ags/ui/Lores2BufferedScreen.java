@@ -4,7 +4,7 @@
  */
 package ags.ui;
 
-import ags.communication.DataUtil;
+import ags.communication.LatencyTracker;
 import ags.communication.TransferHost;
 import java.io.IOException;
 import java.util.logging.Level;
@@ -45,12 +45,14 @@ public class Lores2BufferedScreen extends Lores2Screen {
     public void send(TransferHost host) {
         activePage = (activePage == 0 ? 1 : 0);
         byte[] buffer = getBuffer();
+        LatencyTracker latency = host.getMetrics().getKeyLatency();
+        latency.mark(LatencyTracker.Stage.CONVERT);
         try {
             if (!USE_COMPRESSION) {
                 host.sendRawData(buffer, getDisplayOffset(), 0, buffer.length);
+                latency.mark(LatencyTracker.Stage.WIRE);
             } else {
-                byte[] send = DataUtil.packScreenUpdate(getDisplayOffset(), isStale[activePage] ? null : lastScreen[activePage], buffer);
-                host.sendCompressedData(send);
+                host.sendScreenUpdate(getDisplayOffset(), isStale[activePage] ? null : lastScreen[activePage], buffer);
             }
             isStale[activePage] = false;
             copyScreen();
@@ -60,6 +62,7 @@ public class Lores2BufferedScreen extends Lores2Screen {
             } else {
                 host.toggleSwitch(0x0c055); // page2
             }
+            latency.mark(LatencyTracker.Stage.FLIP);
         } catch (IOException ex) {
             Logger.getLogger(TextScreen40.class.getName()).log(Level.SEVERE, null, ex);
         }
@@ -14,7 +14,7 @@ import java.util.logging.Logger;
  * @author blurry
  */
 public class Lores2Screen extends IVirtualScreen {
-    public static BufferedImage screen = new BufferedImage(40, 48, BufferedImage.TYPE_INT_RGB);
+    private final BufferedImage screen = new BufferedImage(40, 48, BufferedImage.TYPE_INT_RGB);
     private GR2Image appleScreen = new GR2Image();
 //    private GRImage appleScreen = new GRImage();
 
@@ -125,11 +125,12 @@ public class Lores2Screen extends IVirtualScreen {
         }
         alreadyActive = true;
         try {
-            host.toggleSwitch(0x0c052); // fullscreen
-            host.toggleSwitch(0x0c050); // 40-col
-            host.toggleSwitch(0x0c056); // lores
-            host.toggleSwitch(0x0c054); // page1
-            host.toggleSwitch(0x0c00c); // 40-col
+            host.sendBatch(new TransferHost.Batch()
+                    .touch(0x0c052) // fullscreen
+                    .touch(0x0c050) // 40-col
+                    .touch(0x0c056) // lores
+                    .touch(0x0c054) // page1
+                    .touch(0x0c00c)); // 40-col
         } catch (IOException ex) {
             Logger.getLogger(HiresScreen.class.getName()).log(Level.SEVERE, null, ex);
         }
@@ -112,7 +112,8 @@ public class TextScreen40 extends IVirtualScreen {
         int offset = getYOffset(y);
         // Fix for 80-column mode and old ]['s
         // --> lowecase letters are not used if they won't work in those cases
-        if (invert || GenericHost.getInstance().isLegacyMode()) {
+        GenericHost host = GenericHost.getInstance();
+        if (invert || (host != null && host.isLegacyMode())) {
             text = text.toUpperCase();
         }
         for (int i = 0; i < text.length(); i++) {
@@ -219,9 +220,10 @@ public class TextScreen40 extends IVirtualScreen {
                 return;
             }
             alreadyActive = true;
-            host.toggleSwitch(0x0c051); // Text
-            host.toggleSwitch(0x0c054); // Page1
-            host.toggleSwitch(0x0c00e); // Disable ALT Charset
+            host.sendBatch(new TransferHost.Batch()
+                    .touch(0x0c051) // Text
+                    .touch(0x0c054) // Page1
+                    .touch(0x0c00e)); // Disable ALT Charset
         } catch (IOException ex) {
             Logger.getLogger(TextScreen40.class.getName()).log(Level.SEVERE, null, ex);
         }
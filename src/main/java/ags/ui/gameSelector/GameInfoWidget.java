@@ -14,6 +14,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -31,10 +32,17 @@ public class GameInfoWidget extends FrameBasedWidget {
     public static int SCREENSHOT_SMALL_WIDTH = 10;
     @Configurable(category=Configurable.CATEGORY.ADVANCED, isRequired=false)
     public static int SCREENSHOT_SMALL_HEIGHT = 8;
+    /**
+     * Number of decoded screenshots kept in memory, shared by every session
+     */
+    @Configurable(category=Configurable.CATEGORY.ADVANCED, isRequired=false)
+    public static int SCREENSHOT_CACHE_SIZE = 32;
+    // Decoded screenshots in least to most recently used order (only ever read once decoded)
+    private static final LinkedHashMap<String, BufferedImage> screenshotCache = new LinkedHashMap<String, BufferedImage>(16, 0.75f, true);
 
-    static Game activeGame = null;
+    Game activeGame = null;
 
-    static void setActiveItem(Game g) {
+    void setActiveItem(Game g) {
         activeGame = g;
     }
     int desiredHeight = 0;
@@ -44,15 +52,44 @@ public class GameInfoWidget extends FrameBasedWidget {
     boolean hasScreenshots = false;
 
     public void drawScreenshot(String filename, int x, int y, int xSize, int ySize) throws IOException {
-        String fullPath = SCREENSHOTS_PATH+"/" + filename;
-        InputStream in = Thread.currentThread().getContextClassLoader().getResourceAsStream(fullPath);
-        if (in == null) {
+        BufferedImage i = readScreenshot(SCREENSHOTS_PATH+"/" + filename);
+        if (i == null) {
             return; // Skip drawing this screenshot instead of crashing
         }
-        BufferedImage i = ImageIO.read(in);
         app.getScreen().drawImage(x, y, x + xSize, y + ySize, i);
     }
 
+    private static BufferedImage readScreenshot(String fullPath) throws IOException {
+        synchronized (screenshotCache) {
+            BufferedImage i = screenshotCache.get(fullPath);
+            if (i != null) {
+                return i;
+            }
+        }
+        InputStream in = Thread.currentThread().getContextClassLoader().getResourceAsStream(fullPath);
+        if (in == null) {
+            return null;
+        }
+        BufferedImage i;
+        try {
+            i = ImageIO.read(in);
+        } finally {
+            in.close();
+        }
+        if (i == null) {
+            return null;
+        }
+        synchronized (screenshotCache) {
+            screenshotCache.put(fullPath, i);
+            Iterator<String> oldest = screenshotCache.keySet().iterator();
+            while (screenshotCache.size() > Math.max(0, SCREENSHOT_CACHE_SIZE)) {
+                oldest.next();
+                oldest.remove();
+            }
+        }
+        return i;
+    }
+
     @Override
     public void setYSize(int ySize) {
         setYSize(ySize, false);
@@ -130,7 +130,7 @@ public class GameResultsWidget extends FrameBasedWidget {
         }
         activeItem = Math.max(0, activeItem);
         activeItem = Math.min(activeItem, Math.max(0, results.size() - 1));
-        GameInfoWidget.setActiveItem(results.get(activeItem));
+        ((GameSelectorApplication) app).info.setActiveItem(results.get(activeItem));
         return true;
     }
 
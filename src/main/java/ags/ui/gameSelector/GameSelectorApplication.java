@@ -8,7 +8,9 @@
  */
 package ags.ui.gameSelector;
 
+import ags.communication.LatencyTracker;
 import ags.communication.TransferHost;
+import ags.controller.Launcher;
 import ags.ui.*;
 import java.io.IOException;
 import java.util.List;
@@ -76,15 +78,19 @@ public class GameSelectorApplication extends IApplication {
         redraw();
         getScreen().send(host);
         while (gameSelected() == null) {
-            byte key = host.getKey();
+            byte key = host.awaitKey(0);
             if (key != 0) {
                 if (handleKeypress(key)) {
+                    LatencyTracker latency = host.getMetrics().getKeyLatency();
+                    latency.mark(LatencyTracker.Stage.REDRAW);
                     getScreen().send(host);
+                    latency.finish(Launcher.DISPLAY_TYPE.name());
                 }
             }
         }
-        host.toggleSwitch(0x0c051); // Text
-        host.toggleSwitch(0x0c054); // Page1
+        host.sendBatch(new TransferHost.Batch()
+                .touch(0x0c051) // Text
+                .touch(0x0c054)); // Page1
         host.startGame(gameSelected());
         System.out.println("Have fun playing " + gameSelected().getName() + "!");
     }
@@ -162,7 +168,7 @@ public class GameSelectorApplication extends IApplication {
         results.results = games;
         results.activeItem = 0;
         if (games != null && games.size() > 0) {
-            GameInfoWidget.setActiveItem(games.get(0));
+            info.setActiveItem(games.get(0));
         }
     }
 
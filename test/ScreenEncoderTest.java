@@ -0,0 +1,81 @@
+/*
+ * ScreenEncoderTest.java
+ *
+ * Packs a series of menu-like screen updates with both screen encoders, runs every stream through the
+ * host-side copy of the decompressor and compares the result with the frame that was meant to be shown.
+ */
+
+import ags.communication.DataUtil;
+import ags.communication.OptimalPackbitsEncoder;
+import ags.communication.PackbitsDecoder;
+import ags.communication.PackbitsEncoder;
+import ags.ui.HiresScreen;
+import ags.ui.IVirtualScreen;
+import ags.ui.TextScreen40;
+import java.util.Random;
+
+/**
+ * Checks that the greedy and optimal encoders both reproduce every frame and reports the bytes and
+ * predicted time each one needs
+ * @author brobert
+ */
+public class ScreenEncoderTest {
+
+    private static final int FRAMES = 200;
+
+    public static void main(String[] args) {
+        run("hires", new HiresScreen());
+        run("text", new TextScreen40());
+    }
+
+    private static void run(String name, IVirtualScreen screen) {
+        Random random = new Random(1977);
+        int address = screen.getDisplayOffset();
+        PackbitsEncoder[] encoders = {new PackbitsEncoder(), new OptimalPackbitsEncoder()};
+        String[] names = {"greedy", "optimal"};
+        byte[][] memory = new byte[encoders.length][screen.getBuffer().length];
+        PackbitsDecoder[] decoders = new PackbitsDecoder[encoders.length];
+        long[] bytes = new long[encoders.length];
+        for (int e = 0; e < encoders.length; e++) {
+            decoders[e] = new PackbitsDecoder(address, memory[e]);
+        }
+        byte[] previous = null;
+        for (int frame = 0; frame < FRAMES; frame++) {
+            if (frame % 50 == 0) {
+                screen.clear();
+            }
+            for (int i = random.nextInt(6); i >= 0; i--) {
+                screen.drawText(random.nextInt(30), random.nextInt(24), "GAME " + random.nextInt(100000), random.nextBoolean());
+            }
+            byte[] current = screen.getBuffer().clone();
+            for (int e = 0; e < encoders.length; e++) {
+                encoders[e].setXorMode(decoders[e].isXorMode());
+                int size = encoders[e].packScreenUpdate(address, previous, current);
+                if (size == 0) {
+                    continue;
+                }
+                bytes[e] += size;
+                long nanos = decoders[e].decode(encoders[e].getBuffer(), size, DataUtil.NANOS_PER_CHAR);
+                if (encoders[e] instanceof OptimalPackbitsEncoder
+                        && nanos != ((OptimalPackbitsEncoder) encoders[e]).getPredictedNanos()) {
+                    System.out.println(names[e] + " frame " + frame + ": planned " + ((OptimalPackbitsEncoder) encoders[e]).getPredictedNanos()
+                            + "ns but decoder counted " + nanos + "ns");
+                }
+                if (encoders[e].isXorMode() != decoders[e].isXorMode()) {
+                    System.out.println(names[e] + " frame " + frame + ": encoder and decoder disagree on the mode");
+                }
+                for (int i = 0; i < current.length; i++) {
+                    // Screen holes are free for the encoders to use
+                    if (((address + i) & 0x07f) < 0x078 && memory[e][i] != current[i]) {
+                        System.out.println(names[e] + " frame " + frame + ": SCREEN DIFFERS at " + Integer.toHexString(address + i));
+                        return;
+                    }
+                }
+            }
+            previous = current;
+        }
+        for (int e = 0; e < encoders.length; e++) {
+            System.out.printf("%s %-8s %8d bytes %8dms predicted%n", name, names[e], bytes[e], decoders[e].getNanos() / 1000000L);
+        }
+    }
+}
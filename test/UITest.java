@@ -40,7 +40,7 @@ public class UITest {
             @Override
             public void redraw() {
                 super.redraw();
-                drawArea.getGraphics().drawImage(HiresScreen.screen, 0, 0, 560, 192 * 2, null);
+                drawArea.getGraphics().drawImage(screen.getScreen(), 0, 0, 560, 192 * 2, null);
             }
         };
         app.setGames(GameUtil.readGames());
@@ -0,0 +1,63 @@
+/*
+ * VirtualAppleTest.java
+ *
+ * Exercises TransferHost against the built-in virtual apple (no hardware needed).
+ * Run after the assembly build so the driver binaries are in target/classes/ags/asm.
+ */
+
+import ags.communication.DataUtil;
+import ags.communication.PipeTransferHost;
+import ags.communication.TransferHost;
+import ags.emulator.VirtualApple;
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * Sends raw and compressed data to a virtual apple and reports throughput, lost bytes and beeps
+ * @author brobert
+ */
+public class VirtualAppleTest {
+
+    public static void main(String[] args) throws IOException {
+        VirtualApple apple = new VirtualApple();
+        apple.boot();
+        apple.start();
+        TransferHost host = new PipeTransferHost(apple.getHostInput(), apple.getHostOutput(), "emulator");
+        host.setBaud(VirtualApple.EMULATOR_BAUD);
+        host.testDriver();
+
+        // Raw transfer of random data
+        byte[] data = new byte[16384];
+        new Random(1977).nextBytes(data);
+        long start = System.nanoTime();
+        int errors = host.sendRawData(data, 0x2000, 0, data.length);
+        long elapsed = (System.nanoTime() - start) / 1000000L;
+        System.out.println("Raw: " + data.length + " bytes in " + elapsed + "ms, " + errors + " errors, "
+                + (verify(apple, 0x2000, data) ? "memory matches" : "MEMORY DIFFERS"));
+
+        // Compressed transfer of a screen with long runs
+        byte[] screen = new byte[8192];
+        for (int i = 0; i < screen.length; i++) {
+            screen[i] = (byte) ((i / 512) % 3 == 0 ? 0x2a : i);
+        }
+        start = System.nanoTime();
+        host.sendCompressedData(DataUtil.packbitsStore(0x4000, screen, 0, screen.length));
+        host.testDriver();
+        elapsed = (System.nanoTime() - start) / 1000000L;
+        System.out.println("Compressed: " + screen.length + " bytes in " + elapsed + "ms, "
+                + (verify(apple, 0x4000, screen) ? "memory matches" : "MEMORY DIFFERS"));
+
+        System.out.println("Overruns: " + apple.getAcia().getOverruns() + ", beeps: " + apple.getBells());
+        apple.stop();
+    }
+
+    private static boolean verify(VirtualApple apple, int address, byte[] data) {
+        for (int i = 0; i < data.length; i++) {
+            if (apple.peek(address + i) != (data[i] & 0x0ff)) {
+                System.out.println("First difference at " + Integer.toHexString(address + i));
+                return false;
+            }
+        }
+        return true;
+    }
+}